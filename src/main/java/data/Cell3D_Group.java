@@ -1,7 +1,7 @@
 package data;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
 
 import ij.IJ;
@@ -17,9 +17,10 @@ public class Cell3D_Group
 	public static final String CORE = "CORE", SINGLE = "SINGLE_CELL", DUAL = "DUAL_CLUSTER", MULTI = "MULTI_CLUSTER", NONE = "NONE";
 
 	private final ArrayList<Cell3D> members = new ArrayList<>();
-	// Map with the mean measurements
-	private final HashMap<String, Double> meanCellMeasurements;
-	private final HashMap<String, Double> meanNucleusMeasurements;
+	// The nucleus labels of the members, for fast membership tests
+	private final BitSet memberLabels = new BitSet();
+	// The statistics of the members, collected when first needed
+	private GroupStatistics statistics = null;
 
 	// The migration modes based on automatic cells and manual markers
 	private String migrationMode = NONE;
@@ -52,33 +53,6 @@ public class Cell3D_Group
 	private int nucleusWithSeed = 0;
 	private int nucleusWithSeedAndMarker = 0;
 
-	// Counts of the migration mode correctness
-	private boolean countNucleusMigrationMode = false;
-	private int nucleusWithCorrectMigrationMode = 0;
-	private int nucleusWithWrongMigrationMode = 0;
-	private int nucleusWithoutMigrationMode = 0;
-	private int singleCellWithoutMigrationMode = 0;
-	private int singleCellWithWrongMigrationMode = 0;
-	private int singleCellWithCorrectMigrationMode = 0;
-	private int coreCellWithoutMigrationMode = 0;
-	private int coreCellDetectedAsCore = 0;
-	private int coreCellWithMigrationMode = 0;
-	private int dualCellWithCorrectMigrationMode = 0;
-	private int dualCellWithoutMigrationMode = 0;
-	private int dualCellWithWrongMigrationMode = 0;
-	private int multiCellWithCorrectMigrationMode = 0;
-	private int multiCellWithWrongMigrationMode = 0;
-	private int multiCellWithoutMigrationMode = 0;
-	private int singleCellFalsePositive = 0;
-
-	// Sizes
-	private double totalVolume = 0;
-	private double totalVolumeCell = 0;
-
-	// Mean of the cell measurements
-	private double meanVolume = 0;
-	private double meanNumberOfVoxels = 0;
-
 	// Additional channels
 	private ArrayList<Double> meanExtraChannels = null;
 	private ArrayList<Double> backgroundExtraChannels = null;
@@ -89,8 +63,6 @@ public class Cell3D_Group
 	 */
 	public Cell3D_Group()
 	{
-		this.meanCellMeasurements = new HashMap<>();
-		this.meanNucleusMeasurements = new HashMap<>();
 	}
 
 
@@ -103,108 +75,23 @@ public class Cell3D_Group
 	public Cell3D_Group(final List<Cell3D> aStartMembers)
 	{
 		this.members.addAll(aStartMembers);
-		this.meanCellMeasurements = new HashMap<>();
-		this.meanNucleusMeasurements = new HashMap<>();
+		for (final Cell3D cell : aStartMembers)
+		{
+			this.memberLabels.set(cell.getNucleus().getLabel());
+		}
 	}
 
 
 	/**
-	 * Compare the migration mode of the group as determined by the automated migration analysis with the 'golden truth' of the manual migration mode(s) of the marker(s) contained in the Cell3Ds themselves. Note that it compares on a pairwise (group
-	 * vs cell) basis, so it is theoretically possible to have a single-cell group containing two manually-annotated single-cell markers and count that as two successes.
+	 * Get the statistics of the members, collecting them first if needed. The returned object is the one that is kept up to date by this group.
 	 */
-	private void countMigrationModeAccuracy()
+	private GroupStatistics collectStatistics()
 	{
-		final String migrationModeGroup = getMigrationmode();
-
-		// Now check the manual migration mode of all member Cell3Ds
-		for (final Cell3D cell : this.members)
+		if (this.statistics == null)
 		{
-			final String markerMigModeCell = cell.getMarkerMigrationMode();
-			if (!migrationModeGroup.equals(markerMigModeCell))
-			{
-				// We have a disagreement, determine which specific type of migration resulted in an error and keep count of it.
-				if (migrationModeGroup.equals(NONE))
-				{
-					// No migration mode has been assigned to the group while we asked for it.
-					this.nucleusWithoutMigrationMode++;
-
-					// Now determine what should have been
-					if (markerMigModeCell.equals(SINGLE))
-					{
-						this.singleCellWithoutMigrationMode++;
-					}
-					else if (markerMigModeCell.equals(CORE))
-					{
-						this.coreCellWithoutMigrationMode++;
-					}
-					else if (markerMigModeCell.equals(DUAL))
-					{
-						this.dualCellWithoutMigrationMode++;
-					}
-					else if (markerMigModeCell.equals(MULTI))
-					{
-						this.multiCellWithoutMigrationMode++;
-					}
-				}
-				else
-				{
-					if (migrationModeGroup.equals(SINGLE))
-					{
-						// This should not have been a single cell
-						this.singleCellFalsePositive++;
-					}
-					else
-					{
-						// Not single or no migration (the two major error cases). Differentiation of the false positives is not needed.
-						this.nucleusWithWrongMigrationMode++;
-					}
-
-					// What should it have been though?.
-					if (markerMigModeCell.equals(SINGLE))
-					{
-						this.singleCellWithWrongMigrationMode++;
-					}
-					else if (markerMigModeCell.equals(DUAL))
-					{
-						this.dualCellWithWrongMigrationMode++;
-					}
-					else if (markerMigModeCell.equals(MULTI))
-					{
-						this.multiCellWithWrongMigrationMode++;
-					}
-					else if (markerMigModeCell.equals(CORE))
-					{
-						this.coreCellWithMigrationMode++;
-					}
-				}
-			}
-			else
-			{
-				// Yay, correct migration analysis
-				this.nucleusWithCorrectMigrationMode++;
-
-				// Now count what type of migration was detected successfully
-				if (markerMigModeCell.equals(SINGLE))
-				{
-					this.singleCellWithCorrectMigrationMode++;
-				}
-				else if (markerMigModeCell.equals(CORE))
-				{
-					this.coreCellDetectedAsCore++;
-				}
-				else if (markerMigModeCell.equals(DUAL))
-				{
-					this.dualCellWithCorrectMigrationMode++;
-				}
-				else if (markerMigModeCell.equals(MULTI))
-				{
-					this.multiCellWithCorrectMigrationMode++;
-				}
-			}
+			this.statistics = new GroupStatistics(this.members, this.migrationMode);
 		}
-
-		// Register that the counting has been cached
-		this.countNucleusMigrationMode = true;
+		return this.statistics;
 	}
 
 
@@ -352,11 +239,7 @@ public class Cell3D_Group
 
 	public int getCoreCellDetectedAsCore()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.coreCellDetectedAsCore;
+		return collectStatistics().getCorrectCount(CORE);
 	}
 
 
@@ -383,11 +266,7 @@ public class Cell3D_Group
 	 */
 	public int getCoreCellWithMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.coreCellWithMigrationMode;
+		return collectStatistics().getWrongCount(CORE);
 	}
 
 
@@ -398,11 +277,7 @@ public class Cell3D_Group
 	 */
 	public int getCoreCellWithoutMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.coreCellWithoutMigrationMode;
+		return collectStatistics().getWithoutModeCount(CORE);
 	}
 
 
@@ -429,31 +304,19 @@ public class Cell3D_Group
 	 */
 	public int getDualCellWithCorrectMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.dualCellWithCorrectMigrationMode;
+		return collectStatistics().getCorrectCount(DUAL);
 	}
 
 
 	public int getDualCellWithoutMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.dualCellWithoutMigrationMode;
+		return collectStatistics().getWithoutModeCount(DUAL);
 	}
 
 
 	public int getDualCellWithWrongMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.dualCellWithWrongMigrationMode;
+		return collectStatistics().getWrongCount(DUAL);
 	}
 
 
@@ -507,22 +370,18 @@ public class Cell3D_Group
 	}
 
 
+	/**
+	 * Get the mean of a cell measurement over the members.
+	 *
+	 * @param aMeasureName
+	 *            The name of the measurement
+	 *
+	 * @return The mean, or NaN if not every member has the measurement
+	 */
 	public double getMeanCellMeasure(final String aMeasureName)
 	{
-		Double resultMeasure = this.meanCellMeasurements.get(aMeasureName);
-
-		if (resultMeasure == null)
-		{
-			double measure = 0;
-			for (final Cell3D cell : this.members)
-			{
-				measure = measure + cell.getMeasurements().getMeasurement(aMeasureName);
-			}
-			resultMeasure = measure / this.members.size();
-		}
-		this.meanCellMeasurements.put(aMeasureName, resultMeasure);
-
-		return resultMeasure;
+		final Double mean = collectStatistics().getMeanCellMeasure(aMeasureName);
+		return mean != null ? mean : Double.NaN;
 	}
 
 
@@ -560,56 +419,19 @@ public class Cell3D_Group
 
 	public Double getMeanNucleusMeasure(final String aMeasureName)
 	{
-		Double resultMeasure = this.meanNucleusMeasurements.get(aMeasureName);
-
-		if (resultMeasure == null)
-		{
-			double measure = 0;
-			for (final Cell3D cell : this.members)
-			{
-				final Double nucMeasure = cell.getNucleus().getMeasurements().getMeasurement(aMeasureName);
-				if (nucMeasure != null)
-				{
-					measure = measure + nucMeasure;
-				}
-				else
-				{
-					return null;
-				}
-			}
-			resultMeasure = measure / this.members.size();
-		}
-		this.meanNucleusMeasurements.put(aMeasureName, resultMeasure);
-
-		return resultMeasure;
+		return collectStatistics().getMeanNucleusMeasure(aMeasureName);
 	}
 
 
 	public double getMeanNumberOfVoxels()
 	{
-		if (this.meanNumberOfVoxels == 0)
-		{
-			for (final Cell3D cell : this.members)
-			{
-				this.meanNumberOfVoxels = this.meanNumberOfVoxels + cell.getNucleus().getNumberOfVoxels();
-			}
-			this.meanNumberOfVoxels = this.meanNumberOfVoxels / this.members.size();
-		}
-		return this.meanNumberOfVoxels;
+		return collectStatistics().getMeanNumberOfVoxels();
 	}
 
 
 	public double getMeanVolume()
 	{
-		if (this.meanVolume == 0)
-		{
-			for (final Cell3D cell : this.members)
-			{
-				this.meanVolume = this.meanVolume + cell.getNucleus().getVolume();
-			}
-			this.meanVolume = this.meanVolume / this.members.size();
-		}
-		return this.meanVolume;
+		return collectStatistics().getMeanNucleusVolume();
 	}
 
 
@@ -686,34 +508,22 @@ public class Cell3D_Group
 	 */
 	public int getMultiCellWithCorrectMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
 		// IJ.log("multiCellWithCorrectMigrationMode" + multiCellWithCorrectMigrationMode);
-		return this.multiCellWithCorrectMigrationMode;
+		return collectStatistics().getCorrectCount(MULTI);
 	}
 
 
 	public int getMultiCellWithoutMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
 		/// IJ.log("MultiCellsWithoutMigrationmode" + multiCellWithoutMigrationMode);
-		return this.multiCellWithoutMigrationMode;
+		return collectStatistics().getWithoutModeCount(MULTI);
 	}
 
 
 	public int getMultiCellWithWrongMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
 		// IJ.log("multiCellWithWrongMigrationMode" + multiCellWithWrongMigrationMode);
-		return this.multiCellWithWrongMigrationMode;
+		return collectStatistics().getWrongCount(MULTI);
 	}
 
 
@@ -820,32 +630,20 @@ public class Cell3D_Group
 
 	public int getNucleusWithCorrectMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
 
-		return this.nucleusWithCorrectMigrationMode;
+		return collectStatistics().getCorrectCount();
 	}
 
 
 	public int getNucleusWithoutMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.nucleusWithoutMigrationMode;
+		return collectStatistics().getWithoutModeCount();
 	}
 
 
 	public int getNucleusWithWrongMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.nucleusWithWrongMigrationMode;
+		return collectStatistics().getWrongCount();
 	}
 
 
@@ -874,69 +672,102 @@ public class Cell3D_Group
 
 	public double getPercentageNucleusWithCorrectMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
 		if (!this.countNucleusMarkers)
 		{
 			countNucleusMarkers();
 		}
 
-		final double percentageNucleusWithCorrectMigrationMode = (this.nucleusWithCorrectMigrationMode / this.nucleusSelected) * 100;
+		final double percentageNucleusWithCorrectMigrationMode = (collectStatistics().getCorrectCount() / this.nucleusSelected) * 100;
 		return percentageNucleusWithCorrectMigrationMode;
 	}
 
 
 	public double getPercentageNucleusWithoutMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
 		if (!this.countNucleusMarkers)
 		{
 			countNucleusMarkers();
 		}
 
-		final double percentageWithoutMigrationMode = (this.nucleusWithoutMigrationMode / this.nucleusSelected) * 100;
+		final double percentageWithoutMigrationMode = (collectStatistics().getWithoutModeCount() / this.nucleusSelected) * 100;
 		return percentageWithoutMigrationMode;
 	}
 
 
 	public double getPercentageNucleusWrongMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
 		if (!this.countNucleusMarkers)
 		{
 			countNucleusMarkers();
 		}
 
-		final double percentageWrongMigrationMode = (this.nucleusWithWrongMigrationMode / this.nucleusSelected) * 100;
+		final double percentageWrongMigrationMode = (collectStatistics().getWrongCount() / this.nucleusSelected) * 100;
 		return percentageWrongMigrationMode;
 	}
 
 
+	/**
+	 * Get the nucleus labels of the members of this group.
+	 *
+	 * @return A copy of the set of member labels
+	 */
+	public BitSet getMemberLabels()
+	{
+		return (BitSet) this.memberLabels.clone();
+	}
+
+
 	public boolean getPresenceOfMember(final Cell3D aCandidateMember)
 	{
-		boolean present = false;
-		final int labelCandidateMember = aCandidateMember.getNucleus().getLabel();
-		for (final Cell3D cell : this.members)
+		return this.memberLabels.get(aCandidateMember.getNucleus().getLabel());
+	}
+
+
+	/**
+	 * Get the nucleus labels of the cells that are members of both this group and another group.
+	 *
+	 * @param aGroup
+	 *            The other group
+	 *
+	 * @return The set of labels that are in both groups
+	 */
+	public BitSet getSharedMemberLabels(final Cell3D_Group aGroup)
+	{
+		final BitSet shared = getMemberLabels();
+		shared.and(aGroup.memberLabels);
+		return shared;
+	}
+
+
+	/**
+	 * Does this group have any member in common with another group.
+	 *
+	 * @param aGroup
+	 *            The other group
+	 *
+	 * @return True if at least one cell is a member of both groups, false otherwise
+	 */
+	public boolean intersects(final Cell3D_Group aGroup)
+	{
+		return this.memberLabels.intersects(aGroup.memberLabels);
+	}
+
+
+	/**
+	 * Add the members of another group that are not yet members of this group.
+	 *
+	 * @param aGroup
+	 *            The group to merge into this one. It is not changed.
+	 */
+	public void merge(final Cell3D_Group aGroup)
+	{
+		for (final Cell3D cell : aGroup.members)
 		{
-			if (cell != null)
+			if (!getPresenceOfMember(cell))
 			{
-				final int labelMember = cell.getNucleus().getLabel();
-				if (labelMember == labelCandidateMember)
-				{
-					present = true;
-					break;
-				}
+				setMember(cell);
 			}
 		}
-		return present;
 	}
 
 
@@ -958,11 +789,7 @@ public class Cell3D_Group
 
 	public int getSingleCellFalsePositive()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.singleCellFalsePositive;
+		return collectStatistics().getSingleCellFalsePositiveCount();
 	}
 
 
@@ -989,11 +816,7 @@ public class Cell3D_Group
 	 */
 	public int getSingleCellWithCorrectMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.singleCellWithCorrectMigrationMode;
+		return collectStatistics().getCorrectCount(SINGLE);
 	}
 
 
@@ -1004,58 +827,57 @@ public class Cell3D_Group
 	 */
 	public int getSingleCellWithoutMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.singleCellWithoutMigrationMode;
+		return collectStatistics().getWithoutModeCount(SINGLE);
 	}
 
 
 	public int getSingleCellWithWrongMigrationMode()
 	{
-		if (!this.countNucleusMigrationMode)
-		{
-			countMigrationModeAccuracy();
-		}
-		return this.singleCellWithWrongMigrationMode;
+		return collectStatistics().getWrongCount(SINGLE);
+	}
+
+
+	/**
+	 * Get the statistics of the members of this group. The statistics are collected in one pass over the members when first needed and are kept up to date when members are added. As the accuracy
+	 * counts depend on the migration mode of the group, they are collected again after the migration mode has changed.
+	 *
+	 * @return A copy of the statistics of this group, which can be merged into those of an image without changing the group
+	 */
+	public GroupStatistics getStatistics()
+	{
+		return new GroupStatistics(collectStatistics());
 	}
 
 
 	public double getTotalVolume()
 	{
-		if (this.totalVolume == 0)
-		{
-			for (int i = 0; i < getMemberCount(); i++)
-			{
-				this.totalVolume = this.totalVolume + getMember(i).getNucleus().getVolume();
-			}
-		}
-		return this.totalVolume;
+		return collectStatistics().getTotalNucleusVolume();
 	}
 
 
 	public double getTotalVolumeCell()
 	{
-		if (this.totalVolumeCell == 0)
-		{
-			for (int i = 0; i < getMemberCount(); i++)
-			{
-				this.totalVolumeCell = this.totalVolumeCell + getMember(i).getVolume();
-			}
-		}
-		return this.totalVolumeCell;
+		return collectStatistics().getTotalCellVolume();
 	}
 
 
 	public void setMember(final Cell3D aMember)
 	{
 		this.members.add(aMember);
+		this.memberLabels.set(aMember.getNucleus().getLabel());
+		if (this.statistics != null)
+		{
+			this.statistics.add(aMember, this.migrationMode);
+		}
 	}
 
 
 	public void setMigrationmode(final String aMigrationMode)
 	{
+		if (!aMigrationMode.equals(this.migrationMode))
+		{
+			this.statistics = null;
+		}
 		this.migrationMode = aMigrationMode;
 	}
 }
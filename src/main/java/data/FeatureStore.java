@@ -0,0 +1,273 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ij.measure.ResultsTable;
+
+/**
+ * A column store of the measurements of all nuclei (or cells) of an image: one array of values per measurement, with one row per segment. Means, filters and table columns are then calculated by
+ * running over one array instead of looking up the measurement name in the measurements of each segment. A measurement that a segment does not have is NaN.
+ *
+ * The store is a snapshot of the measurements of the segments when it is created, so it should be created after all measurements have been done.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class FeatureStore
+{
+	private final int[] labels;
+	private final int[] labelRows;
+	private final Map<String, double[]> columns = new LinkedHashMap<>();
+
+
+	private FeatureStore(final int[] aLabels, final List<SegmentMeasurements> aMeasurements)
+	{
+		this.labels = aLabels;
+		int maxLabel = 0;
+		for (final int label : aLabels)
+		{
+			maxLabel = Math.max(maxLabel, label);
+		}
+		this.labelRows = new int[maxLabel + 1];
+		Arrays.fill(this.labelRows, -1);
+		for (int row = 0; row < aLabels.length; row++)
+		{
+			this.labelRows[aLabels[row]] = row;
+		}
+
+		// The columns in the order in which the measurement names are first found
+		for (int row = 0; row < aMeasurements.size(); row++)
+		{
+			final SegmentMeasurements measurements = aMeasurements.get(row);
+			final Set<String> measurementNames = measurements != null ? measurements.getMeasurementNames() : null;
+			if (measurementNames != null)
+			{
+				for (final String measurementName : measurementNames)
+				{
+					final Double measurement = measurements.getMeasurement(measurementName);
+					if (measurement != null)
+					{
+						double[] column = this.columns.get(measurementName);
+						if (column == null)
+						{
+							column = new double[aLabels.length];
+							Arrays.fill(column, Double.NaN);
+							this.columns.put(measurementName, column);
+						}
+						column[row] = measurement;
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Create the store of the measurements of the cells (without the nucleus specific measurements).
+	 *
+	 * @param aCells
+	 *            The cells of the image, one row each
+	 *
+	 * @return The store of the cell measurements
+	 */
+	public static FeatureStore createCellStore(final List<Cell3D> aCells)
+	{
+		final int[] labels = new int[aCells.size()];
+		final List<SegmentMeasurements> measurements = new ArrayList<>();
+		for (int row = 0; row < labels.length; row++)
+		{
+			labels[row] = aCells.get(row).getNucleus().getLabel();
+			measurements.add(aCells.get(row).getMeasurements());
+		}
+		return new FeatureStore(labels, measurements);
+	}
+
+
+	/**
+	 * Create the store of the measurements of the nuclei of the cells.
+	 *
+	 * @param aCells
+	 *            The cells of the image, one row each
+	 *
+	 * @return The store of the nucleus measurements
+	 */
+	public static FeatureStore createNucleusStore(final List<Cell3D> aCells)
+	{
+		final int[] labels = new int[aCells.size()];
+		final List<SegmentMeasurements> measurements = new ArrayList<>();
+		for (int row = 0; row < labels.length; row++)
+		{
+			labels[row] = aCells.get(row).getNucleus().getLabel();
+			measurements.add(aCells.get(row).getNucleus().getMeasurements());
+		}
+		return new FeatureStore(labels, measurements);
+	}
+
+
+	/**
+	 * Add the values of a measurement as a column to a results table that has one row per segment, in the row order of this store. Missing values are left out.
+	 *
+	 * @param aResultsTable
+	 *            The table, which must already contain the rows
+	 * @param aMeasurementName
+	 *            The name of the measurement
+	 * @param aHeading
+	 *            The heading of the column in the table
+	 */
+	public void addColumnToTable(final ResultsTable aResultsTable, final String aMeasurementName, final String aHeading)
+	{
+		final double[] column = this.columns.get(aMeasurementName);
+		if (column != null)
+		{
+			for (int row = 0; row < column.length; row++)
+			{
+				if (!Double.isNaN(column[row]))
+				{
+					aResultsTable.setValue(aHeading, row, column[row]);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Get the values of a measurement.
+	 *
+	 * @param aMeasurementName
+	 *            The name of the measurement
+	 *
+	 * @return The values per row (the array of the store itself), or null if no segment has the measurement
+	 */
+	public double[] getColumn(final String aMeasurementName)
+	{
+		return this.columns.get(aMeasurementName);
+	}
+
+
+	/**
+	 * @return The names of the measurements, in the order in which they were first found
+	 */
+	public List<String> getColumnNames()
+	{
+		return new ArrayList<>(this.columns.keySet());
+	}
+
+
+	/**
+	 * Get the mean of a measurement over all segments.
+	 *
+	 * @param aMeasurementName
+	 *            The name of the measurement
+	 *
+	 * @return The mean, or null if not every segment has the measurement
+	 */
+	public Double getMean(final String aMeasurementName)
+	{
+		final double[] column = this.columns.get(aMeasurementName);
+		if (column == null)
+		{
+			return null;
+		}
+		double sum = 0;
+		for (final double value : column)
+		{
+			sum += value;
+		}
+		return Double.isNaN(sum) ? null : sum / column.length;
+	}
+
+
+	/**
+	 * Get the mean of a measurement over a set of segments, e.g. the members of a cell group.
+	 *
+	 * @param aMeasurementName
+	 *            The name of the measurement
+	 * @param aLabels
+	 *            The labels of the segments
+	 *
+	 * @return The mean, or null if not every segment has the measurement or if a label is not in the store
+	 */
+	public Double getMean(final String aMeasurementName, final BitSet aLabels)
+	{
+		final double[] column = this.columns.get(aMeasurementName);
+		if (column == null)
+		{
+			return null;
+		}
+		double sum = 0;
+		int count = 0;
+		for (int label = aLabels.nextSetBit(0); label >= 0; label = aLabels.nextSetBit(label + 1))
+		{
+			final int row = getRow(label);
+			if (row < 0)
+			{
+				return null;
+			}
+			sum += column[row];
+			count++;
+		}
+		return Double.isNaN(sum) ? null : sum / count;
+	}
+
+
+	public int getLabel(final int aRow)
+	{
+		return this.labels[aRow];
+	}
+
+
+	/**
+	 * Get the row of a segment.
+	 *
+	 * @param aLabel
+	 *            The label of the segment
+	 *
+	 * @return The row, or -1 if the label is not in the store
+	 */
+	public int getRow(final int aLabel)
+	{
+		return aLabel >= 0 && aLabel < this.labelRows.length ? this.labelRows[aLabel] : -1;
+	}
+
+
+	public int getRowCount()
+	{
+		return this.labels.length;
+	}
+
+
+	/**
+	 * Select the segments of which a measurement lies within a range.
+	 *
+	 * @param aMeasurementName
+	 *            The name of the measurement
+	 * @param aMinimum
+	 *            The lowest value (inclusive)
+	 * @param aMaximum
+	 *            The highest value (inclusive)
+	 *
+	 * @return The labels of the segments with a value within the range (none if no segment has the measurement)
+	 */
+	public BitSet select(final String aMeasurementName, final double aMinimum, final double aMaximum)
+	{
+		final BitSet selection = new BitSet();
+		final double[] column = this.columns.get(aMeasurementName);
+		if (column != null)
+		{
+			for (int row = 0; row < column.length; row++)
+			{
+				if (column[row] >= aMinimum && column[row] <= aMaximum)
+				{
+					selection.set(this.labels[row]);
+				}
+			}
+		}
+		return selection;
+	}
+}
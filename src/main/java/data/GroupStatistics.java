@@ -0,0 +1,349 @@
+package data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The statistics of a group of cells, collected in one pass over the cells: the sizes, the sums of the nucleus and cell measurements and the migration mode accuracy counts. Statistics can be merged, so the
+ * statistics of the groups of an image add up to those of the image and those of images to those of a plate.
+ *
+ * The accuracy is kept as the number of cells per combination of the (automatic) migration mode of their group and their (manual) marker migration mode, from which all the correct, wrong and
+ * missing migration mode counts are derived. Any marker migration mode that is not one of the group migration modes (e.g. a dual identity) is only counted as a disagreement.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class GroupStatistics
+{
+	private static final String[] MODES = { Cell3D_Group.CORE, Cell3D_Group.SINGLE, Cell3D_Group.DUAL, Cell3D_Group.MULTI, Cell3D_Group.NONE };
+	private static final int NONE_INDEX = 4, SINGLE_INDEX = 1, OTHER_INDEX = MODES.length;
+
+	private int cellCount = 0;
+	private double totalNucleusVolume = 0;
+	private double totalCellVolume = 0;
+	private double totalNumberOfVoxels = 0;
+
+	// Per nucleus and cell measurement the sum and the number of nuclei or cells that have the measurement
+	private final Map<String, double[]> nucleusMeasureSums = new HashMap<>();
+	private final Map<String, double[]> cellMeasureSums = new HashMap<>();
+
+	// The number of cells per group migration mode (first index) and marker migration mode (second index)
+	private final int[][] modeCounts = new int[MODES.length + 1][MODES.length + 1];
+
+
+	/**
+	 * Create empty statistics, e.g. to merge the statistics of groups into.
+	 */
+	public GroupStatistics()
+	{
+	}
+
+
+	/**
+	 * Collect the statistics of a group of cells.
+	 *
+	 * @param aCells
+	 *            The cells of the group
+	 * @param aGroupMigrationMode
+	 *            The (automatic) migration mode of the group
+	 */
+	public GroupStatistics(final List<Cell3D> aCells, final String aGroupMigrationMode)
+	{
+		for (final Cell3D cell : aCells)
+		{
+			add(cell, aGroupMigrationMode);
+		}
+	}
+
+
+	/**
+	 * Create a copy of the given statistics.
+	 *
+	 * @param aStatistics
+	 *            The statistics to copy
+	 */
+	public GroupStatistics(final GroupStatistics aStatistics)
+	{
+		merge(aStatistics);
+	}
+
+
+	private static void addMeasurements(final Map<String, double[]> aMeasureSums, final SegmentMeasurements aMeasurements)
+	{
+		final Set<String> measurementNames = aMeasurements != null ? aMeasurements.getMeasurementNames() : null;
+		if (measurementNames != null)
+		{
+			for (final String measurementName : measurementNames)
+			{
+				final Double measurement = aMeasurements.getMeasurement(measurementName);
+				if (measurement != null)
+				{
+					final double[] sum = aMeasureSums.computeIfAbsent(measurementName, aKey -> new double[2]);
+					sum[0] += measurement;
+					sum[1]++;
+				}
+			}
+		}
+	}
+
+
+	private static void mergeMeasurements(final Map<String, double[]> aMeasureSums, final Map<String, double[]> aOtherSums)
+	{
+		for (final Map.Entry<String, double[]> entry : aOtherSums.entrySet())
+		{
+			final double[] sum = aMeasureSums.computeIfAbsent(entry.getKey(), aKey -> new double[2]);
+			sum[0] += entry.getValue()[0];
+			sum[1] += entry.getValue()[1];
+		}
+	}
+
+
+	private static int getModeIndex(final String aMigrationMode)
+	{
+		for (int i = 0; i < MODES.length; i++)
+		{
+			if (MODES[i].equals(aMigrationMode))
+			{
+				return i;
+			}
+		}
+		return OTHER_INDEX;
+	}
+
+
+	/**
+	 * Add a cell to the statistics.
+	 *
+	 * @param aCell
+	 *            The cell
+	 * @param aGroupMigrationMode
+	 *            The (automatic) migration mode of the group of the cell
+	 */
+	public void add(final Cell3D aCell, final String aGroupMigrationMode)
+	{
+		final Nucleus3D nucleus = aCell.getNucleus();
+		this.cellCount++;
+		this.totalNucleusVolume += nucleus.getVolume();
+		this.totalCellVolume += aCell.getVolume();
+		this.totalNumberOfVoxels += nucleus.getNumberOfVoxels();
+
+		addMeasurements(this.nucleusMeasureSums, nucleus.getMeasurements());
+		addMeasurements(this.cellMeasureSums, aCell.getMeasurements());
+
+		this.modeCounts[getModeIndex(aGroupMigrationMode)][getModeIndex(aCell.getMarkerMigrationMode())]++;
+	}
+
+
+	/**
+	 * Add the statistics of another set of cells to these statistics.
+	 *
+	 * @param aStatistics
+	 *            The statistics to add
+	 */
+	public void merge(final GroupStatistics aStatistics)
+	{
+		this.cellCount += aStatistics.cellCount;
+		this.totalNucleusVolume += aStatistics.totalNucleusVolume;
+		this.totalCellVolume += aStatistics.totalCellVolume;
+		this.totalNumberOfVoxels += aStatistics.totalNumberOfVoxels;
+		mergeMeasurements(this.nucleusMeasureSums, aStatistics.nucleusMeasureSums);
+		mergeMeasurements(this.cellMeasureSums, aStatistics.cellMeasureSums);
+		for (int group = 0; group < this.modeCounts.length; group++)
+		{
+			for (int marker = 0; marker < this.modeCounts[group].length; marker++)
+			{
+				this.modeCounts[group][marker] += aStatistics.modeCounts[group][marker];
+			}
+		}
+	}
+
+
+	public int getCellCount()
+	{
+		return this.cellCount;
+	}
+
+
+	/**
+	 * Get the number of cells of which the group migration mode equals the marker migration mode.
+	 *
+	 * @return The number of cells with a correct migration mode
+	 */
+	public int getCorrectCount()
+	{
+		int count = 0;
+		for (int mode = 0; mode < MODES.length; mode++)
+		{
+			count += this.modeCounts[mode][mode];
+		}
+		return count;
+	}
+
+
+	/**
+	 * Get the number of cells with a marker migration mode that have been correctly given that migration mode.
+	 *
+	 * @param aMarkerMigrationMode
+	 *            The marker migration mode
+	 *
+	 * @return The number of correctly identified cells of the marker migration mode
+	 */
+	public int getCorrectCount(final String aMarkerMigrationMode)
+	{
+		final int marker = getModeIndex(aMarkerMigrationMode);
+		return marker == OTHER_INDEX ? 0 : this.modeCounts[marker][marker];
+	}
+
+
+	/**
+	 * Get the mean of a cell measurement over the cells.
+	 *
+	 * @param aMeasureName
+	 *            The name of the measurement
+	 *
+	 * @return The mean, or null if not every cell has the measurement
+	 */
+	public Double getMeanCellMeasure(final String aMeasureName)
+	{
+		final double[] sum = this.cellMeasureSums.get(aMeasureName);
+		if (sum == null || sum[1] < this.cellCount)
+		{
+			return null;
+		}
+		return sum[0] / this.cellCount;
+	}
+
+
+	/**
+	 * Get the mean of a nucleus measurement over the cells.
+	 *
+	 * @param aMeasureName
+	 *            The name of the measurement
+	 *
+	 * @return The mean, or null if not every nucleus has the measurement
+	 */
+	public Double getMeanNucleusMeasure(final String aMeasureName)
+	{
+		final double[] sum = this.nucleusMeasureSums.get(aMeasureName);
+		if (sum == null || sum[1] < this.cellCount)
+		{
+			return null;
+		}
+		return sum[0] / this.cellCount;
+	}
+
+
+	public double getMeanNucleusVolume()
+	{
+		return this.totalNucleusVolume / this.cellCount;
+	}
+
+
+	public double getMeanNumberOfVoxels()
+	{
+		return this.totalNumberOfVoxels / this.cellCount;
+	}
+
+
+	/**
+	 * Get the number of cells with a different marker migration mode in a group that has been given the single-cell migration mode.
+	 *
+	 * @return The number of false positive single cells
+	 */
+	public int getSingleCellFalsePositiveCount()
+	{
+		int count = 0;
+		for (int marker = 0; marker < this.modeCounts[SINGLE_INDEX].length; marker++)
+		{
+			count += marker != SINGLE_INDEX ? this.modeCounts[SINGLE_INDEX][marker] : 0;
+		}
+		return count;
+	}
+
+
+	public double getTotalCellVolume()
+	{
+		return this.totalCellVolume;
+	}
+
+
+	public double getTotalNucleusVolume()
+	{
+		return this.totalNucleusVolume;
+	}
+
+
+	/**
+	 * Get the number of cells with a marker migration mode in a group without a migration mode.
+	 *
+	 * @return The number of cells without a migration mode
+	 */
+	public int getWithoutModeCount()
+	{
+		int count = 0;
+		for (int marker = 0; marker < this.modeCounts[NONE_INDEX].length; marker++)
+		{
+			count += marker != NONE_INDEX ? this.modeCounts[NONE_INDEX][marker] : 0;
+		}
+		return count;
+	}
+
+
+	/**
+	 * Get the number of cells with a marker migration mode in a group without a migration mode.
+	 *
+	 * @param aMarkerMigrationMode
+	 *            The marker migration mode
+	 *
+	 * @return The number of cells of the marker migration mode without a migration mode
+	 */
+	public int getWithoutModeCount(final String aMarkerMigrationMode)
+	{
+		final int marker = getModeIndex(aMarkerMigrationMode);
+		return marker == NONE_INDEX ? 0 : this.modeCounts[NONE_INDEX][marker];
+	}
+
+
+	/**
+	 * Get the number of cells that have been given a different migration mode than their marker migration mode, apart from the false positive single cells.
+	 *
+	 * @return The number of cells with a wrong migration mode
+	 */
+	public int getWrongCount()
+	{
+		int count = 0;
+		for (int group = 0; group < this.modeCounts.length; group++)
+		{
+			if (group != NONE_INDEX && group != SINGLE_INDEX)
+			{
+				for (int marker = 0; marker < this.modeCounts[group].length; marker++)
+				{
+					count += marker != group ? this.modeCounts[group][marker] : 0;
+				}
+			}
+		}
+		return count;
+	}
+
+
+	/**
+	 * Get the number of cells with a marker migration mode that have been given another migration mode.
+	 *
+	 * @param aMarkerMigrationMode
+	 *            The marker migration mode
+	 *
+	 * @return The number of wrongly identified cells of the marker migration mode
+	 */
+	public int getWrongCount(final String aMarkerMigrationMode)
+	{
+		final int marker = getModeIndex(aMarkerMigrationMode);
+		int count = 0;
+		for (int group = 0; group < this.modeCounts.length; group++)
+		{
+			count += group != NONE_INDEX && group != marker ? this.modeCounts[group][marker] : 0;
+		}
+		return count;
+	}
+}
@@ -28,6 +28,9 @@ public class NucleiSegmentationParameters
 	public static final String MI_NOISE = "MarkerImage.Noise";
 	public static final String MI_MINIMUM_LOG_VALUE = "MarkerImage.MinimumLoGValue";
 	public static final String MI_XY_RADIUS = "MarkerImage.XYRadius";
+	public static final String MI_USE_LOG_CACHE = "MarkerImage.UseLoGCache";
+	public static final String MI_MEDIAN_RADIUS_XY = "MarkerImage.MedianRadiusXY";
+	public static final String MI_MEDIAN_RADIUS_Z = "MarkerImage.MedianRadiusZ";
 	public static final String WS_DAPI_DAMS = "MarkerControlledWatershed.DAPIDams";
 	public static final String WS_SEGMENT_ACTIN = "MarkerControlledWatershed.SegmentActin";
 	public static final String WS_ACTIN_DAMS = "MarkerControlledWatershed.ActinDams";
@@ -43,6 +46,16 @@ public class NucleiSegmentationParameters
 	public static final String WS_ATN_FIT_METHOD = "MarkerControlledWatershed.AtnFitMethod";
 	public static final String WS_DO_EXP_THRESHOLD = "MarkerControlledWatershed.DoExpThreshold";
 	public static final String WS_EXPERIMENTAL_THRESHOLD = "MarkerControlledWatershed.ExperimentalThreshold";
+	public static final String WS_MEDIAN_RADIUS_XY = "MarkerControlledWatershed.MedianRadiusXY";
+	public static final String WS_MEDIAN_RADIUS_Z = "MarkerControlledWatershed.MedianRadiusZ";
+	public static final String WS_MEAN_RADIUS_XY = "MarkerControlledWatershed.MeanRadiusXY";
+	public static final String WS_MEAN_RADIUS_Z = "MarkerControlledWatershed.MeanRadiusZ";
+	public static final String WS_CHUNK_DEPTH = "MarkerControlledWatershed.ChunkDepth";
+	public static final String WS_NUCLEUS_DIAMETER = "MarkerControlledWatershed.NucleusDiameter";
+	public static final String WS_SWEEP_FILTERS = "MarkerControlledWatershed.SweepFilters";
+	public static final String WS_SWEEP_THRESHOLDS = "MarkerControlledWatershed.SweepThresholds";
+	public static final String WS_SWEEP_NO_DAMS = "MarkerControlledWatershed.SweepNoDams";
+	public static final String WS_SWEEP_DAMS = "MarkerControlledWatershed.SweepDams";
 	public static final String FE_SAVE_RESULTS = "Feature_Extractor_3D.SaveResults";
 	public static final String FE_MANUAL_MARKERS = "Feature_Extractor_3D.ManualMarkers";
 	public static final String FE_ADDITIONAL_CHANNEL_1 = "Feature_Extractor_3D.AdditionalChannel1";
@@ -54,6 +67,10 @@ public class NucleiSegmentationParameters
 	public static final String FE_ADDITIONAL_CHANNEL_4 = "Feature_Extractor_3D.AdditionalChannel4";
 	public static final String FE_ADDITIONAL_MEASUREMENT_4 = "Feature_Extractor_3D.AdditionalMeasurement4";
 	public static final String FE_MIGRATION_MODE_MEASURE = "Feature_Extractor_3D.MigrationModeMeasure";
+	public static final String FE_COLLECTIVE_DISTANCE = "Feature_Extractor_3D.CollectiveDistance";
+	public static final String FE_NEIGHBOUR_COUNT = "Feature_Extractor_3D.NeighbourCount";
+	public static final String FE_NEIGHBOURHOOD_RADIUS = "Feature_Extractor_3D.NeighbourhoodRadius";
+	public static final String FE_NEIGHBOURHOOD_UNIT = "Feature_Extractor_3D.NeighbourhoodRadiusUnit";
 	public static final String FE_EXCLUDE_SIZE = "Feature_Extractor_3D.ExcludeSize";
 	public static final String FE_EXCLUSION_SIZE = "Feature_Extractor_3D.ExclusionSize";
 	public static final String FE_EXCLUDE_BORDER = "Feature_Extractor_3D.ExcludeBorder";
@@ -67,8 +84,10 @@ public class NucleiSegmentationParameters
 	public static final String MI_MARKERS_MAIN_DIR = "Markers";
 	public static final String MI_MARKER_FILES_DIR = "Marker_Files";
 	public static final String MI_MARKERS_IMAGE_DIR = "Marker_Image";
+	public static final String MI_LOG_CACHE_DIR = "LoG_Cache";
 	public static final String WS_SEGMENTS_DIR = "Segments";
 	public static final String FE_RESULTS_DIR = "Results";
+	public static final String ATTENUATION_DIR = "Attenuation";
 
 	// ---------------------------------------------------------------------------------------------------------------------------------------------------------
 	// -------------------------------------------------- Parameters file name --------------------------------------------------------------------------
@@ -93,6 +112,12 @@ public class NucleiSegmentationParameters
 	}
 
 
+	public static File getAttenuationDir(final File aWorkingDirectory)
+	{
+		return new File(aWorkingDirectory.getPath() + File.separator + NucleiSegmentationParameters.ATTENUATION_DIR);
+	}
+
+
 	public static File getMarkerFilesDir(final File aWorkingDirectory)
 	{
 		return new File(aWorkingDirectory.getPath() + File.separator + NucleiSegmentationParameters.MI_MARKERS_MAIN_DIR + File.separator + NucleiSegmentationParameters.MI_MARKER_FILES_DIR);
@@ -21,6 +21,7 @@ import java.util.Vector;
 
 import data.Cell3D;
 import data.Cell3D_Group;
+import data.FeatureStore;
 import data.Coordinates;
 import data.NucleiSegmentationParameters;
 import data.Nucleus3D;
@@ -91,6 +92,9 @@ public class Feature_Extractor_3D implements PlugIn
 	private File workingDir;
 	private Integer smallNucleusSize;
 	private Integer exclusionZone;
+	private double collectiveDistance;
+	private int neighbourCount;
+	private double neighbourhoodRadius;
 
 
 	/**
@@ -419,7 +423,9 @@ public class Feature_Extractor_3D implements PlugIn
 		if (runMigrationMode)
 		{
 			// TODO check if actin profiling needs to be used as an alternative
-			final MigrationModeAnalyser analysis = new MigrationModeAnalyser(cells, this.dapiImage, segmentationTitle);
+			// Without actin segments no cells touch, so the nuclei within the collective distance are grouped instead
+			final MigrationModeAnalyser analysis = this.actinImage != null ? new MigrationModeAnalyser(cells, this.dapiImage, segmentationTitle)
+					: new MigrationModeAnalyser(cells, this.dapiImage, segmentationTitle, Double.POSITIVE_INFINITY, this.collectiveDistance);
 			migrationSetData = analysis.getMigrationSetData();
 			migrationAccuracyData = analysis.getMigrationAccuracyData();
 			resultsPerGroup = analysis.getResultsPerCellGroup();
@@ -429,7 +435,8 @@ public class Feature_Extractor_3D implements PlugIn
 			}
 		}
 
-		final ResultsTable mergedTable = ResultsTableGenerator.getResultsPerNucleus(cells);
+		final FeatureStore nucleusFeatures = FeatureStore.createNucleusStore(Arrays.asList(cells));
+		final ResultsTable mergedTable = ResultsTableGenerator.getResultsPerNucleus(cells, nucleusFeatures, this.dapiImage.getCalibration(), this.neighbourCount, this.neighbourhoodRadius);
 		if (mergedTable == null)
 		{
 			IJ.log("ERROR: A nulceus segment can not be correlated to an automated nucleus marker");
@@ -445,7 +452,8 @@ public class Feature_Extractor_3D implements PlugIn
 			cellTable.show("Results Per Cell");
 		}
 
-		final ResultsTable resultsSum = ResultsTableGenerator.getImageSummary(migrationSetData, migrationAccuracyData, markerResults, nucleusGroup, listOfSeeds.size(), segmentationTitle);
+		final ResultsTable resultsSum = ResultsTableGenerator.getImageSummary(migrationSetData, migrationAccuracyData, markerResults, nucleusGroup, nucleusFeatures, listOfSeeds.size(),
+				segmentationTitle);
 		resultsSum.show("Results summary");
 
 		if (this.saveImages)
@@ -485,6 +493,10 @@ public class Feature_Extractor_3D implements PlugIn
 		{
 			paramNames.put(NucleiSegmentationParameters.FE_EXCLUSION_SIZE, this.smallNucleusSize + "");
 		}
+		// The neighbour columns of the results per nucleus have fixed headings, so their settings are only recorded here
+		paramNames.put(NucleiSegmentationParameters.FE_NEIGHBOUR_COUNT, this.neighbourCount + "");
+		paramNames.put(NucleiSegmentationParameters.FE_NEIGHBOURHOOD_RADIUS, this.neighbourhoodRadius + "");
+		paramNames.put(NucleiSegmentationParameters.FE_NEIGHBOURHOOD_UNIT, this.dapiImage.getCalibration().getUnits());
 
 		final String[] additionalNames = NucleiSegmentationParameters.getAdditionalChannelParameterNames();
 		int channelNr = 0;
@@ -694,7 +706,8 @@ public class Feature_Extractor_3D implements PlugIn
 
 
 	/**
-	 * Set the parameters used in this feature extraction plugin. This, for now, includes a setting for dam usage and a setting for migration mode analysis if an actin channel is available.
+	 * Set the parameters used in this feature extraction plugin. This, for now, includes a setting for dam usage and a setting for migration mode analysis. Without an actin channel, the migration
+	 * mode analysis groups the cells on the distance between their nuclei.
 	 *
 	 * @return True if action migration mode analysis needs to take place, false otherwise.
 	 */
@@ -707,6 +720,9 @@ public class Feature_Extractor_3D implements PlugIn
 		final int borderZone = (int) Prefs.get(NucleiSegmentationParameters.FE_BORDER_ZONE, 3);
 		final boolean excludeSize = Prefs.get(NucleiSegmentationParameters.FE_EXCLUDE_SIZE, false);
 		final int exclusionSize = (int) Prefs.get(NucleiSegmentationParameters.FE_EXCLUSION_SIZE, 100);
+		final double collectiveDist = Prefs.get(NucleiSegmentationParameters.FE_COLLECTIVE_DISTANCE, 20);
+		final int nrOfNeighbours = (int) Prefs.get(NucleiSegmentationParameters.FE_NEIGHBOUR_COUNT, ResultsTableGenerator.DEFAULT_NEIGHBOUR_COUNT);
+		final double radius = Prefs.get(NucleiSegmentationParameters.FE_NEIGHBOURHOOD_RADIUS, ResultsTableGenerator.DEFAULT_NEIGHBOURHOOD_RADIUS);
 
 		final GenericDialog gd = new GenericDialog("Select available features");
 
@@ -719,6 +735,12 @@ public class Feature_Extractor_3D implements PlugIn
 			gd.addCheckbox("Migration Mode Analysis", migrationModeAnalysis);
 			gd.addCheckbox("Segmented Images (Actin) are calculated with dams", actinDams);
 		}
+		else
+		{
+			gd.addMessage("Settings for the migration mode without actin segments");
+			gd.addCheckbox("Migration Mode Analysis", migrationModeAnalysis);
+			gd.addNumericField("Collective nucleus distance", collectiveDist, 1, 6, this.dapiImage.getCalibration().getUnits());
+		}
 
 		gd.addMessage("Settings for post processing");
 		gd.addCheckbox("Exclude cells with a nucleus touching/crossing any border of the image", excludeBorder);
@@ -726,6 +748,10 @@ public class Feature_Extractor_3D implements PlugIn
 		gd.addCheckbox("Exclude cells with a very small nucleus volume", excludeSize);
 		gd.addNumericField("Size exclusion volume", exclusionSize, 0);
 
+		gd.addMessage("Settings for the neighbour features per nucleus");
+		gd.addNumericField("Number of nearest neighbours", nrOfNeighbours, 0);
+		gd.addNumericField("Neighbourhood radius", radius, 1, 6, this.dapiImage.getCalibration().getUnits());
+
 		gd.showDialog();
 		Boolean migrationMode = null;
 
@@ -740,13 +766,17 @@ public class Feature_Extractor_3D implements PlugIn
 			}
 			else
 			{
-				migrationMode = false;
+				migrationMode = gd.getNextBoolean();
+				this.collectiveDistance = gd.getNextNumber();
+				Prefs.set(NucleiSegmentationParameters.FE_COLLECTIVE_DISTANCE, this.collectiveDistance);
 			}
 
 			this.excludeBorderNuclei = gd.getNextBoolean();
 			this.exclusionZone = Integer.valueOf((int) gd.getNextNumber());
 			this.excludeTooSmallNuclei = gd.getNextBoolean();
 			this.smallNucleusSize = Integer.valueOf((int) gd.getNextNumber());
+			this.neighbourCount = Math.max(1, (int) gd.getNextNumber());
+			this.neighbourhoodRadius = gd.getNextNumber();
 		}
 
 		Prefs.set(NucleiSegmentationParameters.FE_MIGRATION_MODE_MEASURE, migrationMode);
@@ -756,6 +786,8 @@ public class Feature_Extractor_3D implements PlugIn
 		Prefs.set(NucleiSegmentationParameters.FE_BORDER_ZONE, this.exclusionZone);
 		Prefs.set(NucleiSegmentationParameters.FE_EXCLUDE_SIZE, this.excludeTooSmallNuclei);
 		Prefs.set(NucleiSegmentationParameters.FE_EXCLUSION_SIZE, this.smallNucleusSize);
+		Prefs.set(NucleiSegmentationParameters.FE_NEIGHBOUR_COUNT, this.neighbourCount);
+		Prefs.set(NucleiSegmentationParameters.FE_NEIGHBOURHOOD_RADIUS, this.neighbourhoodRadius);
 		Prefs.savePreferences();
 
 		return migrationMode;
@@ -4,7 +4,6 @@ import static featureextractor.Feature_Extractor_3D.*;
 import static migrationmodeanalysis.MigrationModeAnalyser.*;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
@@ -13,10 +12,14 @@ import configuration.Measurement_Selector;
 import data.Cell3D;
 import data.Cell3D_Group;
 import data.Coordinates;
+import data.FeatureStore;
 import data.Nucleus3D;
 import data.SegmentMeasurements;
 import ij.IJ;
+import ij.measure.Calibration;
 import ij.measure.ResultsTable;
+import imageprocessing.ParallelProcessor;
+import migrationmodeanalysis.NucleusGrid;
 
 /**
  * Helper class to generate data summaries (as ResultsTables) for the feature extractor data.
@@ -27,13 +30,20 @@ import ij.measure.ResultsTable;
  */
 public class ResultsTableGenerator
 {
-	private static void addGroupMeasurements(final Cell3D_Group aCells, final String[] aGroupNames, final ResultsTable aResultsTable)
+	/**
+	 * The default settings of the neighbour features per nucleus.
+	 */
+	public static final int DEFAULT_NEIGHBOUR_COUNT = 5;
+	public static final double DEFAULT_NEIGHBOURHOOD_RADIUS = 50;
+
+
+	private static void addGroupMeasurements(final FeatureStore aFeatures, final String[] aGroupNames, final ResultsTable aResultsTable)
 	{
 		for (final String measurementName : aGroupNames)
 		{
 			if (Measurement_Selector.getMeasurementPreference(measurementName))
 			{
-				final Double measurement = aCells.getMeanNucleusMeasure(measurementName);
+				final Double measurement = aFeatures.getMean(measurementName);
 				if (measurement != null)
 				{
 					aResultsTable.addValue("nucleus " + measurementName, measurement);
@@ -43,6 +53,21 @@ public class ResultsTableGenerator
 	}
 
 
+	/**
+	 * Add the selected measurements of a store as columns to a table with the same rows.
+	 */
+	private static void addStoreColumns(final FeatureStore aFeatures, final String[] aMeasurementNames, final ResultsTable aResultsTable)
+	{
+		for (final String measurementName : aMeasurementNames)
+		{
+			if (Measurement_Selector.getMeasurementPreference(measurementName))
+			{
+				aFeatures.addColumnToTable(aResultsTable, measurementName, measurementName);
+			}
+		}
+	}
+
+
 	private static void addGroupMeasurements(final SegmentMeasurements aMeasurements, final String[] aMeasurementNames, final ResultsTable aResultsTable)
 	{
 		addGroupMeasurements(aMeasurements, aMeasurementNames, "", aResultsTable);
@@ -76,13 +101,15 @@ public class ResultsTableGenerator
 	 *            How well did the segmentation go when compared to a manual nucleus identification
 	 * @param aCells
 	 *            The identified cells as Cell3D
+	 * @param aNucleusFeatures
+	 *            The store of the nucleus measurements of the cells
 	 * @param aNumberOfSeeds
 	 *            The number of seeds that was detected
 	 * @param aTitle
 	 *            The title of the image to add to the summary line
 	 */
 	public static ResultsTable getImageSummary(final double[][] aMigrationSetData, final double[] aMigrationAccuracyData, final int[] aMarkerAccuracyData, final Cell3D_Group aCells,
-			final int aNumberOfSeeds, final String aTitle)
+			final FeatureStore aNucleusFeatures, final int aNumberOfSeeds, final String aTitle)
 	{
 		final ResultsTable resultsTable = new ResultsTable();
 		resultsTable.incrementCounter(); // Fill the new table
@@ -190,7 +217,7 @@ public class ResultsTableGenerator
 		resultsTable.addValue("Mean volume", aCells.getMeanVolume()); // Add the mean area value of the image
 		resultsTable.addValue("Mean number of Voxels", aCells.getMeanNumberOfVoxels());
 
-		addGroupMeasurements(aCells, SegmentMeasurements.STANDARD_GROUP, resultsTable);
+		addGroupMeasurements(aNucleusFeatures, SegmentMeasurements.STANDARD_GROUP, resultsTable);
 
 		final List<Double> extraChannelsMeans = aCells.getMeanExtraChannels();
 		if (extraChannelsMeans != null)
@@ -203,8 +230,8 @@ public class ResultsTableGenerator
 			}
 		}
 
-		addGroupMeasurements(aCells, SegmentMeasurements.MORPHOLIBJ_GROUP, resultsTable);
-		addGroupMeasurements(aCells, SegmentMeasurements.MCIB3D_GROUP, resultsTable);
+		addGroupMeasurements(aNucleusFeatures, SegmentMeasurements.MORPHOLIBJ_GROUP, resultsTable);
+		addGroupMeasurements(aNucleusFeatures, SegmentMeasurements.MCIB3D_GROUP, resultsTable);
 
 		resultsTable.addValue("Total seeds", aNumberOfSeeds);
 
@@ -336,27 +363,67 @@ public class ResultsTableGenerator
 
 
 	/**
-	 * Get all the measurements that are available on each nucleus.
+	 * Get all the measurements that are available on each nucleus, including the distances to the nearest other nuclei (between the seeds), the number of nuclei within a radius and a local density
+	 * estimate based on the distance to the k-th nearest nucleus (k divided by the volume of the sphere that reaches it). The neighbours are found with a grid over the nucleus seeds, so this does not
+	 * compare all pairs of nuclei.
 	 *
 	 * @param aCells
 	 *            The list of cells (containing the measured nuclei)
+	 * @param aNucleusFeatures
+	 *            The store of the nucleus measurements, with the cells in the same order
+	 * @param aCalibration
+	 *            The calibration of the image, for the distances between the nuclei
+	 * @param aNrOfNeighbours
+	 *            The number of nearest nuclei (k) of which the distance is given
+	 * @param aNeighbourhoodRadius
+	 *            The (calibrated) radius within which the other nuclei are counted. The counts are given in the column 'Neighbours within radius'; the radius is written to the log and stored with the used parameters
 	 *
 	 * @return A ResultsTable with all the nuclei measurements (one line per nucleus). May return null if a nucleus without a seed has been found (error).
 	 */
-	public static ResultsTable getResultsPerNucleus(final Cell3D[] aCells)
+	public static ResultsTable getResultsPerNucleus(final Cell3D[] aCells, final FeatureStore aNucleusFeatures, final Calibration aCalibration, final int aNrOfNeighbours,
+			final double aNeighbourhoodRadius)
 	{
-		final ResultsTable resultsTable = new ResultsTable();
 		for (final Cell3D cell : aCells)
 		{
-			final Nucleus3D nucleus = cell.getNucleus();
-			resultsTable.incrementCounter();
-			resultsTable.addValue("Label", nucleus.getLabel());
-			final Coordinates seed = nucleus.getSeed();
-			if (seed == null)
+			if (cell.getNucleus().getSeed() == null)
 			{
 				// A nucleus without a seed should not happen. Just return without any results!
 				return null;
 			}
+		}
+
+		// The neighbour features, per nucleus
+		final NucleusGrid grid = new NucleusGrid(Arrays.asList(aCells), aCalibration, NucleusGrid.SEED, aNeighbourhoodRadius);
+		final double[][] neighbourDistances = new double[aCells.length][aNrOfNeighbours];
+		final int[] neighbourCounts = new int[aCells.length];
+		final double[] densities = new double[aCells.length];
+		ParallelProcessor.forRange(0, aCells.length, (aStart, aEnd) -> {
+			for (int i = aStart; i < aEnd; i++)
+			{
+				final int[] nearest = grid.getNearest(i, aNrOfNeighbours);
+				Arrays.fill(neighbourDistances[i], Double.NaN);
+				for (int n = 0; n < nearest.length; n++)
+				{
+					neighbourDistances[i][n] = grid.getDistance(i, nearest[n]);
+				}
+				neighbourCounts[i] = grid.getWithinRadius(i, aNeighbourhoodRadius).length;
+				final double kthDistance = nearest.length == aNrOfNeighbours && aNrOfNeighbours > 0 ? neighbourDistances[i][aNrOfNeighbours - 1] : Double.NaN;
+				densities[i] = kthDistance > 0 ? aNrOfNeighbours / ((4.0 / 3.0) * Math.PI * kthDistance * kthDistance * kthDistance) : Double.NaN;
+			}
+		});
+
+		// The column heading does not depend on the radius, so report the radius that has been used here
+		final String units = aCalibration != null ? aCalibration.getUnits() : "pixels";
+		IJ.log("Neighbours within radius: counted within " + aNeighbourhoodRadius + " " + units + " of each nucleus seed");
+
+		final ResultsTable resultsTable = new ResultsTable();
+		for (int i = 0; i < aCells.length; i++)
+		{
+			final Cell3D cell = aCells[i];
+			final Nucleus3D nucleus = cell.getNucleus();
+			resultsTable.incrementCounter();
+			resultsTable.addValue("Label", nucleus.getLabel());
+			final Coordinates seed = nucleus.getSeed();
 			resultsTable.addValue("XCordinate", seed.getXcoordinate());
 			resultsTable.addValue("YCordinate", seed.getYcoordinate());
 			resultsTable.addValue("ZCordinate", seed.getZcoordinate());
@@ -365,21 +432,31 @@ public class ResultsTableGenerator
 			resultsTable.addValue("Border nucleus", nucleus.isBorderNucleus() + "");
 			resultsTable.addValue("Distance to centre", nucleus.getDistanceToCentre() + "");
 			resultsTable.addValue("Distance to spheroid border", nucleus.getDistanceToCore() + "");
+			for (int n = 0; n < aNrOfNeighbours; n++)
+			{
+				resultsTable.addValue("Distance to neighbour " + (n + 1), neighbourDistances[i][n]);
+			}
+			resultsTable.addValue("Neighbours within radius", neighbourCounts[i]);
+			resultsTable.addValue("Local density", densities[i]);
 
 			resultsTable.addValue("Manual migration mode", cell.getMarkerMigrationMode());
+		}
 
-			// Separate loop for standard measurements to enforce order
-			final SegmentMeasurements measurements = nucleus.getMeasurements();
-			addGroupMeasurements(measurements, SegmentMeasurements.STANDARD_GROUP_NUCLEUS, resultsTable);
-			resultsTable.addValue("NumberOfVoxels", nucleus.getNumberOfVoxels());
-			resultsTable.addValue("Volume", nucleus.getVolume());
-
-			// Do the rest of the measurements as well, just remove the previous standard ones.
-			final List<String> restOfNames = new ArrayList<>();
-			restOfNames.addAll(measurements.getMeasurementNames());
-			restOfNames.removeAll(Arrays.asList(SegmentMeasurements.STANDARD_GROUP_NUCLEUS));
-			addGroupMeasurements(measurements, restOfNames.toArray(new String[restOfNames.size()]), resultsTable);
+		// The measurements are added per column, the standard measurements first to enforce the order
+		addStoreColumns(aNucleusFeatures, SegmentMeasurements.STANDARD_GROUP_NUCLEUS, resultsTable);
+		for (int i = 0; i < aCells.length; i++)
+		{
+			resultsTable.setValue("NumberOfVoxels", i, aCells[i].getNucleus().getNumberOfVoxels());
 		}
+		for (int i = 0; i < aCells.length; i++)
+		{
+			resultsTable.setValue("Volume", i, aCells[i].getNucleus().getVolume());
+		}
+
+		// Do the rest of the measurements as well, just remove the previous standard ones.
+		final List<String> restOfNames = aNucleusFeatures.getColumnNames();
+		restOfNames.removeAll(Arrays.asList(SegmentMeasurements.STANDARD_GROUP_NUCLEUS));
+		addStoreColumns(aNucleusFeatures, restOfNames.toArray(new String[restOfNames.size()]), resultsTable);
 
 		return resultsTable;
 	}
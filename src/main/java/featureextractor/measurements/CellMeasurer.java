@@ -514,19 +514,17 @@ public class CellMeasurer
 
 			// Do an erode to reduce the actin segment thickness
 			final ImagePlus surroundingsImage = aActinLabelImage.duplicate();
-			surroundingsImage.show();
-			IJ.run("Max...", "value=1 stack");
-			IJ.run("Multiply...", "value=255 stack");
-			IJ.run("8-bit");
-			IJ.run("Max...", "value=1 stack");
-			IJ.run("Multiply...", "value=255.000 stack");
+			IJ.run(surroundingsImage, "Max...", "value=1 stack");
+			IJ.run(surroundingsImage, "Multiply...", "value=255 stack");
+			IJ.run(surroundingsImage, "8-bit", "");
+			IJ.run(surroundingsImage, "Max...", "value=1 stack");
+			IJ.run(surroundingsImage, "Multiply...", "value=255.000 stack");
 			Toolbar.setBackgroundColor(Color.BLACK);
-			IJ.run("Erode", "stack");
-			IJ.run("16-bit");
-			IJ.run("Max...", "value=1 stack");
+			IJ.run(surroundingsImage, "Erode", "stack");
+			IJ.run(surroundingsImage, "16-bit", "");
+			IJ.run(surroundingsImage, "Max...", "value=1 stack");
 			final ImageCalculator calc = new ImageCalculator();
 			calculImage = calc.run("Multiply create stack", surroundingsImage, aActinLabelImage);
-			calculImage.show();
 
 			surroundingsImage.changes = false;
 			surroundingsImage.close();
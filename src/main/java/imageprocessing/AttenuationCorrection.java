@@ -0,0 +1,201 @@
+package imageprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import data.NucleiSegmentationParameters;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import utils.AttenuationAdjuster;
+
+/**
+ * Corrects an image for the attenuation of the intensity with the depth, with a cache of the fitted correction in the working directory. Fitting the intensity versus depth curve is the expensive
+ * part of the correction, so the fitted per-slice adjustments are stored, keyed by the image, its dimensions, the channel and the fit parameters. The next plugin that corrects the same channel of the
+ * same image with the same parameters (e.g. the watershed after the marker image creator) reloads and applies the adjustments instead of refitting them.
+ *
+ * As different images (or a re-cropped version of an image) can have the same name and dimensions, the cache file also contains a checksum of the voxels of the uncorrected channel. Cached
+ * adjustments are only used if the dimensions and the checksum match.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class AttenuationCorrection
+{
+	/**
+	 * The default settings of the correction, as used by the marker image creator and offered by the watershed.
+	 */
+	public static final double DEFAULT_PERCENTILE = 90;
+	public static final int DEFAULT_STANDARD_SLICE = 10;
+	public static final int DEFAULT_START_INTENSITY = 3;
+	public static final int DEFAULT_END_INTENSITY = 255;
+
+	// The first line of a cache file, followed by the dimensions and the checksum of the image
+	private static final String CACHE_HEADER = "#";
+
+
+	/**
+	 * Correct a single channel image for the attenuation, with the cached adjustments if they exist and otherwise with newly fitted adjustments that are then stored in the cache.
+	 *
+	 * @param aImage
+	 *            The image of the channel to correct. The image is changed.
+	 * @param aWorkingDirectory
+	 *            The working directory that contains the cache, or null to not use the cache
+	 * @param aImageName
+	 *            The name of the original image, which identifies the cached adjustments
+	 * @param aChannel
+	 *            The channel of the original image that aImage contains
+	 * @param aPercentile
+	 *            The foreground percentile of the fit
+	 * @param aStandardSlice
+	 *            The slice to which the other slices are adjusted
+	 * @param aStartIntensity
+	 *            The lowest intensity taken into account in the fit
+	 * @param aEndIntensity
+	 *            The highest intensity taken into account in the fit
+	 * @param aFitMethod
+	 *            The CurveFitter method of the fit
+	 *
+	 * @return The adjustments per slice, which can be used to correct other channels of the same image in the same way
+	 */
+	public static List<Double> correct(final ImagePlus aImage, final File aWorkingDirectory, final String aImageName, final int aChannel, final double aPercentile, final int aStandardSlice,
+			final int aStartIntensity, final int aEndIntensity, final int aFitMethod)
+	{
+		final String dimensions = aImage.getWidth() + "x" + aImage.getHeight() + "x" + aImage.getNSlices();
+		final File cacheFile = aWorkingDirectory == null ? null
+				: new File(NucleiSegmentationParameters.getAttenuationDir(aWorkingDirectory).getPath() + File.separator + aImageName + "_" + dimensions + "_C" + Math.max(1, aChannel) + "_P"
+						+ aPercentile + "_S" + aStandardSlice + "_I" + aStartIntensity + "-" + aEndIntensity + "_F" + aFitMethod + ".txt");
+		// The identity of the uncorrected voxels, so the adjustments of another image with the same name and dimensions are not used
+		final String imageKey = cacheFile == null ? null : CACHE_HEADER + " " + dimensions + " " + Long.toHexString(getChecksum(aImage));
+
+		if (cacheFile != null && cacheFile.exists())
+		{
+			try
+			{
+				final List<Double> adjustments = readAdjustments(cacheFile, imageKey);
+				if (adjustments == null)
+				{
+					IJ.log("   The cached attenuation correction " + cacheFile.getName() + " belongs to a different image and is fitted again");
+				}
+				else if (adjustments.size() == aImage.getNSlices())
+				{
+					IJ.log("   Using the cached attenuation correction " + cacheFile.getName());
+					AttenuationAdjuster.adjustAttenuation(aImage, 1, aPercentile, aStandardSlice, aStartIntensity, 1, aEndIntensity, aFitMethod, adjustments);
+					return adjustments;
+				}
+			}
+			catch (final IOException | NumberFormatException e)
+			{
+				IJ.log("   Could not read the cached attenuation correction: " + e.getMessage());
+			}
+		}
+
+		final List<Double> adjustments = AttenuationAdjuster.adjustAttenuation(aImage, 1, aPercentile, aStandardSlice, aStartIntensity, 1, aEndIntensity, aFitMethod, null);
+		if (cacheFile != null && adjustments != null)
+		{
+			try
+			{
+				writeAdjustments(cacheFile, imageKey, adjustments);
+			}
+			catch (final IOException ioe)
+			{
+				IJ.log("   Could not cache the attenuation correction: " + ioe.getMessage());
+			}
+		}
+		return adjustments;
+	}
+
+
+	/**
+	 * Calculate a checksum of all voxel values of a (single channel, single frame) image.
+	 *
+	 * @param aImage
+	 *            The image
+	 *
+	 * @return The checksum, which is the same for images with the same voxel values
+	 */
+	private static long getChecksum(final ImagePlus aImage)
+	{
+		final ImageStack stack = aImage.getImageStack();
+		final long[] sliceChecksums = new long[aImage.getNSlices()];
+		ParallelProcessor.forRange(0, sliceChecksums.length, (aStart, aEnd) -> {
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final ImageProcessor proc = stack.getProcessor(z + 1);
+				long checksum = 0;
+				for (int i = 0; i < proc.getPixelCount(); i++)
+				{
+					checksum = (checksum * 31) + Float.floatToIntBits(proc.getf(i));
+				}
+				sliceChecksums[z] = checksum;
+			}
+		});
+
+		long checksum = 0;
+		for (final long sliceChecksum : sliceChecksums)
+		{
+			checksum = (checksum * 1_000_003) ^ sliceChecksum;
+		}
+		return checksum;
+	}
+
+
+	/**
+	 * Read the cached adjustments.
+	 *
+	 * @return The adjustments, or null if the cache file has not been written for the image with the given key
+	 */
+	private static List<Double> readAdjustments(final File aFile, final String aImageKey) throws IOException
+	{
+		final List<Double> adjustments = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(aFile)))
+		{
+			if (!aImageKey.equals(reader.readLine()))
+			{
+				return null;
+			}
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (!line.trim().isEmpty())
+				{
+					adjustments.add(Double.parseDouble(line.trim()));
+				}
+			}
+		}
+		return adjustments;
+	}
+
+
+	private static void writeAdjustments(final File aFile, final String aImageKey, final List<Double> aAdjustments) throws IOException
+	{
+		final File cacheDir = aFile.getParentFile();
+		if (!cacheDir.exists())
+		{
+			cacheDir.mkdir();
+		}
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(aFile)))
+		{
+			writer.write(aImageKey + "\n");
+			for (final Double adjustment : aAdjustments)
+			{
+				writer.write(adjustment + "\n");
+			}
+		}
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private AttenuationCorrection()
+	{
+	}
+}
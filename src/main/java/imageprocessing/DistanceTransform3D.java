@@ -0,0 +1,246 @@
+package imageprocessing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * An exact Euclidean distance transform (EDT) in 3D, following Felzenszwalb and Huttenlocher. For each foreground voxel the distance to the nearest background voxel is calculated. The transform is
+ * separable: the squared distances are calculated along x, then y and then z, each time as the lower envelope of the parabolas of the previous pass. Each pass takes linear time whatever the shape of
+ * the objects. The voxel size is taken into account, so anisotropic images get calibrated distances.
+ *
+ * The x and y passes run in parallel over slices and the z pass over rows, with the ParallelProcessor.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class DistanceTransform3D
+{
+	// The squared distance of a voxel without any background in reach
+	private static final float INFINITE = Float.MAX_VALUE;
+
+
+	/**
+	 * Calculate the distance map of a mask image.
+	 *
+	 * @param aMask
+	 *            The mask image: all voxels with a value larger than 0 are foreground. Voxels outside of the image are not background.
+	 * @param aInverse
+	 *            Negate the distances, so the centres of the objects have the lowest values (as is needed for a watershed)
+	 *
+	 * @return A 32-bit image with for each foreground voxel the (calibrated) distance to the nearest background voxel and 0 for the background. The calibration is the one of the mask.
+	 */
+	public static ImagePlus distanceMap(final ImagePlus aMask, final boolean aInverse)
+	{
+		final int width = aMask.getWidth();
+		final int height = aMask.getHeight();
+		final int depth = aMask.getNSlices();
+		final int size = width * height;
+		final Calibration calibration = aMask.getCalibration();
+
+		final ImageStack maskStack = aMask.getImageStack();
+		final float[][] distances = new float[depth][];
+		for (int z = 0; z < depth; z++)
+		{
+			final ImageProcessor maskProc = maskStack.getProcessor(z + 1);
+			distances[z] = new float[size];
+			for (int i = 0; i < size; i++)
+			{
+				distances[z][i] = maskProc.getf(i) > 0 ? INFINITE : 0;
+			}
+		}
+
+		transform(distances, width, height, (float) calibration.pixelWidth, (float) calibration.pixelHeight, (float) calibration.pixelDepth);
+
+		// From squared to real distances
+		final float sign = aInverse ? -1 : 1;
+		ParallelProcessor.forRange(0, depth, (aStart, aEnd) -> {
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final float[] slice = distances[z];
+				for (int i = 0; i < size; i++)
+				{
+					slice[i] = sign * (float) Math.sqrt(slice[i]);
+				}
+			}
+		});
+
+		final ImageStack result = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++)
+		{
+			result.addSlice(maskStack.getSliceLabel(z + 1), distances[z]);
+		}
+		final ImagePlus distanceImage = new ImagePlus("EDT_" + aMask.getTitle(), result);
+		distanceImage.setCalibration(calibration.copy());
+		return distanceImage;
+	}
+
+
+	/**
+	 * Calculate the squared distance transform in place.
+	 *
+	 * @param aVolume
+	 *            The volume as an array of slices of width * height values: 0 for the background and INFINITE for the foreground. Is replaced by the squared distances.
+	 * @param aWidth
+	 *            The width of the volume
+	 * @param aHeight
+	 *            The height of the volume
+	 * @param aSpacingX
+	 *            The voxel size in x
+	 * @param aSpacingY
+	 *            The voxel size in y
+	 * @param aSpacingZ
+	 *            The voxel size in z
+	 */
+	private static void transform(final float[][] aVolume, final int aWidth, final int aHeight, final float aSpacingX, final float aSpacingY, final float aSpacingZ)
+	{
+		final int depth = aVolume.length;
+
+		// The x and y passes work per slice
+		ParallelProcessor.forRange(0, depth, (aStart, aEnd) -> {
+			final LowerEnvelope lineX = new LowerEnvelope(aWidth, aSpacingX);
+			final LowerEnvelope lineY = new LowerEnvelope(aHeight, aSpacingY);
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final float[] slice = aVolume[z];
+				for (int y = 0; y < aHeight; y++)
+				{
+					final int offset = y * aWidth;
+					System.arraycopy(slice, offset, lineX.line, 0, aWidth);
+					lineX.compute();
+					System.arraycopy(lineX.line, 0, slice, offset, aWidth);
+				}
+				for (int x = 0; x < aWidth; x++)
+				{
+					for (int y = 0; y < aHeight; y++)
+					{
+						lineY.line[y] = slice[x + (y * aWidth)];
+					}
+					lineY.compute();
+					for (int y = 0; y < aHeight; y++)
+					{
+						slice[x + (y * aWidth)] = lineY.line[y];
+					}
+				}
+			}
+		});
+
+		// The z pass works per block of rows
+		if (depth > 1)
+		{
+			ParallelProcessor.forRange(0, aHeight, (aStart, aEnd) -> {
+				final LowerEnvelope lineZ = new LowerEnvelope(depth, aSpacingZ);
+				for (int i = aStart * aWidth; i < aEnd * aWidth; i++)
+				{
+					for (int z = 0; z < depth; z++)
+					{
+						lineZ.line[z] = aVolume[z][i];
+					}
+					lineZ.compute();
+					for (int z = 0; z < depth; z++)
+					{
+						aVolume[z][i] = lineZ.line[z];
+					}
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * The one-dimensional squared distance transform of Felzenszwalb and Huttenlocher: out(p) = min over q of (spacing * (p - q))^2 + in(q). The minimum is the lower envelope of the parabolas rooted
+	 * at each q, which is built in one pass and read out in a second pass.
+	 */
+	private static class LowerEnvelope
+	{
+		// The values of the line, replaced by the result after compute()
+		private final float[] line;
+
+		private final int length;
+		private final double spacingSquared;
+		private final float[] input;
+
+		// The positions of the parabolas in the envelope and the boundaries between them
+		private final int[] roots;
+		private final double[] boundaries;
+
+
+		private LowerEnvelope(final int aLength, final float aSpacing)
+		{
+			this.length = aLength;
+			this.spacingSquared = (double) aSpacing * aSpacing;
+			this.line = new float[aLength];
+			this.input = new float[aLength];
+			this.roots = new int[aLength];
+			this.boundaries = new double[aLength + 1];
+		}
+
+
+		private void compute()
+		{
+			System.arraycopy(this.line, 0, this.input, 0, this.length);
+
+			// Build the lower envelope of the parabolas of all finite values
+			int parabolas = -1;
+			for (int q = 0; q < this.length; q++)
+			{
+				if (this.input[q] == INFINITE)
+				{
+					continue;
+				}
+
+				double intersection = Double.NEGATIVE_INFINITY;
+				while (parabolas >= 0)
+				{
+					intersection = getIntersection(this.roots[parabolas], q);
+					if (intersection > this.boundaries[parabolas])
+					{
+						break;
+					}
+					parabolas--;
+				}
+				parabolas++;
+				this.roots[parabolas] = q;
+				this.boundaries[parabolas] = parabolas == 0 ? Double.NEGATIVE_INFINITY : intersection;
+				this.boundaries[parabolas + 1] = Double.POSITIVE_INFINITY;
+			}
+
+			if (parabolas < 0)
+			{
+				return; // No background in reach, so all stays infinite
+			}
+
+			// Read out the envelope
+			int current = 0;
+			for (int p = 0; p < this.length; p++)
+			{
+				while (this.boundaries[current + 1] < p)
+				{
+					current++;
+				}
+				final int root = this.roots[current];
+				this.line[p] = (float) ((this.spacingSquared * (p - root) * (p - root)) + this.input[root]);
+			}
+		}
+
+
+		/**
+		 * Get the position where the parabola rooted at aFirst and the one at aSecond (aFirst < aSecond) intersect.
+		 */
+		private double getIntersection(final int aFirst, final int aSecond)
+		{
+			final double first = this.input[aFirst] + (this.spacingSquared * aFirst * aFirst);
+			final double second = this.input[aSecond] + (this.spacingSquared * aSecond * aSecond);
+			return (second - first) / (2 * this.spacingSquared * (aSecond - aFirst));
+		}
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private DistanceTransform3D()
+	{
+	}
+}
@@ -0,0 +1,164 @@
+package imageprocessing;
+
+import java.util.Arrays;
+
+/**
+ * A 3D maximum filter over an (anisotropic) box neighbourhood. The filter is separable: a running maximum is done along x, y and z in turn. Each running maximum uses the van Herk/Gil-Werman
+ * algorithm, which needs about three comparisons per voxel whatever the radius. The passes are run in parallel over slabs of the volume with the ParallelProcessor.
+ *
+ * Voxels outside the volume are ignored (they count as minus infinity).
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class MaximumFilter3D
+{
+	/**
+	 * Calculate the maximum of each box neighbourhood of a volume.
+	 *
+	 * @param aInput
+	 *            The input volume as an array of slices. Each slice is an array of width * height values. The input is not changed.
+	 * @param aWidth
+	 *            The width of the volume
+	 * @param aHeight
+	 *            The height of the volume
+	 * @param aRadiusX
+	 *            The radius of the box in x (in pixels)
+	 * @param aRadiusY
+	 *            The radius of the box in y (in pixels)
+	 * @param aRadiusZ
+	 *            The radius of the box in z (in slices)
+	 *
+	 * @return A new volume, as an array of slices, containing for each voxel the maximum of the box of (2 * radius + 1) voxels in each dimension around it
+	 */
+	public static float[][] filter(final float[][] aInput, final int aWidth, final int aHeight, final int aRadiusX, final int aRadiusY, final int aRadiusZ)
+	{
+		final int depth = aInput.length;
+		final int size = aWidth * aHeight;
+		final float[][] result = new float[depth][size];
+
+		// The x and y passes work per slice
+		ParallelProcessor.forRange(0, depth, (aStart, aEnd) -> {
+			final RunningMaximum lineX = new RunningMaximum(aWidth, aRadiusX);
+			final RunningMaximum lineY = new RunningMaximum(aHeight, aRadiusY);
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final float[] inSlice = aInput[z];
+				final float[] outSlice = result[z];
+				for (int y = 0; y < aHeight; y++)
+				{
+					final int offset = y * aWidth;
+					System.arraycopy(inSlice, offset, lineX.line, 0, aWidth);
+					lineX.compute();
+					System.arraycopy(lineX.line, 0, outSlice, offset, aWidth);
+				}
+				for (int x = 0; x < aWidth; x++)
+				{
+					for (int y = 0; y < aHeight; y++)
+					{
+						lineY.line[y] = outSlice[x + (y * aWidth)];
+					}
+					lineY.compute();
+					for (int y = 0; y < aHeight; y++)
+					{
+						outSlice[x + (y * aWidth)] = lineY.line[y];
+					}
+				}
+			}
+		});
+
+		// The z pass works per block of rows
+		if (aRadiusZ > 0 && depth > 1)
+		{
+			ParallelProcessor.forRange(0, aHeight, (aStart, aEnd) -> {
+				final RunningMaximum lineZ = new RunningMaximum(depth, aRadiusZ);
+				for (int i = aStart * aWidth; i < aEnd * aWidth; i++)
+				{
+					for (int z = 0; z < depth; z++)
+					{
+						lineZ.line[z] = result[z][i];
+					}
+					lineZ.compute();
+					for (int z = 0; z < depth; z++)
+					{
+						result[z][i] = lineZ.line[z];
+					}
+				}
+			});
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * The van Herk/Gil-Werman running maximum over one line. The line is split into blocks of the window size. Within each block a prefix maximum (forward) and suffix maximum (backward) are
+	 * calculated, after which the maximum of each window is the maximum of one suffix and one prefix value.
+	 */
+	private static class RunningMaximum
+	{
+		// The values of the line, replaced by the result after compute()
+		private final float[] line;
+
+		private final int length;
+		private final int radius;
+		private final int window;
+		private final float[] prefix;
+		private final float[] suffix;
+
+
+		private RunningMaximum(final int aLength, final int aRadius)
+		{
+			this.length = aLength;
+			this.radius = aRadius;
+			this.window = (2 * aRadius) + 1;
+			this.line = new float[aLength];
+
+			// Padded with the radius on both sides and rounded up to whole blocks
+			final int paddedLength = (((aLength + (2 * aRadius)) + this.window - 1) / this.window) * this.window;
+			this.prefix = new float[paddedLength];
+			this.suffix = new float[paddedLength];
+		}
+
+
+		private void compute()
+		{
+			if (this.radius <= 0)
+			{
+				return;
+			}
+
+			final int paddedLength = this.prefix.length;
+			Arrays.fill(this.prefix, Float.NEGATIVE_INFINITY);
+			System.arraycopy(this.line, 0, this.prefix, this.radius, this.length);
+			System.arraycopy(this.prefix, 0, this.suffix, 0, paddedLength);
+
+			for (int blockStart = 0; blockStart < paddedLength; blockStart += this.window)
+			{
+				final int blockEnd = blockStart + this.window - 1;
+				for (int i = blockStart + 1; i <= blockEnd; i++)
+				{
+					this.prefix[i] = Math.max(this.prefix[i], this.prefix[i - 1]);
+				}
+				for (int i = blockEnd - 1; i >= blockStart; i--)
+				{
+					this.suffix[i] = Math.max(this.suffix[i], this.suffix[i + 1]);
+				}
+			}
+
+			// The window of output i covers the padded indices i .. i + window - 1
+			for (int i = 0; i < this.length; i++)
+			{
+				this.line[i] = Math.max(this.suffix[i], this.prefix[i + this.window - 1]);
+			}
+		}
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private MaximumFilter3D()
+	{
+	}
+}
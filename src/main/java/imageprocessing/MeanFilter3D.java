@@ -0,0 +1,193 @@
+package imageprocessing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A 3D mean filter over an (anisotropic) box neighbourhood. The filter is separable: the mean is taken along x, y and z in turn. Each pass keeps a running sum along the line, adding the value
+ * entering the box and subtracting the one leaving it, so the cost does not depend on the radii. The passes are run in parallel over slabs of the volume with the ParallelProcessor.
+ *
+ * Voxels outside the image are left out of the neighbourhood, so near the borders the mean is taken over the part of the box within the image.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class MeanFilter3D
+{
+	/**
+	 * The default radius, equal to the radius used for the ImageJ Mean 3D filter before.
+	 */
+	public static final double DEFAULT_RADIUS = 3;
+
+
+	/**
+	 * Apply the mean filter to an image.
+	 *
+	 * @param aImage
+	 *            The (single channel, single frame) image to filter. The image is not changed.
+	 * @param aRadiusXY
+	 *            The radius of the box in x and y (in pixels, rounded down)
+	 * @param aRadiusZ
+	 *            The radius of the box in z (in slices, rounded down)
+	 *
+	 * @return A new image of the same type with the mean values and the calibration of the input image
+	 */
+	public static ImagePlus filter(final ImagePlus aImage, final double aRadiusXY, final double aRadiusZ)
+	{
+		final int width = aImage.getWidth();
+		final int height = aImage.getHeight();
+		final int depth = aImage.getNSlices();
+		final int size = width * height;
+		final int radiusXY = (int) aRadiusXY;
+		final int radiusZ = (int) aRadiusZ;
+		final ImageStack stack = aImage.getImageStack();
+
+		final float[][] volume = new float[depth][size];
+		for (int z = 0; z < depth; z++)
+		{
+			final ImageProcessor proc = stack.getProcessor(z + 1);
+			for (int i = 0; i < size; i++)
+			{
+				volume[z][i] = proc.getf(i);
+			}
+		}
+
+		// The x and y passes work per slice
+		ParallelProcessor.forRange(0, depth, (aStart, aEnd) -> {
+			final RunningMean lineX = new RunningMean(width, radiusXY);
+			final RunningMean lineY = new RunningMean(height, radiusXY);
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final float[] slice = volume[z];
+				for (int y = 0; y < height; y++)
+				{
+					final int offset = y * width;
+					System.arraycopy(slice, offset, lineX.line, 0, width);
+					lineX.compute();
+					System.arraycopy(lineX.line, 0, slice, offset, width);
+				}
+				for (int x = 0; x < width; x++)
+				{
+					for (int y = 0; y < height; y++)
+					{
+						lineY.line[y] = slice[x + (y * width)];
+					}
+					lineY.compute();
+					for (int y = 0; y < height; y++)
+					{
+						slice[x + (y * width)] = lineY.line[y];
+					}
+				}
+			}
+		});
+
+		// The z pass works per block of rows
+		if (radiusZ > 0 && depth > 1)
+		{
+			ParallelProcessor.forRange(0, height, (aStart, aEnd) -> {
+				final RunningMean lineZ = new RunningMean(depth, radiusZ);
+				for (int i = aStart * width; i < aEnd * width; i++)
+				{
+					for (int z = 0; z < depth; z++)
+					{
+						lineZ.line[z] = volume[z][i];
+					}
+					lineZ.compute();
+					for (int z = 0; z < depth; z++)
+					{
+						volume[z][i] = lineZ.line[z];
+					}
+				}
+			});
+		}
+
+		// Back to the type of the input
+		final ImageStack result = ImageStack.create(width, height, depth, aImage.getBitDepth());
+		final boolean isFloat = aImage.getBitDepth() == 32;
+		for (int z = 0; z < depth; z++)
+		{
+			final ImageProcessor proc = result.getProcessor(z + 1);
+			final float[] slice = volume[z];
+			for (int i = 0; i < size; i++)
+			{
+				proc.setf(i, isFloat ? slice[i] : Math.round(slice[i]));
+			}
+			result.setSliceLabel(stack.getSliceLabel(z + 1), z + 1);
+		}
+
+		final ImagePlus filtered = new ImagePlus("Mean_" + aImage.getTitle(), result);
+		filtered.setCalibration(aImage.getCalibration().copy());
+		filtered.setDisplayRange(aImage.getDisplayRangeMin(), aImage.getDisplayRangeMax());
+		return filtered;
+	}
+
+
+	/**
+	 * The running mean over one line: a sum over the window that is updated with the value entering and the value leaving the window at each step.
+	 */
+	private static class RunningMean
+	{
+		// The values of the line, replaced by the result after compute()
+		private final float[] line;
+
+		private final int length;
+		private final int radius;
+		private final float[] input;
+
+
+		private RunningMean(final int aLength, final int aRadius)
+		{
+			this.length = aLength;
+			this.radius = aRadius;
+			this.line = new float[aLength];
+			this.input = new float[aLength];
+		}
+
+
+		private void compute()
+		{
+			if (this.radius <= 0)
+			{
+				return;
+			}
+
+			System.arraycopy(this.line, 0, this.input, 0, this.length);
+
+			// The window of the first voxel
+			double sum = 0;
+			int count = 0;
+			for (int i = 0; i <= Math.min(this.radius, this.length - 1); i++)
+			{
+				sum += this.input[i];
+				count++;
+			}
+
+			for (int i = 0; i < this.length; i++)
+			{
+				this.line[i] = (float) (sum / count);
+
+				final int leaving = i - this.radius;
+				final int entering = i + this.radius + 1;
+				if (leaving >= 0)
+				{
+					sum -= this.input[leaving];
+					count--;
+				}
+				if (entering < this.length)
+				{
+					sum += this.input[entering];
+					count++;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private MeanFilter3D()
+	{
+	}
+}
@@ -0,0 +1,336 @@
+package imageprocessing;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.Filters3D;
+
+/**
+ * A 3D median filter over an (anisotropic) ellipsoid neighbourhood, like the 3D median filters in Fiji. For 8- and 16-bit images, each row is processed with a sliding histogram (Huang): moving one
+ * voxel along x only removes the trailing edge of the ellipsoid from the histogram and adds the leading edge. The median is tracked from the previous position, using a coarse histogram to skip empty
+ * bins. The slices are processed in parallel slabs with the ParallelProcessor. Voxels outside the image are left out of the neighbourhood.
+ *
+ * Inside the image the result is the same as that of the Fiji 3D median filters, as the (symmetric) ellipsoid always holds an odd number of voxels. Near the borders of the image the clipped
+ * neighbourhood can hold an even number of voxels. This filter then takes the upper of the two middle values, while the Fiji filters take their mean, so border voxels can differ slightly.
+ *
+ * Other image types are filtered with the ImageJ Filters3D.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class MedianFilter3D
+{
+	/**
+	 * The default radius, equal to the default of the Fiji 3D median filters.
+	 */
+	public static final double DEFAULT_RADIUS = 2;
+
+	// The number of bins per coarse histogram bin
+	private static final int COARSE_SHIFT_8BIT = 4;
+	private static final int COARSE_SHIFT_16BIT = 8;
+
+
+	/**
+	 * Apply the median filter to an image.
+	 *
+	 * @param aImage
+	 *            The (single channel, single frame) image to filter. The image is not changed.
+	 * @param aRadiusXY
+	 *            The radius of the neighbourhood in x and y (in pixels)
+	 * @param aRadiusZ
+	 *            The radius of the neighbourhood in z (in slices)
+	 *
+	 * @return A new image with the median filtered values and the calibration of the input image
+	 */
+	public static ImagePlus filter(final ImagePlus aImage, final double aRadiusXY, final double aRadiusZ)
+	{
+		final ImageStack stack = aImage.getImageStack();
+		final ImageStack result;
+		final int bitDepth = aImage.getBitDepth();
+		if (bitDepth == 8 || bitDepth == 16)
+		{
+			result = filterIntegerStack(stack, bitDepth, aRadiusXY, aRadiusZ);
+		}
+		else
+		{
+			result = Filters3D.filter(stack, Filters3D.MEDIAN, (float) aRadiusXY, (float) aRadiusXY, (float) aRadiusZ);
+		}
+
+		final ImagePlus filtered = new ImagePlus("Median_" + aImage.getTitle(), result);
+		filtered.setCalibration(aImage.getCalibration().copy());
+		filtered.setDisplayRange(aImage.getDisplayRangeMin(), aImage.getDisplayRangeMax());
+		return filtered;
+	}
+
+
+	/**
+	 * Get the half-widths in x of the rows of the ellipsoid. A voxel (dx, dy, dz) is part of the ellipsoid if (dx/rx)^2 + (dy/ry)^2 + (dz/rz)^2 <= 1.
+	 *
+	 * @return Per dz (from -radiusZ) and dy (from -radiusY) the half-width of the row, or -1 if the row is empty
+	 */
+	private static int[][] getRowHalfWidths(final double aRadiusXY, final double aRadiusZ)
+	{
+		final int radiusXY = (int) aRadiusXY;
+		final int radiusZ = (int) aRadiusZ;
+		final int[][] halfWidths = new int[(2 * radiusZ) + 1][(2 * radiusXY) + 1];
+		for (int dz = -radiusZ; dz <= radiusZ; dz++)
+		{
+			for (int dy = -radiusXY; dy <= radiusXY; dy++)
+			{
+				final double relZ = aRadiusZ > 0 ? dz / aRadiusZ : 0;
+				final double relY = aRadiusXY > 0 ? dy / aRadiusXY : 0;
+				final double rest = 1 - (relZ * relZ) - (relY * relY);
+				halfWidths[dz + radiusZ][dy + radiusXY] = rest < 0 ? -1 : (int) Math.floor(aRadiusXY * Math.sqrt(rest) + 1e-9);
+			}
+		}
+		return halfWidths;
+	}
+
+
+	private static ImageStack filterIntegerStack(final ImageStack aStack, final int aBitDepth, final double aRadiusXY, final double aRadiusZ)
+	{
+		final int width = aStack.getWidth();
+		final int height = aStack.getHeight();
+		final int depth = aStack.getSize();
+		final int size = width * height;
+
+		// Unsigned values of all slices
+		final char[][] input = new char[depth][size];
+		final Object[] output = new Object[depth];
+		for (int z = 0; z < depth; z++)
+		{
+			final Object pixels = aStack.getPixels(z + 1);
+			if (aBitDepth == 8)
+			{
+				final byte[] bytes = (byte[]) pixels;
+				for (int i = 0; i < size; i++)
+				{
+					input[z][i] = (char) (bytes[i] & 0xff);
+				}
+				output[z] = new byte[size];
+			}
+			else
+			{
+				final short[] shorts = (short[]) pixels;
+				for (int i = 0; i < size; i++)
+				{
+					input[z][i] = (char) (shorts[i] & 0xffff);
+				}
+				output[z] = new short[size];
+			}
+		}
+
+		final int[][] halfWidths = getRowHalfWidths(aRadiusXY, aRadiusZ);
+		final int radiusY = (int) aRadiusXY;
+		final int radiusZ = (int) aRadiusZ;
+		final int coarseShift = aBitDepth == 8 ? COARSE_SHIFT_8BIT : COARSE_SHIFT_16BIT;
+		final int nrOfBins = aBitDepth == 8 ? 256 : 65536;
+
+		ParallelProcessor.forRange(0, depth, (aStart, aEnd) -> {
+			final SlidingHistogram histogram = new SlidingHistogram(nrOfBins, coarseShift);
+			final char[] row = new char[width];
+			for (int z = aStart; z < aEnd; z++)
+			{
+				for (int y = 0; y < height; y++)
+				{
+					histogram.clear();
+
+					// Fill the histogram for x = 0
+					for (int dz = -radiusZ; dz <= radiusZ; dz++)
+					{
+						final int nz = z + dz;
+						for (int dy = -radiusY; dy <= radiusY; dy++)
+						{
+							final int ny = y + dy;
+							final int halfWidth = halfWidths[dz + radiusZ][dy + radiusY];
+							if (nz < 0 || nz >= depth || ny < 0 || ny >= height || halfWidth < 0)
+							{
+								continue;
+							}
+							final char[] slice = input[nz];
+							final int offset = ny * width;
+							for (int nx = 0; nx <= Math.min(halfWidth, width - 1); nx++)
+							{
+								histogram.add(slice[offset + nx]);
+							}
+						}
+					}
+					row[0] = (char) histogram.getMedian();
+
+					// Slide along x: remove the voxel just behind each row of the ellipsoid and add the one just in front
+					for (int x = 1; x < width; x++)
+					{
+						for (int dz = -radiusZ; dz <= radiusZ; dz++)
+						{
+							final int nz = z + dz;
+							if (nz < 0 || nz >= depth)
+							{
+								continue;
+							}
+							final char[] slice = input[nz];
+							for (int dy = -radiusY; dy <= radiusY; dy++)
+							{
+								final int ny = y + dy;
+								final int halfWidth = halfWidths[dz + radiusZ][dy + radiusY];
+								if (ny < 0 || ny >= height || halfWidth < 0)
+								{
+									continue;
+								}
+								final int offset = ny * width;
+								final int removeX = x - halfWidth - 1;
+								final int addX = x + halfWidth;
+								if (removeX >= 0)
+								{
+									histogram.remove(slice[offset + removeX]);
+								}
+								if (addX < width)
+								{
+									histogram.add(slice[offset + addX]);
+								}
+							}
+						}
+						row[x] = (char) histogram.getMedian();
+					}
+
+					final int offset = y * width;
+					if (aBitDepth == 8)
+					{
+						final byte[] outSlice = (byte[]) output[z];
+						for (int x = 0; x < width; x++)
+						{
+							outSlice[offset + x] = (byte) row[x];
+						}
+					}
+					else
+					{
+						final short[] outSlice = (short[]) output[z];
+						for (int x = 0; x < width; x++)
+						{
+							outSlice[offset + x] = (short) row[x];
+						}
+					}
+				}
+			}
+		});
+
+		final ImageStack result = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++)
+		{
+			result.addSlice(aStack.getSliceLabel(z + 1), output[z]);
+		}
+		return result;
+	}
+
+
+	/**
+	 * A histogram with a tracked median. The median bin is kept together with the number of values below it, so after a small change only a few bins have to be checked. A coarse histogram (the
+	 * counts of blocks of bins) is used to skip empty parts quickly.
+	 */
+	private static class SlidingHistogram
+	{
+		private final int[] fine;
+		private final int[] coarse;
+		private final int shift;
+		private int count = 0;
+
+		// The current median bin and the number of values in the bins below it
+		private int median = 0;
+		private int below = 0;
+
+
+		private SlidingHistogram(final int aNrOfBins, final int aCoarseShift)
+		{
+			this.fine = new int[aNrOfBins];
+			this.coarse = new int[aNrOfBins >> aCoarseShift];
+			this.shift = aCoarseShift;
+		}
+
+
+		private void add(final int aValue)
+		{
+			this.fine[aValue]++;
+			this.coarse[aValue >> this.shift]++;
+			this.count++;
+			if (aValue < this.median)
+			{
+				this.below++;
+			}
+		}
+
+
+		private void clear()
+		{
+			Arrays.fill(this.fine, 0);
+			Arrays.fill(this.coarse, 0);
+			this.count = 0;
+			this.median = 0;
+			this.below = 0;
+		}
+
+
+		/**
+		 * Get the median: the value at rank count / 2 (the upper median for an even count).
+		 */
+		private int getMedian()
+		{
+			final int rank = this.count / 2;
+			final int blockSize = 1 << this.shift;
+
+			// Move down while the median bin starts above the rank
+			while (this.below > rank)
+			{
+				if ((this.median & (blockSize - 1)) == 0 && this.median > 0 && this.coarse[(this.median >> this.shift) - 1] <= this.below - rank - 1)
+				{
+					// The whole block below can be passed without reaching the rank
+					this.median -= blockSize;
+					this.below -= this.coarse[this.median >> this.shift];
+				}
+				else
+				{
+					this.median--;
+					this.below -= this.fine[this.median];
+				}
+			}
+
+			// Move up while the median bin ends at or below the rank
+			while (this.below + this.fine[this.median] <= rank)
+			{
+				final int block = this.median >> this.shift;
+				if ((this.median & (blockSize - 1)) == 0 && this.below + this.coarse[block] <= rank)
+				{
+					// The whole block can be passed
+					this.below += this.coarse[block];
+					this.median += blockSize;
+				}
+				else
+				{
+					this.below += this.fine[this.median];
+					this.median++;
+				}
+			}
+
+			return this.median;
+		}
+
+
+		private void remove(final int aValue)
+		{
+			this.fine[aValue]--;
+			this.coarse[aValue >> this.shift]--;
+			this.count--;
+			if (aValue < this.median)
+			{
+				this.below--;
+			}
+		}
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private MedianFilter3D()
+	{
+	}
+}
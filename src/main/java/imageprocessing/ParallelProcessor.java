@@ -0,0 +1,133 @@
+package imageprocessing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import ij.Prefs;
+
+/**
+ * Runs image processing work in parallel on one shared pool. The pool uses the number of threads set in ImageJ (Edit > Options > Memory & Threads). The work is given as a range of indices (for
+ * instance slices or rows) that is split into slabs, which are processed concurrently. When a slab itself runs parallel work, it is done on the same pool, so nested use does not create more threads.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class ParallelProcessor
+{
+	// The number of slabs per thread, to even out slabs that take longer
+	private static final int SLABS_PER_THREAD = 4;
+
+	private static ForkJoinPool pool = null;
+
+
+	/**
+	 * The work on one slab of indices.
+	 */
+	public interface RangeTask
+	{
+		/**
+		 * Process the indices from aStart (inclusive) to aEnd (exclusive).
+		 *
+		 * @param aStart
+		 *            The first index of the slab
+		 * @param aEnd
+		 *            The index after the last index of the slab
+		 */
+		void process(int aStart, int aEnd);
+	}
+
+
+	/**
+	 * Process a range of indices in parallel slabs. Returns when all slabs are done.
+	 *
+	 * @param aStart
+	 *            The first index (inclusive)
+	 * @param aEnd
+	 *            The last index (exclusive)
+	 * @param aTask
+	 *            The work per slab. Slabs are processed concurrently, so the task may only write data that belongs to its own slab.
+	 */
+	public static void forRange(final int aStart, final int aEnd, final RangeTask aTask)
+	{
+		final int length = aEnd - aStart;
+		if (length <= 0)
+		{
+			return;
+		}
+
+		final ForkJoinPool processingPool = getPool();
+		final int nrOfSlabs = Math.min(length, processingPool.getParallelism() * SLABS_PER_THREAD);
+		if (nrOfSlabs == 1)
+		{
+			aTask.process(aStart, aEnd);
+			return;
+		}
+
+		final List<RecursiveAction> slabs = new ArrayList<>(nrOfSlabs);
+		for (int slab = 0; slab < nrOfSlabs; slab++)
+		{
+			final int slabStart = aStart + (int) (((long) length * slab) / nrOfSlabs);
+			final int slabEnd = aStart + (int) (((long) length * (slab + 1)) / nrOfSlabs);
+			slabs.add(new RecursiveAction()
+			{
+				private static final long serialVersionUID = 1L;
+
+
+				@Override
+				protected void compute()
+				{
+					aTask.process(slabStart, slabEnd);
+				}
+			});
+		}
+
+		if (ForkJoinTask.getPool() == processingPool)
+		{
+			// Already running in the pool: fork the slabs from this task
+			ForkJoinTask.invokeAll(slabs);
+		}
+		else
+		{
+			processingPool.invoke(new RecursiveAction()
+			{
+				private static final long serialVersionUID = 1L;
+
+
+				@Override
+				protected void compute()
+				{
+					ForkJoinTask.invokeAll(slabs);
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Get the shared processing pool. A new pool is created when the number of threads in the ImageJ settings has changed. The old pool is not shut down, as running work may still submit to it;
+	 * its (daemon) threads end when they are idle and the pool is then garbage collected.
+	 *
+	 * @return The pool with Prefs.getThreads() threads
+	 */
+	public static synchronized ForkJoinPool getPool()
+	{
+		final int threads = Math.max(1, Prefs.getThreads());
+		if (pool == null || pool.getParallelism() != threads)
+		{
+			pool = new ForkJoinPool(threads);
+		}
+
+		return pool;
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private ParallelProcessor()
+	{
+	}
+}
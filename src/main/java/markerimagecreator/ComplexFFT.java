@@ -0,0 +1,206 @@
+package markerimagecreator;
+
+/**
+ * A one-dimensional complex FFT for lengths that only have the prime factors 2, 3 and 5. It uses the Stockham auto-sort algorithm, so no bit-reversal is needed. The twiddle factors are calculated
+ * once per length. A plan keeps its own scratch buffers, so it must not be shared between threads.
+ *
+ * @author Merijn van Erp
+ *
+ */
+class ComplexFFT
+{
+	private static final int[] RADICES = { 4, 2, 3, 5 };
+
+	private final int length;
+	private final int[] factors;
+
+	// exp(-2 pi i t / length) for t = 0 .. length - 1
+	private final double[] cosTable;
+	private final double[] sinTable;
+
+	private final double[] scratchReal;
+	private final double[] scratchImag;
+	private final double[] groupReal = new double[5];
+	private final double[] groupImag = new double[5];
+
+
+	/**
+	 * Create a plan for one transform length.
+	 *
+	 * @param aLength
+	 *            The length of the transform. Must be a product of 2, 3 and 5 (see getFastLength).
+	 */
+	ComplexFFT(final int aLength)
+	{
+		this.length = aLength;
+		this.factors = factorise(aLength);
+		this.cosTable = new double[aLength];
+		this.sinTable = new double[aLength];
+		for (int t = 0; t < aLength; t++)
+		{
+			final double angle = (-2 * Math.PI * t) / aLength;
+			this.cosTable[t] = Math.cos(angle);
+			this.sinTable[t] = Math.sin(angle);
+		}
+		this.scratchReal = new double[aLength];
+		this.scratchImag = new double[aLength];
+	}
+
+
+	/**
+	 * Get the smallest length of at least the given value that only has the prime factors 2, 3 and 5.
+	 *
+	 * @param aMinimum
+	 *            The minimum length
+	 *
+	 * @return The length for which the transform is fast
+	 */
+	static int getFastLength(final int aMinimum)
+	{
+		for (int candidate = Math.max(1, aMinimum);; candidate++)
+		{
+			int rest = candidate;
+			for (final int prime : new int[] { 2, 3, 5 })
+			{
+				while (rest % prime == 0)
+				{
+					rest /= prime;
+				}
+			}
+			if (rest == 1)
+			{
+				return candidate;
+			}
+		}
+	}
+
+
+	/**
+	 * Do the transform in place.
+	 *
+	 * @param aReal
+	 *            The real parts of the signal with the length of the plan
+	 * @param aImag
+	 *            The imaginary parts of the signal
+	 * @param aInverse
+	 *            Do the inverse transform (without the 1/length scaling)
+	 */
+	void transform(final double[] aReal, final double[] aImag, final boolean aInverse)
+	{
+		final double sign = aInverse ? -1 : 1;
+		double[] inReal = aReal;
+		double[] inImag = aImag;
+		double[] outReal = this.scratchReal;
+		double[] outImag = this.scratchImag;
+
+		int span = 1; // The length of the sub-transforms that are already done
+		for (final int radix : this.factors)
+		{
+			final int groups = this.length / radix;
+			final int twiddleStep = this.length / (span * radix);
+			final int radixStep = this.length / radix;
+			for (int j = 0; j < groups; j++)
+			{
+				final int k = j % span;
+
+				// Gather and apply the twiddle factors
+				for (int r = 0; r < radix; r++)
+				{
+					final double real = inReal[j + (r * groups)];
+					final double imag = inImag[j + (r * groups)];
+					final int t = r * k * twiddleStep;
+					final double wReal = this.cosTable[t];
+					final double wImag = sign * this.sinTable[t];
+					this.groupReal[r] = (real * wReal) - (imag * wImag);
+					this.groupImag[r] = (real * wImag) + (imag * wReal);
+				}
+
+				// The small DFT, written to the auto-sorted position
+				final int target = ((j / span) * span * radix) + k;
+				if (radix == 2)
+				{
+					outReal[target] = this.groupReal[0] + this.groupReal[1];
+					outImag[target] = this.groupImag[0] + this.groupImag[1];
+					outReal[target + span] = this.groupReal[0] - this.groupReal[1];
+					outImag[target + span] = this.groupImag[0] - this.groupImag[1];
+				}
+				else if (radix == 4)
+				{
+					final double sumReal02 = this.groupReal[0] + this.groupReal[2];
+					final double sumImag02 = this.groupImag[0] + this.groupImag[2];
+					final double difReal02 = this.groupReal[0] - this.groupReal[2];
+					final double difImag02 = this.groupImag[0] - this.groupImag[2];
+					final double sumReal13 = this.groupReal[1] + this.groupReal[3];
+					final double sumImag13 = this.groupImag[1] + this.groupImag[3];
+					// -i * (x1 - x3) for the forward transform, +i for the inverse
+					final double rotReal13 = sign * (this.groupImag[1] - this.groupImag[3]);
+					final double rotImag13 = -sign * (this.groupReal[1] - this.groupReal[3]);
+					outReal[target] = sumReal02 + sumReal13;
+					outImag[target] = sumImag02 + sumImag13;
+					outReal[target + span] = difReal02 + rotReal13;
+					outImag[target + span] = difImag02 + rotImag13;
+					outReal[target + (2 * span)] = sumReal02 - sumReal13;
+					outImag[target + (2 * span)] = sumImag02 - sumImag13;
+					outReal[target + (3 * span)] = difReal02 - rotReal13;
+					outImag[target + (3 * span)] = difImag02 - rotImag13;
+				}
+				else
+				{
+					for (int s = 0; s < radix; s++)
+					{
+						double sumReal = 0;
+						double sumImag = 0;
+						for (int r = 0; r < radix; r++)
+						{
+							final int t = ((r * s) % radix) * radixStep;
+							final double wReal = this.cosTable[t];
+							final double wImag = sign * this.sinTable[t];
+							sumReal += (this.groupReal[r] * wReal) - (this.groupImag[r] * wImag);
+							sumImag += (this.groupReal[r] * wImag) + (this.groupImag[r] * wReal);
+						}
+						outReal[target + (s * span)] = sumReal;
+						outImag[target + (s * span)] = sumImag;
+					}
+				}
+			}
+
+			span *= radix;
+			final double[] swapReal = inReal;
+			final double[] swapImag = inImag;
+			inReal = outReal;
+			inImag = outImag;
+			outReal = swapReal;
+			outImag = swapImag;
+		}
+
+		if (inReal != aReal)
+		{
+			System.arraycopy(inReal, 0, aReal, 0, this.length);
+			System.arraycopy(inImag, 0, aImag, 0, this.length);
+		}
+	}
+
+
+	private static int[] factorise(final int aLength)
+	{
+		final int[] factors = new int[32];
+		int count = 0;
+		int rest = aLength;
+		for (final int radix : RADICES)
+		{
+			while (rest % radix == 0)
+			{
+				factors[count++] = radix;
+				rest /= radix;
+			}
+		}
+		if (rest != 1)
+		{
+			throw new IllegalArgumentException("FFT length " + aLength + " has prime factors other than 2, 3 and 5");
+		}
+
+		final int[] result = new int[count];
+		System.arraycopy(factors, 0, result, 0, count);
+		return result;
+	}
+}
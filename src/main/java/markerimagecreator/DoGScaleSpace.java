@@ -0,0 +1,111 @@
+package markerimagecreator;
+
+import ij.IJ;
+
+/**
+ * An alternative to the separate LoG filters per scale: one incremental Gaussian scale space in which each level is made by blurring the previous level a little further. The difference of two
+ * adjacent levels approximates the LoG at the scale in between (the SIFT approach), as dL/d(t^2) = 1/2 * Laplacian(L) for a Gaussian with sigma t. For fine scale steps the extra blur per level is
+ * small, so the kernels stay short and the work of the previous scales is reused.
+ *
+ * The levels are placed at the geometric means of the requested sigmas, so each difference is centred on one requested scale. The responses are inverted and multiplied by the XY sigma like the
+ * LoGFilter3D output. With an anisotropic sigma, the z-part of the Laplacian is weighted by (sigmaZ / sigmaXY)^2, so the values are comparable to the LoG, not identical.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class DoGScaleSpace
+{
+	// The sigma ratio to the neighbouring levels when only one scale is requested
+	private static final double SINGLE_SCALE_RATIO = 1.2;
+
+
+	/**
+	 * Calculate the DoG approximation of the LoG response for each scale and fold it into the accumulator.
+	 *
+	 * @param aInput
+	 *            The (median filtered) input volume as float slices. The input is not changed.
+	 * @param aWidth
+	 *            The width of the volume
+	 * @param aHeight
+	 *            The height of the volume
+	 * @param aSigmaXY
+	 *            The XY sigmas of the scales in ascending order
+	 * @param aSigmaZ
+	 *            The matching Z sigmas. These must have the same ratio to the XY sigmas for all scales, or all be 0 for a per-slice filter.
+	 * @param aCellDiameters
+	 *            The cell diameters on which the scales have been based
+	 * @param aAccumulator
+	 *            The accumulator into which each scale is folded as soon as it is done
+	 */
+	public static void computeScales(final float[][] aInput, final int aWidth, final int aHeight, final double[] aSigmaXY, final double[] aSigmaZ, final double[] aCellDiameters,
+			final LoGScaleAccumulator aAccumulator)
+	{
+		final int nrOfScales = aSigmaXY.length;
+		final double zRatio = aSigmaZ[0] / aSigmaXY[0];
+		final double[] levels = getLevelSigmas(aSigmaXY);
+		final int size = aWidth * aHeight;
+
+		// The first level is blurred from scratch, each next level only with the difference to the previous one
+		float[][] previous = LoGFilter3D.gaussianBlur(aInput, aWidth, aHeight, levels[0], levels[0] * zRatio);
+		final float[][] response = new float[aInput.length][size];
+		for (int scale = 0; scale < nrOfScales; scale++)
+		{
+			final double lower = levels[scale];
+			final double upper = levels[scale + 1];
+			final double increment = Math.sqrt((upper * upper) - (lower * lower));
+			final float[][] current = LoGFilter3D.gaussianBlur(previous, aWidth, aHeight, increment, increment * zRatio);
+
+			// LoG ~ 2 * (L(upper) - L(lower)) / (upper^2 - lower^2), inverted and multiplied by sigmaXY
+			final float factor = (float) ((-2 * aSigmaXY[scale]) / ((upper * upper) - (lower * lower)));
+			for (int z = 0; z < aInput.length; z++)
+			{
+				final float[] currentSlice = current[z];
+				final float[] previousSlice = previous[z];
+				final float[] responseSlice = response[z];
+				for (int i = 0; i < size; i++)
+				{
+					responseSlice[i] = (currentSlice[i] - previousSlice[i]) * factor;
+				}
+			}
+
+			aAccumulator.addScale(response, aCellDiameters[scale]);
+			IJ.log("      DoG done for sigma XY " + aSigmaXY[scale] + " and sigma Z " + aSigmaZ[scale]);
+			IJ.showProgress(scale + 1, nrOfScales);
+			previous = current;
+		}
+	}
+
+
+	/**
+	 * Get the sigmas of the scale-space levels: the geometric means of the adjacent requested sigmas, extended on both ends with the same ratio as the nearest pair.
+	 *
+	 * @param aSigmas
+	 *            The requested sigmas in ascending order
+	 *
+	 * @return The sigmas of the levels, one more than the number of requested sigmas
+	 */
+	static double[] getLevelSigmas(final double[] aSigmas)
+	{
+		final int nrOfScales = aSigmas.length;
+		final double[] levels = new double[nrOfScales + 1];
+		for (int i = 1; i < nrOfScales; i++)
+		{
+			levels[i] = Math.sqrt(aSigmas[i - 1] * aSigmas[i]);
+		}
+
+		final double firstRatio = nrOfScales > 1 ? Math.sqrt(aSigmas[1] / aSigmas[0]) : SINGLE_SCALE_RATIO;
+		final double lastRatio = nrOfScales > 1 ? Math.sqrt(aSigmas[nrOfScales - 1] / aSigmas[nrOfScales - 2]) : SINGLE_SCALE_RATIO;
+		levels[0] = aSigmas[0] / firstRatio;
+		levels[nrOfScales] = aSigmas[nrOfScales - 1] * lastRatio;
+
+		return levels;
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private DoGScaleSpace()
+	{
+	}
+}
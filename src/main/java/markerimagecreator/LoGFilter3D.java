@@ -0,0 +1,327 @@
+package markerimagecreator;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * A separable 3D Laplacian of Gaussian filter. The Laplacian is calculated as the sum of the second derivatives in x, y and z, where each of these is a product of one-dimensional Gaussian (derivative)
+ * kernels. The z-convolution is done per output slice, so apart from the input and output volumes only a few slice buffers are needed. As the filter does not depend on any open window, several
+ * filters can be run concurrently on the same input.
+ *
+ * The response is inverted and multiplied by the XY sigma, following the normalisation that the Marker_Image_Creator_3D used on the output of the LoG3D plugin: nuclei give a positive response and
+ * larger sigmas are not penalised too much.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class LoGFilter3D
+{
+	// The Gaussian is cut off at this number of sigmas
+	private static final double KERNEL_EXTENT = 4.0;
+
+
+	/**
+	 * Create the Gaussian kernel for a sigma. The kernel is normalised to a sum of 1. The kernel has a length of 2 * radius + 1 with the centre at index radius.
+	 *
+	 * @param aSigma
+	 *            The sigma of the Gaussian (in pixels). A sigma of 0 produces the identity kernel.
+	 *
+	 * @return The Gaussian kernel
+	 */
+	public static float[] createGaussianKernel(final double aSigma)
+	{
+		if (aSigma <= 0)
+		{
+			return new float[] { 1 };
+		}
+
+		final int radius = getKernelRadius(aSigma);
+		final float[] kernel = new float[(2 * radius) + 1];
+		double sum = 0;
+		for (int i = -radius; i <= radius; i++)
+		{
+			final double value = Math.exp(-(i * i) / (2 * aSigma * aSigma));
+			kernel[i + radius] = (float) value;
+			sum += value;
+		}
+		for (int i = 0; i < kernel.length; i++)
+		{
+			kernel[i] = (float) (kernel[i] / sum);
+		}
+
+		return kernel;
+	}
+
+
+	/**
+	 * Create the second derivative of the Gaussian kernel for a sigma. The kernel is corrected to a sum of 0, so a flat signal will give no response.
+	 *
+	 * @param aSigma
+	 *            The sigma of the Gaussian (in pixels). Must be larger than 0.
+	 *
+	 * @return The second derivative Gaussian kernel with the same length as the matching Gaussian kernel.
+	 */
+	public static float[] createSecondDerivativeKernel(final double aSigma)
+	{
+		final float[] gaussian = createGaussianKernel(aSigma);
+		final int radius = gaussian.length / 2;
+		final double sigma2 = aSigma * aSigma;
+		final double[] values = new double[gaussian.length];
+		double sum = 0;
+		for (int i = -radius; i <= radius; i++)
+		{
+			values[i + radius] = (((i * i) / (sigma2 * sigma2)) - (1 / sigma2)) * gaussian[i + radius];
+			sum += values[i + radius];
+		}
+
+		final double mean = sum / values.length;
+		final float[] kernel = new float[values.length];
+		for (int i = 0; i < values.length; i++)
+		{
+			kernel[i] = (float) (values[i] - mean);
+		}
+
+		return kernel;
+	}
+
+
+	/**
+	 * Create an image of the LoG kernel for a given set of sigmas. The kernel is created by applying the filter to an impulse.
+	 *
+	 * @param aSigmaXY
+	 *            The sigma in the X and Y dimension
+	 * @param aSigmaZ
+	 *            The sigma in the Z dimension (0 for a per-slice filter)
+	 *
+	 * @return An ImagePlus showing the kernel
+	 */
+	public static ImagePlus createKernelImage(final double aSigmaXY, final double aSigmaZ)
+	{
+		final int size = (2 * getKernelRadius(aSigmaXY)) + 1;
+		final int depth = aSigmaZ > 0 ? (2 * getKernelRadius(aSigmaZ)) + 1 : 1;
+		final float[][] impulse = new float[depth][size * size];
+		impulse[depth / 2][(size / 2) + ((size / 2) * size)] = 1;
+
+		final float[][] kernel = filter(impulse, size, size, aSigmaXY, aSigmaZ);
+		final ImageStack stack = new ImageStack(size, size);
+		for (int z = 0; z < depth; z++)
+		{
+			stack.addSlice(new FloatProcessor(size, size, kernel[z]));
+		}
+		final ImagePlus kernelImage = new ImagePlus("LoG kernel SXY" + aSigmaXY + "-SZ" + aSigmaZ, stack);
+		kernelImage.resetDisplayRange();
+		return kernelImage;
+	}
+
+
+	/**
+	 * Calculate the inverted and sigma-normalised LoG response of a volume.
+	 *
+	 * @param aInput
+	 *            The input volume as an array of slices. Each slice is an array of width * height values. The input is not changed.
+	 * @param aWidth
+	 *            The width of the volume
+	 * @param aHeight
+	 *            The height of the volume
+	 * @param aSigmaXY
+	 *            The sigma (in pixels) in the X and Y dimension
+	 * @param aSigmaZ
+	 *            The sigma (in slices) in the Z dimension. Use 0 to filter each slice separately.
+	 *
+	 * @return A new volume, as an array of slices, containing the LoG response multiplied by -aSigmaXY
+	 */
+	public static float[][] filter(final float[][] aInput, final int aWidth, final int aHeight, final double aSigmaXY, final double aSigmaZ)
+	{
+		final int depth = aInput.length;
+		final int size = aWidth * aHeight;
+		final float[] gaussXY = createGaussianKernel(aSigmaXY);
+		final float[] secondXY = createSecondDerivativeKernel(aSigmaXY);
+		final float[] gaussZ = createGaussianKernel(aSigmaZ);
+		final float[] secondZ = aSigmaZ > 0 ? createSecondDerivativeKernel(aSigmaZ) : null;
+		final float scale = (float) -aSigmaXY;
+
+		// Slice buffers, reused for each output slice
+		final float[] blurZ = new float[size];
+		final float[] derivZ = new float[size];
+		final float[] tempY = new float[size];
+		final float[] sumY = new float[size];
+		final float[] tempX = new float[size];
+
+		final float[][] result = new float[depth][];
+		for (int z = 0; z < depth; z++)
+		{
+			// Gaussian in z, then Gaussian in y and the second derivative in x: d2/dx2
+			convolveZ(aInput, z, size, gaussZ, blurZ);
+			convolveY(blurZ, aWidth, aHeight, gaussXY, tempY);
+			convolveX(tempY, aWidth, aHeight, secondXY, tempX);
+
+			// The second derivative in y (and z) share the Gaussian in x
+			convolveY(blurZ, aWidth, aHeight, secondXY, sumY);
+			if (secondZ != null)
+			{
+				convolveZ(aInput, z, size, secondZ, derivZ);
+				convolveY(derivZ, aWidth, aHeight, gaussXY, tempY);
+				for (int i = 0; i < size; i++)
+				{
+					sumY[i] += tempY[i];
+				}
+			}
+
+			final float[] slice = new float[size];
+			convolveX(sumY, aWidth, aHeight, gaussXY, slice);
+			for (int i = 0; i < size; i++)
+			{
+				slice[i] = (slice[i] + tempX[i]) * scale;
+			}
+			result[z] = slice;
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Blur a volume with a (possibly anisotropic) Gaussian. This uses the same kernels and edge handling as the LoG filter.
+	 *
+	 * @param aInput
+	 *            The input volume as an array of slices. The input is not changed.
+	 * @param aWidth
+	 *            The width of the volume
+	 * @param aHeight
+	 *            The height of the volume
+	 * @param aSigmaXY
+	 *            The sigma (in pixels) in the X and Y dimension
+	 * @param aSigmaZ
+	 *            The sigma (in slices) in the Z dimension. Use 0 to blur each slice separately.
+	 *
+	 * @return A new volume, as an array of slices, containing the blurred input
+	 */
+	public static float[][] gaussianBlur(final float[][] aInput, final int aWidth, final int aHeight, final double aSigmaXY, final double aSigmaZ)
+	{
+		final int size = aWidth * aHeight;
+		final float[] gaussXY = createGaussianKernel(aSigmaXY);
+		final float[] gaussZ = createGaussianKernel(aSigmaZ);
+
+		final float[] blurZ = new float[size];
+		final float[] tempY = new float[size];
+		final float[][] result = new float[aInput.length][];
+		for (int z = 0; z < aInput.length; z++)
+		{
+			convolveZ(aInput, z, size, gaussZ, blurZ);
+			convolveY(blurZ, aWidth, aHeight, gaussXY, tempY);
+			result[z] = new float[size];
+			convolveX(tempY, aWidth, aHeight, gaussXY, result[z]);
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Get the radius of the kernels used for a sigma.
+	 *
+	 * @param aSigma
+	 *            The sigma of the Gaussian
+	 *
+	 * @return The number of pixels on either side of the kernel centre
+	 */
+	public static int getKernelRadius(final double aSigma)
+	{
+		return Math.max(1, (int) Math.ceil(KERNEL_EXTENT * aSigma));
+	}
+
+
+	/**
+	 * Get the slices of an image as float arrays. This is the input format of the filter.
+	 *
+	 * @param aImage
+	 *            The (single channel, single frame) image
+	 *
+	 * @return An array with per slice a float array of all the pixel values
+	 */
+	public static float[][] getFloatSlices(final ImagePlus aImage)
+	{
+		final ImageStack stack = aImage.getImageStack();
+		final int size = aImage.getWidth() * aImage.getHeight();
+		final float[][] slices = new float[aImage.getNSlices()][size];
+		for (int z = 0; z < slices.length; z++)
+		{
+			final ImageProcessor proc = stack.getProcessor(z + 1);
+			for (int i = 0; i < size; i++)
+			{
+				slices[z][i] = proc.getf(i);
+			}
+		}
+
+		return slices;
+	}
+
+
+	private static void convolveX(final float[] aInput, final int aWidth, final int aHeight, final float[] aKernel, final float[] aOutput)
+	{
+		final int radius = aKernel.length / 2;
+		for (int y = 0; y < aHeight; y++)
+		{
+			final int offset = y * aWidth;
+			for (int x = 0; x < aWidth; x++)
+			{
+				float sum = 0;
+				for (int k = -radius; k <= radius; k++)
+				{
+					final int xk = Math.min(aWidth - 1, Math.max(0, x + k)); // Replicate the edge
+					sum += aKernel[k + radius] * aInput[offset + xk];
+				}
+				aOutput[offset + x] = sum;
+			}
+		}
+	}
+
+
+	private static void convolveY(final float[] aInput, final int aWidth, final int aHeight, final float[] aKernel, final float[] aOutput)
+	{
+		final int radius = aKernel.length / 2;
+		for (int y = 0; y < aHeight; y++)
+		{
+			final int offset = y * aWidth;
+			Arrays.fill(aOutput, offset, offset + aWidth, 0);
+			for (int k = -radius; k <= radius; k++)
+			{
+				final int yk = Math.min(aHeight - 1, Math.max(0, y + k)) * aWidth; // Replicate the edge
+				final float weight = aKernel[k + radius];
+				for (int x = 0; x < aWidth; x++)
+				{
+					aOutput[offset + x] += weight * aInput[yk + x];
+				}
+			}
+		}
+	}
+
+
+	private static void convolveZ(final float[][] aInput, final int aZ, final int aSize, final float[] aKernel, final float[] aOutput)
+	{
+		final int radius = aKernel.length / 2;
+		final int depth = aInput.length;
+		Arrays.fill(aOutput, 0, aSize, 0);
+		for (int k = -radius; k <= radius; k++)
+		{
+			final float[] slice = aInput[Math.min(depth - 1, Math.max(0, aZ + k))]; // Replicate the edge
+			final float weight = aKernel[k + radius];
+			for (int i = 0; i < aSize; i++)
+			{
+				aOutput[i] += weight * slice[i];
+			}
+		}
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private LoGFilter3D()
+	{
+	}
+}
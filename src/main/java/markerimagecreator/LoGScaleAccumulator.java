@@ -0,0 +1,144 @@
+package markerimagecreator;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+/**
+ * Keeps the running maximum over the LoG images of the different scales (cell diameters) used by the Marker_Image_Creator_3D. Each scale is folded into the maximum as soon as it has been calculated,
+ * so only two float volumes are kept in memory regardless of the number of scales: the maximum LoG value and the cell diameter of the scale that produced that maximum (the winning scale).
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class LoGScaleAccumulator
+{
+	private final int width;
+	private final int height;
+	private final int depth;
+
+	// Per slice: the maximum LoG value found so far and the cell diameter that produced it
+	private final float[][] maximum;
+	private final float[][] winningScale;
+
+	private int scaleCount = 0;
+
+
+	/**
+	 * Create an empty accumulator for images of the given dimensions.
+	 *
+	 * @param aWidth
+	 *            The width of the LoG images
+	 * @param aHeight
+	 *            The height of the LoG images
+	 * @param aDepth
+	 *            The number of slices of the LoG images
+	 */
+	public LoGScaleAccumulator(final int aWidth, final int aHeight, final int aDepth)
+	{
+		this.width = aWidth;
+		this.height = aHeight;
+		this.depth = aDepth;
+		this.maximum = new float[aDepth][aWidth * aHeight];
+		this.winningScale = new float[aDepth][aWidth * aHeight];
+		for (int z = 0; z < aDepth; z++)
+		{
+			Arrays.fill(this.maximum[z], Float.NEGATIVE_INFINITY);
+		}
+	}
+
+
+	/**
+	 * Fold the LoG response of one scale into the running maximum. For each voxel the highest value is kept, together with the cell diameter of the scale it came from. On equal values the smaller
+	 * scale is kept, so the result does not depend on the order in which the scales are added. Scales may be added concurrently. The response is not changed and can be discarded directly after
+	 * this call.
+	 *
+	 * @param aLoGSlices
+	 *            The LoG response of the scale as an array of slices
+	 * @param aCellDiameter
+	 *            The cell diameter on which the scale has been based
+	 */
+	public synchronized void addScale(final float[][] aLoGSlices, final double aCellDiameter)
+	{
+		final float diameter = (float) aCellDiameter;
+		final int size = this.width * this.height;
+		for (int z = 0; z < this.depth; z++)
+		{
+			final float[] logSlice = aLoGSlices[z];
+			final float[] maxSlice = this.maximum[z];
+			final float[] scaleSlice = this.winningScale[z];
+			for (int i = 0; i < size; i++)
+			{
+				final float value = logSlice[i];
+				if (maxSlice[i] < value || (maxSlice[i] == value && diameter < scaleSlice[i]))
+				{
+					maxSlice[i] = value;
+					scaleSlice[i] = diameter;
+				}
+			}
+		}
+
+		this.scaleCount++;
+	}
+
+
+	/**
+	 * Get the combined LoG image: the maximum value of all the added scales for each voxel.
+	 *
+	 * @param aTitle
+	 *            The title of the new image
+	 * @param aCalibration
+	 *            The calibration of the original image
+	 *
+	 * @return A 32-bit image containing the maximum LoG values. Note that the image shares the accumulator data.
+	 */
+	public ImagePlus getMaximumImage(final String aTitle, final Calibration aCalibration)
+	{
+		return createImage(aTitle, this.maximum, aCalibration);
+	}
+
+
+	/**
+	 * Get the number of scales that have been added so far.
+	 *
+	 * @return The number of added scales
+	 */
+	public synchronized int getScaleCount()
+	{
+		return this.scaleCount;
+	}
+
+
+	/**
+	 * Get the winning-scale map: for each voxel, the cell diameter of the scale that produced the maximum LoG value.
+	 *
+	 * @param aTitle
+	 *            The title of the new image
+	 * @param aCalibration
+	 *            The calibration of the original image
+	 *
+	 * @return A 32-bit image containing the winning cell diameter per voxel. Note that the image shares the accumulator data.
+	 */
+	public ImagePlus getScaleImage(final String aTitle, final Calibration aCalibration)
+	{
+		return createImage(aTitle, this.winningScale, aCalibration);
+	}
+
+
+	private ImagePlus createImage(final String aTitle, final float[][] aSlices, final Calibration aCalibration)
+	{
+		final ImageStack stack = new ImageStack(this.width, this.height);
+		for (int z = 0; z < this.depth; z++)
+		{
+			stack.addSlice(new FloatProcessor(this.width, this.height, aSlices[z]));
+		}
+
+		final ImagePlus image = new ImagePlus(aTitle, stack);
+		image.setCalibration(aCalibration.copy());
+		image.resetDisplayRange();
+		return image;
+	}
+}
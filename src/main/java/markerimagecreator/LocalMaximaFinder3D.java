@@ -0,0 +1,239 @@
+package markerimagecreator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import data.PointValue;
+import imageprocessing.MaximumFilter3D;
+import imageprocessing.ParallelProcessor;
+import ij.ImagePlus;
+
+/**
+ * Finds the local maxima (peaks) in a 3D image, as a replacement of the mcib3d MaximaFinder3D with the same parameters. A voxel is a peak candidate if it is the maximum of the box around it (given by
+ * the anisotropic radii) and its value is at least the minimum. The box maximum is a separable running-max filter, so its cost does not depend on the radii. It runs in parallel over slabs of the
+ * volume.
+ *
+ * The noise is handled as in the MaximaFinder3D: the candidates are handled from high to low and from each remaining candidate the area with values of at least the peak value minus the noise is
+ * flooded. Any other candidate in that area only differs from the peak by noise and is removed. The flood does not go below the minimum value, as that is background. The same selection can be
+ * made for other minimum and noise values from the PeakCatalogue, without flooding again.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class LocalMaximaFinder3D
+{
+	private final float[][] slices;
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final float noise;
+	private final float minimum;
+
+	private int radiusX = 1;
+	private int radiusY = 1;
+	private int radiusZ = 1;
+
+
+	/**
+	 * Create a peak finder for an image.
+	 *
+	 * @param aImage
+	 *            The (single channel, single frame) image in which to find the peaks
+	 * @param aNoise
+	 *            The maximum value difference between two peaks in one connected area for which the lower one is still seen as noise
+	 * @param aMinimum
+	 *            The minimal value of a peak
+	 */
+	public LocalMaximaFinder3D(final ImagePlus aImage, final float aNoise, final float aMinimum)
+	{
+		this.slices = LoGFilter3D.getFloatSlices(aImage);
+		this.width = aImage.getWidth();
+		this.height = aImage.getHeight();
+		this.depth = this.slices.length;
+		this.noise = aNoise;
+		this.minimum = aMinimum;
+	}
+
+
+	/**
+	 * Get the list of peaks.
+	 *
+	 * @return The peaks with their value, sorted from the highest to the lowest value
+	 */
+	public ArrayList<PointValue> getListPeaks()
+	{
+		final int[] candidates = findCandidates();
+
+		// Sort from high to low value, on equal values by position so the result is deterministic: the sortable value in the high bits and the voxel index in the low bits
+		final long[] order = new long[candidates.length];
+		for (int i = 0; i < candidates.length; i++)
+		{
+			final int bits = Float.floatToIntBits(getValue(candidates[i]));
+			final int sortable = bits ^ ((bits >> 31) & 0x7fffffff);
+			order[i] = ((long) ~sortable << 32) | candidates[i];
+		}
+		Arrays.sort(order);
+
+		final int size = this.width * this.height;
+		final boolean[] isCandidate = new boolean[size * this.depth];
+		for (final int candidate : candidates)
+		{
+			isCandidate[candidate] = true;
+		}
+
+		// The flood of each peak marks its visited voxels with the peak number, so nothing has to be cleared between the floods
+		final int[] visited = new int[size * this.depth];
+		int[] queue = new int[1024];
+		final ArrayList<PointValue> peaks = new ArrayList<>();
+		for (int peak = 0; peak < order.length; peak++)
+		{
+			final int start = (int) order[peak];
+			if (!isCandidate[start])
+			{
+				continue; // Removed by the flood of a higher peak
+			}
+
+			final float peakValue = getValue(start);
+			peaks.add(new PointValue(start % this.width, (start % size) / this.width, start / size, peakValue));
+
+			// Flood all voxels that only differ from the peak by noise and remove the candidates in it
+			final float floodLevel = Math.max(peakValue - this.noise, this.minimum);
+			final int mark = peak + 1;
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = start;
+			visited[start] = mark;
+			while (head < tail)
+			{
+				final int voxel = queue[head++];
+				isCandidate[voxel] = false;
+				final int x = voxel % this.width;
+				final int y = (voxel % size) / this.width;
+				final int z = voxel / size;
+				for (int dz = Math.max(0, z - 1); dz <= Math.min(this.depth - 1, z + 1); dz++)
+				{
+					for (int dy = Math.max(0, y - 1); dy <= Math.min(this.height - 1, y + 1); dy++)
+					{
+						for (int dx = Math.max(0, x - 1); dx <= Math.min(this.width - 1, x + 1); dx++)
+						{
+							final int neighbour = (dz * size) + (dy * this.width) + dx;
+							if (visited[neighbour] != mark && this.slices[dz][neighbour - (dz * size)] >= floodLevel)
+							{
+								visited[neighbour] = mark;
+								if (tail == queue.length)
+								{
+									// Compact the queue, grow it if it is still too full
+									System.arraycopy(queue, head, queue, 0, tail - head);
+									tail -= head;
+									head = 0;
+									if (tail > queue.length / 2)
+									{
+										queue = Arrays.copyOf(queue, queue.length * 2);
+									}
+								}
+								queue[tail++] = neighbour;
+							}
+						}
+					}
+				}
+			}
+		}
+
+		return peaks;
+	}
+
+
+	/**
+	 * Get the catalogue of all candidate peaks, from which the peaks can be selected for any noise and any minimum of at least the minimum of this finder.
+	 *
+	 * @param aScaleSlices
+	 *            The winning scale (cell diameter) of each voxel as an array of slices, or null if unknown
+	 *
+	 * @return The peak catalogue
+	 */
+	public PeakCatalogue getCatalogue(final float[][] aScaleSlices)
+	{
+		return new PeakCatalogue(this.slices, aScaleSlices, this.width, this.height, findCandidates(), this.minimum);
+	}
+
+
+	/**
+	 * Set the radii of the neighbourhood in which a peak must be the maximum. Radii are rounded down to whole voxels, with a minimum of 1.
+	 *
+	 * @param aRadiusX
+	 *            The radius in x
+	 * @param aRadiusY
+	 *            The radius in y
+	 * @param aRadiusZ
+	 *            The radius in z
+	 */
+	public void setRadii(final float aRadiusX, final float aRadiusY, final float aRadiusZ)
+	{
+		this.radiusX = Math.max(1, (int) aRadiusX);
+		this.radiusY = Math.max(1, (int) aRadiusY);
+		this.radiusZ = Math.max(1, (int) aRadiusZ);
+	}
+
+
+	/**
+	 * Find all voxels that are the maximum of their neighbourhood and have at least the minimum value.
+	 *
+	 * @return The candidates as volume indices (z * width * height + y * width + x), in ascending order
+	 */
+	private int[] findCandidates()
+	{
+		final float[][] localMaximum = MaximumFilter3D.filter(this.slices, this.width, this.height, this.radiusX, this.radiusY, this.radiusZ);
+		final int size = this.width * this.height;
+
+		// Each slab collects its candidates in a growable array; the slabs finish in any order, so the joined candidates are sorted afterwards
+		final List<int[]> slabs = new ArrayList<>();
+		ParallelProcessor.forRange(0, this.depth, (aStart, aEnd) -> {
+			int[] slabCandidates = new int[1024];
+			int count = 0;
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final float[] slice = this.slices[z];
+				final float[] maxSlice = localMaximum[z];
+				for (int i = 0; i < size; i++)
+				{
+					if (slice[i] >= this.minimum && slice[i] == maxSlice[i])
+					{
+						if (count == slabCandidates.length)
+						{
+							slabCandidates = Arrays.copyOf(slabCandidates, count * 2);
+						}
+						slabCandidates[count++] = (z * size) + i;
+					}
+				}
+			}
+			final int[] slab = Arrays.copyOf(slabCandidates, count);
+			synchronized (slabs)
+			{
+				slabs.add(slab);
+			}
+		});
+
+		int nrOfCandidates = 0;
+		for (final int[] slab : slabs)
+		{
+			nrOfCandidates += slab.length;
+		}
+		final int[] candidates = new int[nrOfCandidates];
+		nrOfCandidates = 0;
+		for (final int[] slab : slabs)
+		{
+			System.arraycopy(slab, 0, candidates, nrOfCandidates, slab.length);
+			nrOfCandidates += slab.length;
+		}
+		Arrays.sort(candidates);
+		return candidates;
+	}
+
+
+	private float getValue(final int aIndex)
+	{
+		final int size = this.width * this.height;
+		return this.slices[aIndex / size][aIndex % size];
+	}
+}
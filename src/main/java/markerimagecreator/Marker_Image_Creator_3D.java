@@ -6,12 +6,18 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.JFileChooser;
 
 import data.Coordinates;
 import data.NucleiSegmentationParameters;
 import data.PointValue;
+import imageprocessing.AttenuationCorrection;
+import imageprocessing.MedianFilter3D;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -25,12 +31,11 @@ import ij.measure.ResultsTable;
 import ij.plugin.Duplicator;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
-import utils.AttenuationAdjuster;
-import utils.MaximaFinder3D;
 import utils.Nucleus3DFileUtils;
 
 /**
- * The plugin Marker_Image_Creator_3D is able to create marker images with different point detection methods in 3D. The options are: Manual points and Laplacian of Gaussian.
+ * The plugin Marker_Image_Creator_3D is able to create marker images with different point detection methods in 3D. The options are: Manual points, Laplacian of Gaussian and Difference of
+ * Gaussians. The last one is a faster approximation of the LoG scales; its markers are saved under the LoG marker name so the other plugins pick them up.
  *
  * @author Esther Markus
  * @author Merijn van Erp
@@ -39,12 +44,33 @@ import utils.Nucleus3DFileUtils;
 public class Marker_Image_Creator_3D implements PlugIn
 {
 	private static final String NONE = "None";
-	public static final String MANUALPOINTS = "Manual points", LOG = "Laplacian of Gaussian";
+	public static final String MANUALPOINTS = "Manual points", LOG = "Laplacian of Gaussian", DOG = "Difference of Gaussians";
 
 	private static final String MARKERFILEPATH_PREF = "Marker_Image_Creator_3D.MarkerFilePath";
 
 	private static final boolean DEBUG = false;
 
+	// The part of the free memory that may be used for LoG scales that are being calculated
+	private static final double LOG_MEMORY_FRACTION = 0.75;
+
+	/**
+	 * The settings of one scale (iteration) of the LoG filter.
+	 */
+	private static class LoGScale
+	{
+		public final double cellDiameter;
+		public final double sigmaXY;
+		public final double sigmaZ;
+
+
+		public LoGScale(final double aCellDiameter, final double aSigmaXY, final double aSigmaZ)
+		{
+			this.cellDiameter = aCellDiameter;
+			this.sigmaXY = aSigmaXY;
+			this.sigmaZ = aSigmaZ;
+		}
+	}
+
 
 	public static String createMarkerFileName(final ImagePlus aImage, final String aMarkerMethod)
 	{
@@ -55,50 +81,10 @@ public class Marker_Image_Creator_3D implements PlugIn
 
 	private String pointDetectionMethod;
 
-
-	/**
-	 * Combine the LoG images based on different sigma sizes into an aggregate image getting the maximum value from the set of images for each pixel.
-	 *
-	 * @param aListOfLoGImages,
-	 *            A list of the LoG images for each different sigma value used
-	 *
-	 * @return The combined image of the different LoG images
-	 */
-	private ImagePlus combineLoGIterations(final ArrayList<ImagePlus> aListOfLoGImages)
-	{
-		final ImagePlus result = aListOfLoGImages.get(0).duplicate();
-		final ImageStack resultStack = result.getImageStack();
-
-		// Create an arrayList of imageStacks
-		final ArrayList<ImageStack> listOfLoGImagesStack = new ArrayList<>();
-		for (int i = 0; i < aListOfLoGImages.size(); i++)
-		{
-			listOfLoGImagesStack.add(aListOfLoGImages.get(i).getImageStack());
-		}
-
-		// Loop through all the pixels and add the highest pixel to the combined image
-		for (int z = 0; z < result.getNSlices(); z++)
-		{
-			for (int x = 0; x < result.getWidth(); x++)
-			{
-				for (int y = 0; y < result.getHeight(); y++)
-				{
-					double value = resultStack.getVoxel(x, y, z); // == image 0
-					for (int i = 1; i < listOfLoGImagesStack.size(); i++)
-					{
-						final double altValue = listOfLoGImagesStack.get(i).getVoxel(x, y, z);
-						if (value < altValue)
-						{
-							value = altValue;
-						}
-					}
-					resultStack.setVoxel(x, y, z, value);
-				}
-			}
-		}
-		result.show();
-		return result;
-	}
+	// The working directory, original image and channel, which identify the cached attenuation correction
+	private File workingDirectory;
+	private String originalTitle;
+	private int nucleusChannel;
 
 
 	/**
@@ -131,65 +117,164 @@ public class Marker_Image_Creator_3D implements PlugIn
 
 
 	/**
-	 * Starts the Laplacian of Gaussian plugin of Daniel Sage (LoG3D), inverts the resulting image and multiplies it by the XYsigma to normalise its values a bit (as larger sigma will typically produce a lower image output).
+	 * Calculate the LoG responses of all scales and fold them into the scale accumulator. The scales are calculated concurrently. The number of scales that is processed at the same time is limited
+	 * by the number of threads and by the available memory, as each scale in progress needs a full float volume.
 	 *
-	 * @param aOriginalImage
-	 *            The original image
-	 * @param aDisplayKernel
-	 *            Should the kernel be shown
-	 * @param aPerSlice
-	 *            Calculate per slice (true) or 3D (false)
-	 * @param aSigmaXY
-	 *            The calculated XY sigma
-	 * @param aSigmaZ
-	 *            The calculated Z sigma
+	 * Scales with a large XY sigma are filtered in the frequency domain (see FourierLoGFilter3D), as the spatial kernels get too wide. The spectrum of the input is then calculated once and shared by
+	 * all these scales.
+	 *
+	 * @param aInput
+	 *            The (median filtered) input volume as float slices. This is shared by all scales and not changed.
+	 * @param aWidth
+	 *            The width of the volume
+	 * @param aHeight
+	 *            The height of the volume
+	 * @param aScales
+	 *            The list of scales to calculate
+	 * @param aAccumulator
+	 *            The accumulator into which each scale is folded as soon as it is done
+	 *
+	 * @return True if all scales have been calculated, false if the calculation was interrupted or has failed
 	 */
-	private ImagePlus createLoGImage(final ImagePlus aOriginalImage, final int aDisplayKernel, final boolean aPerSlice, final double aSigmaXY, final double aSigmaZ)
+	private boolean computeLoGScales(final float[][] aInput, final int aWidth, final int aHeight, final List<LoGScale> aScales, final LoGScaleAccumulator aAccumulator)
 	{
-		String LoG3DInput = "";
-		if (aSigmaZ > 0)
+		// Only create the frequency-domain filter if there are large scales, sized for the largest of them
+		double maxSigmaXY = 0;
+		double maxSigmaZ = 0;
+		for (final LoGScale scale : aScales)
 		{
-			LoG3DInput = "sigmax=" + aSigmaXY + " sigmay=" + aSigmaXY + " sigmaz=" + aSigmaZ + " displaykernel=" + aDisplayKernel + " volume=1";
+			if (scale.sigmaXY >= FourierLoGFilter3D.SIGMA_THRESHOLD)
+			{
+				maxSigmaXY = Math.max(maxSigmaXY, scale.sigmaXY);
+				maxSigmaZ = Math.max(maxSigmaZ, scale.sigmaZ);
+			}
 		}
-		if (aSigmaZ == 0)
+		final FourierLoGFilter3D fourierFilter = maxSigmaXY > 0 ? new FourierLoGFilter3D(aInput, aWidth, aHeight, maxSigmaXY, maxSigmaZ) : null;
+
+		long scaleBytes = (long) aWidth * aHeight * aInput.length * Float.BYTES;
+		if (fourierFilter != null)
 		{
-			// Sigma Z should not be 0 unless explicitely set so by the 'per slice' parameter. Otherwise get a minimum of 1.
-			LoG3DInput = "sigmax=" + aSigmaXY + " sigmay=" + aSigmaXY + " displaykernel=" + aDisplayKernel + " volume=" + (aPerSlice ? "0" : "1");
+			scaleBytes += fourierFilter.getWorkBytes();
 		}
+		final int concurrentScales = getConcurrentScaleCount(aScales.size(), scaleBytes);
+		IJ.log("   Calculating " + aScales.size() + " LoG scales, " + concurrentScales + " at a time");
 
-		IJ.log("LoG input: " + LoG3DInput);
-		// Plugin: LoG3D (Daniel Sage)
-		IJ.run("LoG 3D", LoG3DInput);
+		final ExecutorService executor = Executors.newFixedThreadPool(concurrentScales);
+		try
+		{
+			final List<Future<?>> futures = new ArrayList<>();
+			for (final LoGScale scale : aScales)
+			{
+				futures.add(executor.submit(() -> {
+					final float[][] response;
+					if (fourierFilter != null && scale.sigmaXY >= FourierLoGFilter3D.SIGMA_THRESHOLD)
+					{
+						response = fourierFilter.filter(scale.sigmaXY, scale.sigmaZ);
+					}
+					else
+					{
+						response = LoGFilter3D.filter(aInput, aWidth, aHeight, scale.sigmaXY, scale.sigmaZ);
+					}
+					aAccumulator.addScale(response, scale.cellDiameter);
+					IJ.log("      LoG done for sigma XY " + scale.sigmaXY + " and sigma Z " + scale.sigmaZ);
+					IJ.showProgress(aAccumulator.getScaleCount(), aScales.size());
+				}));
+			}
 
-		// Wait until the new image is displayed
-		ImagePlus logImage;
-		do
+			for (final Future<?> future : futures)
+			{
+				future.get();
+			}
+		}
+		catch (final InterruptedException | ExecutionException e)
+		{
+			IJ.handleException(e);
+			return false;
+		}
+		finally
 		{
-			logImage = IJ.getImage();
-		} while (logImage.getTitle().equals(aOriginalImage.getTitle()));
+			executor.shutdownNow();
+		}
+
+		return true;
+	}
+
 
-		// Invert the image and add to the list of LoGImages
-		IJ.run(logImage, "Divide...", "value=-1.000 stack");
+	/**
+	 * Calculate the combined LoG image: the attenuation correction and median filter on the original image, followed by all the LoG scales.
+	 *
+	 * @param aOriginalImage
+	 *            The input for the LoG
+	 * @param aScales
+	 *            The LoG scales to calculate
+	 * @param aDifferenceOfGaussians
+	 *            Approximate the LoG scales with a Difference of Gaussians scale space instead of filtering each scale separately
+	 * @param aAttenuationCorrection
+	 *            Correct the intensity for the depth first
+	 * @param aMedianRadiusXY
+	 *            The radius in x and y of the median filter
+	 * @param aMedianRadiusZ
+	 *            The radius in z of the median filter
+	 *
+	 * @return The accumulator with the maximum LoG value and winning scale per voxel, or null if the calculation has failed
+	 */
+	private LoGScaleAccumulator createCombinedLoG(final ImagePlus aOriginalImage, final List<LoGScale> aScales, final boolean aDifferenceOfGaussians, final boolean aAttenuationCorrection,
+			final double aMedianRadiusXY, final double aMedianRadiusZ)
+	{
+		if (aAttenuationCorrection)
+		{
+			AttenuationCorrection.correct(aOriginalImage, this.workingDirectory, this.originalTitle, this.nucleusChannel, AttenuationCorrection.DEFAULT_PERCENTILE,
+					AttenuationCorrection.DEFAULT_STANDARD_SLICE, AttenuationCorrection.DEFAULT_START_INTENSITY, AttenuationCorrection.DEFAULT_END_INTENSITY, CurveFitter.EXP_WITH_OFFSET);
+		}
 
-		IJ.run(logImage, "Multiply...", "value=" + aSigmaXY + " stack");
+		// First do some filtering to get rid of noise
+		IJ.log("   Start Median filter 3D nucleus image");
+		final ImagePlus originalImageMedian = MedianFilter3D.filter(aOriginalImage, aMedianRadiusXY, aMedianRadiusZ);
+		IJ.log("   End Median filter 3D");
 
-		return logImage;
+		// Fold each LoG image into a running maximum (and winning scale) as soon as it is created
+		final LoGScaleAccumulator scaleAccumulator = new LoGScaleAccumulator(aOriginalImage.getWidth(), aOriginalImage.getHeight(), aOriginalImage.getNSlices());
+		final float[][] medianSlices = LoGFilter3D.getFloatSlices(originalImageMedian);
+		if (aDifferenceOfGaussians)
+		{
+			final double[] sigmasXY = new double[aScales.size()];
+			final double[] sigmasZ = new double[aScales.size()];
+			final double[] cellDiameters = new double[aScales.size()];
+			for (int i = 0; i < aScales.size(); i++)
+			{
+				sigmasXY[i] = aScales.get(i).sigmaXY;
+				sigmasZ[i] = aScales.get(i).sigmaZ;
+				cellDiameters[i] = aScales.get(i).cellDiameter;
+			}
+			DoGScaleSpace.computeScales(medianSlices, aOriginalImage.getWidth(), aOriginalImage.getHeight(), sigmasXY, sigmasZ, cellDiameters, scaleAccumulator);
+		}
+		else if (!computeLoGScales(medianSlices, aOriginalImage.getWidth(), aOriginalImage.getHeight(), aScales, scaleAccumulator))
+		{
+			return null;
+		}
+
+		return scaleAccumulator;
 	}
 
 
 	/**
 	 * Perform the LoG filter and creates the marker image and marker file.
 	 *
+	 * The combined LoG image, the winning-scale image and the catalogue of all candidate peaks are kept in a cache directory next to the marker files. When the same image is processed again with the
+	 * same LoG settings, the cached LoG is used; with the same maxima radius and a minimum value of at least the one of the cached catalogue, the seeds are directly selected from the catalogue.
+	 *
 	 * @param aOriginalImage
 	 *            The input for the LoG
 	 * @param aTitlemethod,
 	 *            To create the name of the marker file and marker image
 	 * @param aOutputDirectory,
 	 *            Where the marker file and marker image need to be saved
+	 * @param aDifferenceOfGaussians
+	 *            Approximate the LoG scales with a Difference of Gaussians scale space instead of filtering each scale separately
 	 */
-	private void createLoGMarkers(final ImagePlus aOriginalImage, final String aTitleMethod, final File aOutputDirectory)
+	private void createLoGMarkers(final ImagePlus aOriginalImage, final String aTitleMethod, final File aOutputDirectory, final boolean aDifferenceOfGaussians)
 	{
-		IJ.log("Start Laplacian of Gaussian");
+		IJ.log(aDifferenceOfGaussians ? "Start Difference of Gaussians" : "Start Laplacian of Gaussian");
 		final long timeStart = System.currentTimeMillis();
 
 		// Dialog to select the parameters for the LoG and maxima finder
@@ -206,42 +291,22 @@ public class Marker_Image_Creator_3D implements PlugIn
 		double xyRadius = this.parameters[7];
 		final boolean showImages = this.parameters[8] == 1;
 		final boolean attenuationCorrection = this.parameters[9] == 1;
-
-		if (attenuationCorrection)
-		{
-			AttenuationAdjuster.adjustAttenuation(aOriginalImage, 1, 90, 10, 3, 1, 255, CurveFitter.EXP_WITH_OFFSET, null);
-		}
-
-		// First do some filtering to get rid of noise
-		IJ.log("   Start Median filter 3D nucleus image");
-		IJ.run(aOriginalImage, "Median (3D)", "");
-
-		ImagePlus originalImageMedian;
-		do
-		{
-			originalImageMedian = IJ.getImage();
-		} while (originalImageMedian.getTitle().equals(aOriginalImage.getTitle()));
-		originalImageMedian.setTitle(aOriginalImage.getTitle());
-		IJ.log("   End Median filter 3D");
+		final boolean useCache = this.parameters[10] == 1;
+		final double medianRadiusXY = this.parameters[11];
+		final double medianRadiusZ = this.parameters[12];
 
 		// Get factor for z dimension
 		final Calibration cal = aOriginalImage.getCalibration();
 		final double factor = cal.pixelDepth / cal.pixelWidth;
 
-		// Variables to save all the different LoG images
-		final ArrayList<ImagePlus> listOfLoGImages = new ArrayList<>();
+		// Determine the settings of the different LoG filters
+		final List<LoGScale> scales = new ArrayList<>();
 		int count = 0;
 		String logFileName = "";
 		double minSigmaXY = 100000;
 		double minSigmaZ = 100000;
-
-		// For each iteration of the LoG filter
 		for (double cellDiameter = min; cellDiameter <= max; cellDiameter = cellDiameter + step)
 		{
-			final ImagePlus logImage = originalImageMedian.duplicate();
-			logImage.show();
-
-			// Calculate the settings of the different LoG filters
 			final double radius = (cellDiameter / 2);
 			final double sigmaXY = (radius / 3) * 2;
 			double sigmaZ = 0;
@@ -259,30 +324,94 @@ public class Marker_Image_Creator_3D implements PlugIn
 				minSigmaZ = sigmaZ;
 			}
 			logFileName = logFileName + createAdditionOfFileName(sigmaXY, sigmaZ, true);
-			listOfLoGImages.add(createLoGImage(logImage, (int) displayKernel, perSlice, sigmaXY, sigmaZ));
-			logImage.close();
+			scales.add(new LoGScale(cellDiameter, sigmaXY, sigmaZ));
+			if (displayKernel == 1)
+			{
+				LoGFilter3D.createKernelImage(sigmaXY, sigmaZ).show();
+			}
 		}
-		final ImagePlus logCombine = combineLoGIterations(listOfLoGImages);
-		IJ.log("   End Laplacian of Gaussian");
-		final long timeEndLoG = System.currentTimeMillis();
-
-		// Start the maximum finder
 		xyRadius = Math.max(minSigmaXY, xyRadius); // Make sure that the default 0 isn't used
-		final List<List<PointValue>> listofslicesWithSeeds = findMaximums(logCombine, (float) minValue, (float) noise, (float) xyRadius, (float) minSigmaZ);
-		if (!showImages)
+		final double zRadius = Math.max(1, minSigmaZ);
+
+		// The cache files are identified by the image, the LoG settings and, for the catalogue, the maxima radii
+		final String logName = aTitleMethod + (aDifferenceOfGaussians ? "_DoG" : "") + "_n=" + count + logFileName;
+		final File cacheDir = new File(aOutputDirectory.getPath() + File.separator + NucleiSegmentationParameters.MI_LOG_CACHE_DIR);
+		if (!cacheDir.exists())
+		{
+			cacheDir.mkdir();
+		}
+		final String cacheName = cacheDir.getPath() + File.separator + logName + (attenuationCorrection ? "_Att" : "") + "_Med" + medianRadiusXY + "-" + medianRadiusZ;
+		final File logFile = new File(cacheName + "_LoG.tif");
+		final File scaleFile = new File(cacheName + "_Scale.tif");
+		final File catalogueFile = new File(cacheName + createAdditionOfFileName(xyRadius, zRadius, false) + "_Peaks.txt");
+
+		PeakCatalogue catalogue = null;
+		if (useCache && catalogueFile.exists())
+		{
+			try
+			{
+				catalogue = PeakCatalogue.load(catalogueFile);
+				if (catalogue.getMinimum() > minValue)
+				{
+					catalogue = null; // Created for a higher minimum, so it misses peaks
+				}
+				else
+				{
+					IJ.log("   Using the cached peak catalogue " + catalogueFile.getName());
+				}
+			}
+			catch (final IOException ioe)
+			{
+				IJ.log("   Could not read the cached peak catalogue: " + ioe.getMessage());
+			}
+		}
+
+		ImagePlus logCombine = null;
+		ImagePlus scaleImage = null;
+		if (catalogue == null || showImages)
 		{
-			logCombine.changes = false;
-			logCombine.close();
-			for (final ImagePlus img : listOfLoGImages)
+			if (useCache && logFile.exists() && scaleFile.exists())
 			{
-				img.changes = false;
-				img.close();
+				IJ.log("   Using the cached combined LoG " + logFile.getName());
+				logCombine = IJ.openImage(logFile.getPath());
+				scaleImage = IJ.openImage(scaleFile.getPath());
 			}
-			originalImageMedian.close();
+			else
+			{
+				final LoGScaleAccumulator scaleAccumulator = createCombinedLoG(aOriginalImage, scales, aDifferenceOfGaussians, attenuationCorrection, medianRadiusXY,
+						medianRadiusZ);
+				if (scaleAccumulator == null)
+				{
+					return;
+				}
+				logCombine = scaleAccumulator.getMaximumImage("Combined LoG", cal);
+				scaleImage = scaleAccumulator.getScaleImage("LoG scale (cell diameter)", cal);
+				IJ.saveAsTiff(logCombine, logFile.getPath());
+				IJ.saveAsTiff(scaleImage, scaleFile.getPath());
+			}
+		}
+		IJ.log(aDifferenceOfGaussians ? "   End Difference of Gaussians" : "   End Laplacian of Gaussian");
+		final long timeEndLoG = System.currentTimeMillis();
+
+		// Find all candidate peaks once; the seeds for the given minimum and noise are selected from this catalogue
+		if (catalogue == null)
+		{
+			final LocalMaximaFinder3D maximaFinder = new LocalMaximaFinder3D(logCombine, (float) noise, (float) minValue);
+			maximaFinder.setRadii((float) xyRadius, (float) xyRadius, (float) zRadius);
+			catalogue = maximaFinder.getCatalogue(LoGFilter3D.getFloatSlices(scaleImage));
+			catalogue.save(catalogueFile);
+		}
+		final List<List<PointValue>> listofslicesWithSeeds = getSeedsPerSlice(catalogue.getPeaks((float) minValue, (float) noise), aOriginalImage.getNSlices());
+
+		if (showImages)
+		{
+			// The winning scale per voxel gives an estimate of the nucleus size
+			logCombine.show();
+			scaleImage.show();
 		}
 
 		// Create a new marker image
-		final String nametotal = aTitleMethod + "_n=" + count + logFileName + createAdditionOfFileName(xyRadius, minSigmaZ < 1 ? 1 : minSigmaZ, false);
+		final String nametotal = logName + createAdditionOfFileName(xyRadius, zRadius, false);
 		createMarkerImage(aOriginalImage, listofslicesWithSeeds, aOutputDirectory, nametotal);
 		final long timeEndMaximaFinder = System.currentTimeMillis();
 
@@ -408,6 +537,27 @@ public class Marker_Image_Creator_3D implements PlugIn
 	}
 
 
+	/**
+	 * Determine how many LoG scales can be calculated at the same time. This is limited by the number of threads ImageJ may use and by the free heap space, as each scale in progress holds one full
+	 * float volume (and possibly a working spectrum) until it is folded into the running maximum.
+	 *
+	 * @param aNrOfScales
+	 *            The total number of scales
+	 * @param aVolumeBytes
+	 *            The memory needed per scale in progress in bytes
+	 *
+	 * @return The number of scales to calculate concurrently (at least 1)
+	 */
+	private int getConcurrentScaleCount(final int aNrOfScales, final long aVolumeBytes)
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		final long memoryLimit = (long) ((freeMemory * LOG_MEMORY_FRACTION) / Math.max(1, aVolumeBytes));
+
+		return (int) Math.max(1, Math.min(memoryLimit, Math.min(Prefs.getThreads(), aNrOfScales)));
+	}
+
+
 	/**
 	 * Ask to select different methods for point detection. Repeating asking until it is cancelled.
 	 *
@@ -453,19 +603,25 @@ public class Marker_Image_Creator_3D implements PlugIn
 		final double noisePref = Prefs.get(NucleiSegmentationParameters.MI_NOISE, 1);
 		final double minLoGPref = Prefs.get(NucleiSegmentationParameters.MI_MINIMUM_LOG_VALUE, 0);
 		final double radiusPref = Prefs.get(NucleiSegmentationParameters.MI_XY_RADIUS, 0);
+		final double medianXYPref = Prefs.get(NucleiSegmentationParameters.MI_MEDIAN_RADIUS_XY, MedianFilter3D.DEFAULT_RADIUS);
+		final double medianZPref = Prefs.get(NucleiSegmentationParameters.MI_MEDIAN_RADIUS_Z, MedianFilter3D.DEFAULT_RADIUS);
 
 		final boolean perSlicePref = Prefs.get(NucleiSegmentationParameters.MI_PROCESS_PER_SLICE, false);
 		final boolean attAdjustmentPref = Prefs.get(NucleiSegmentationParameters.MI_ATTENUATION_ADJUSTMENT, false);
+		final boolean useCachePref = Prefs.get(NucleiSegmentationParameters.MI_USE_LOG_CACHE, true);
 
 		final GenericDialog dialog = new GenericDialog("Parameters nucleus identifier");
 		dialog.addMessage("Parameters for Laplacian of Gaussian");
 		dialog.addNumericField("Minimal size of a nucleus", minSizePref, 1);
 		dialog.addNumericField("Maximal size of nucleus", maxSizePref, 1);
 		dialog.addNumericField("Step size", stepSizePref, 1);
+		dialog.addNumericField("Median radius XY", medianXYPref, 1, 5, "pixel");
+		dialog.addNumericField("Median radius Z", medianZPref, 1, 5, "slice");
 		dialog.addCheckbox("Display LoG Kernel", false);
 		dialog.addCheckbox("Process per slice", perSlicePref);
 		dialog.addCheckbox("Show intermediate images", false);
 		dialog.addCheckbox("Adjust intesity for depth?", attAdjustmentPref);
+		dialog.addCheckbox("Reuse cached LoG and peaks", useCachePref);
 
 		dialog.addMessage("Parameters for maxima filter");
 		dialog.addNumericField("Noise", noisePref, 3);
@@ -477,21 +633,27 @@ public class Marker_Image_Creator_3D implements PlugIn
 		final double min = dialog.getNextNumber();
 		final double max = dialog.getNextNumber();
 		final double step = dialog.getNextNumber();
+		final double medianRadiusXY = dialog.getNextNumber();
+		final double medianRadiusZ = dialog.getNextNumber();
 		final double kernel = dialog.getNextBoolean() ? 1 : 0;
 		final double perSlice = dialog.getNextBoolean() ? 1 : 0;
 		final double showImages = dialog.getNextBoolean() ? 1 : 0;
 		final double attenuationCorrection = dialog.getNextBoolean() ? 1 : 0;
+		final double useCache = dialog.getNextBoolean() ? 1 : 0;
 
 		final double noise = dialog.getNextNumber();
 		final double minValue = dialog.getNextNumber();
 		final double radius = dialog.getNextNumber();
-		final double[] result = { min, max, step, kernel, noise, perSlice, minValue, radius, showImages, attenuationCorrection };
+		final double[] result = { min, max, step, kernel, noise, perSlice, minValue, radius, showImages, attenuationCorrection, useCache, medianRadiusXY, medianRadiusZ };
 
 		Prefs.set(NucleiSegmentationParameters.MI_MINIMUM_SIZE, min);
 		Prefs.set(NucleiSegmentationParameters.MI_MAXIMUM_SIZE, max);
 		Prefs.set(NucleiSegmentationParameters.MI_STEPSIZE, step);
+		Prefs.set(NucleiSegmentationParameters.MI_MEDIAN_RADIUS_XY, medianRadiusXY);
+		Prefs.set(NucleiSegmentationParameters.MI_MEDIAN_RADIUS_Z, medianRadiusZ);
 		Prefs.set(NucleiSegmentationParameters.MI_PROCESS_PER_SLICE, perSlice == 1 ? true : false);
 		Prefs.set(NucleiSegmentationParameters.MI_ATTENUATION_ADJUSTMENT, attenuationCorrection == 1 ? true : false);
+		Prefs.set(NucleiSegmentationParameters.MI_USE_LOG_CACHE, useCache == 1 ? true : false);
 		Prefs.set(NucleiSegmentationParameters.MI_NOISE, noise);
 		Prefs.set(NucleiSegmentationParameters.MI_MINIMUM_LOG_VALUE, minValue);
 		Prefs.set(NucleiSegmentationParameters.MI_XY_RADIUS, radius);
@@ -503,37 +665,24 @@ public class Marker_Image_Creator_3D implements PlugIn
 
 
 	/**
-	 * Find the maximums in an image in an area of certain radius and noise.
+	 * Organise the seeds per slice.
 	 *
-	 * @param aImage,
-	 *            The input image on which the maximums will be sought
-	 * @param aMinimum,
-	 *            The minimal value for a maximum
-	 * @param aNoise,
-	 *            The minimum value difference at which a neighbouring pixel is no longer considered as part of the same maximum (ie. not just different by noise)
-	 * @param aRadiusXY,
-	 *            The XY radius in which just one maximum can be located
-	 * @param aRadiusZ,
-	 *            The Z radius in which just one maximum can be located
+	 * @param aSeeds
+	 *            The list of all seeds
+	 * @param aNrOfSlices
+	 *            The number of slices in the image
 	 *
 	 * @return A list which contains for each slice a list of seeds (maximums).
 	 */
-	private List<List<PointValue>> findMaximums(final ImagePlus aImage, final float aMinimum, final float aNoise, final float aRadiusXY, final float aRadiusZ)
+	private List<List<PointValue>> getSeedsPerSlice(final List<PointValue> aSeeds, final int aNrOfSlices)
 	{
-		// Create a maximaFinder and find all maximums
-		final MaximaFinder3D maximaFinder = new MaximaFinder3D(aImage, aNoise, aMinimum);
-		maximaFinder.setRadii(aRadiusXY, aRadiusXY, Math.max(1, aRadiusZ));
-
-		// Create a list of maximums per slice
-		final List<List<PointValue>> listOfSlicesWithSeeds = new ArrayList<>(aImage.getNSlices());
-		for (int i = 0; i < aImage.getNSlices(); i++)
+		final List<List<PointValue>> listOfSlicesWithSeeds = new ArrayList<>(aNrOfSlices);
+		for (int i = 0; i < aNrOfSlices; i++)
 		{
 			listOfSlicesWithSeeds.add(i, new ArrayList<PointValue>());
 		}
 
-		// Get the maximums and put them in the correct slice list
-		final ArrayList<PointValue> list = maximaFinder.getListPeaks();
-		for (final PointValue pv : list)
+		for (final PointValue pv : aSeeds)
 		{
 			final int z = (int) pv.getZcoordinate();
 			listOfSlicesWithSeeds.get(z).add(pv);
@@ -622,7 +771,7 @@ public class Marker_Image_Creator_3D implements PlugIn
 		}
 
 		// Dialog for input to select the different point detection methods 3D, choose from String[] methods.
-		final String[] methods = { NONE, MANUALPOINTS, LOG };
+		final String[] methods = { NONE, MANUALPOINTS, LOG, DOG };
 		final boolean okayed = dialogMethodSelection(methods);
 		if (!okayed || this.pointDetectionMethod == null)
 		{
@@ -634,6 +783,9 @@ public class Marker_Image_Creator_3D implements PlugIn
 		final File workDirectory = NucleiSegmentationParameters.getWorkingDirectory();
 		if (workDirectory != null)
 		{
+			this.workingDirectory = workDirectory;
+			this.originalTitle = originalImage.getShortTitle();
+			this.nucleusChannel = nucChannel;
 			final File outputDirectory = new File(workDirectory.getPath() + File.separator + NucleiSegmentationParameters.MI_MARKERS_MAIN_DIR);
 			if (!outputDirectory.exists())
 			{
@@ -645,7 +797,8 @@ public class Marker_Image_Creator_3D implements PlugIn
 			try
 			{
 				// Determine the point detection method and create the marker image name
-				final String titlemethod = createMarkerFileName(originalImage, this.pointDetectionMethod);
+				// The DoG markers replace the LoG markers, so they get the same base name
+				final String titlemethod = createMarkerFileName(originalImage, this.pointDetectionMethod.equals(DOG) ? LOG : this.pointDetectionMethod);
 				if (this.pointDetectionMethod.equals(MANUALPOINTS))
 				{
 					// Select the directory where the manual annotations of the PointPicker 3D is located
@@ -660,20 +813,21 @@ public class Marker_Image_Creator_3D implements PlugIn
 						createMarkerImage(originalImage, listofslices, outputDirectory, titlemethod);
 					}
 				}
-				else // Laplacian of Gaussian
+				else // Laplacian of Gaussian or its DoG approximation
 				{
 					// Perform the LoG and save the marker image and marker file
+					final boolean differenceOfGaussians = this.pointDetectionMethod.equals(DOG);
 					if (nucChannel > 0)
 					{
 						final ImagePlus duplicate = new Duplicator().run(originalImage, nucChannel, nucChannel, 1, originalImage.getNSlices(), 1, 1);
 						duplicate.show();
-						createLoGMarkers(duplicate, titlemethod, outputDirectory);
+						createLoGMarkers(duplicate, titlemethod, outputDirectory, differenceOfGaussians);
 						duplicate.changes = false;
 						duplicate.close();
 					}
 					else
 					{
-						createLoGMarkers(originalImage, titlemethod, outputDirectory);
+						createLoGMarkers(originalImage, titlemethod, outputDirectory, differenceOfGaussians);
 					}
 				}
 			}
@@ -684,13 +838,14 @@ public class Marker_Image_Creator_3D implements PlugIn
 		}
 
 		// Save parameters
-		if (this.pointDetectionMethod.equals(LOG))
+		if (this.pointDetectionMethod.equals(LOG) || this.pointDetectionMethod.equals(DOG))
 		{
 			final String[] paramNames = { NucleiSegmentationParameters.MI_DETECTION_METHOD, NucleiSegmentationParameters.MI_MINIMUM_SIZE, NucleiSegmentationParameters.MI_MAXIMUM_SIZE,
 					NucleiSegmentationParameters.MI_STEPSIZE, NucleiSegmentationParameters.MI_PROCESS_PER_SLICE, NucleiSegmentationParameters.MI_NOISE,
-					NucleiSegmentationParameters.MI_MINIMUM_LOG_VALUE, NucleiSegmentationParameters.MI_XY_RADIUS };
+					NucleiSegmentationParameters.MI_MINIMUM_LOG_VALUE, NucleiSegmentationParameters.MI_XY_RADIUS,
+					NucleiSegmentationParameters.MI_MEDIAN_RADIUS_XY, NucleiSegmentationParameters.MI_MEDIAN_RADIUS_Z };
 			final String[] params = { this.pointDetectionMethod + "", this.parameters[0] + "", this.parameters[1] + "", this.parameters[2] + "", this.parameters[5] + "", this.parameters[4] + "",
-					this.parameters[6] + "", this.parameters[7] + "" };
+					this.parameters[6] + "", this.parameters[7] + "", this.parameters[11] + "", this.parameters[12] + "" };
 			NucleiSegmentationParameters.writeToParametersFile(paramNames, params, false, workDirectory);
 		}
 
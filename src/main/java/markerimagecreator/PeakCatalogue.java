@@ -0,0 +1,365 @@
+package markerimagecreator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import data.PointValue;
+import ij.measure.ResultsTable;
+
+/**
+ * A catalogue of all candidate peaks in a (combined LoG) image, from which the seeds for any minimum value and noise tolerance can be selected without looking at the image again. For each candidate
+ * it holds the position, value, winning LoG scale and prominence, and the merge tree of the candidates: the elder candidate into which it merges when lowering the level (its parent) and the level at
+ * which that happens (its saddle). The prominence is the value minus the saddle.
+ *
+ * The selection gives the same result as the flood in LocalMaximaFinder3D: a candidate is removed if a higher, kept peak floods to it at the level peak value minus noise. Two candidates are connected
+ * at a level if the lowest saddle on their path in the merge tree is at least that level. Floods do not go below the minimum value, so the catalogue can be used for any minimum that is at least the
+ * minimum with which it has been created.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class PeakCatalogue
+{
+	private static final String X = "X", Y = "Y", Z = "Z", VALUE = "Value", PROMINENCE = "Prominence", SCALE = "Scale", PARENT = "Parent", SADDLE = "Saddle";
+
+	// The candidates, sorted on descending value (and ascending voxel index on equal values)
+	private final int[] x;
+	private final int[] y;
+	private final int[] z;
+	private final float[] value;
+	private final float[] scale;
+	private final int[] parent;
+	private final float[] saddle;
+
+	// The lowest level of the merge tree
+	private final float minimum;
+
+
+	/**
+	 * Create the catalogue for a set of candidate peaks. This sweeps through all voxels of at least the minimum value from high to low, joining them into connected (26-neighbourhood) components. When
+	 * two components that both contain a candidate meet, the candidate of the component with the lower peak gets the other as its parent.
+	 *
+	 * @param aSlices
+	 *            The image as an array of slices
+	 * @param aScaleSlices
+	 *            The winning scale (cell diameter) of each voxel, may be null
+	 * @param aWidth
+	 *            The width of the image
+	 * @param aHeight
+	 *            The height of the image
+	 * @param aCandidates
+	 *            The voxel indices (z * width * height + y * width + x) of the candidates
+	 * @param aMinimum
+	 *            The minimum value of the candidates and of the sweep
+	 */
+	PeakCatalogue(final float[][] aSlices, final float[][] aScaleSlices, final int aWidth, final int aHeight, final int[] aCandidates, final float aMinimum)
+	{
+		final int size = aWidth * aHeight;
+		final int depth = aSlices.length;
+		this.minimum = aMinimum;
+
+		// Sort all voxels of at least the minimum from high to low: the sortable value in the high bits and the voxel index in the low bits
+		int count = 0;
+		for (final float[] slice : aSlices)
+		{
+			for (final float voxelValue : slice)
+			{
+				if (voxelValue >= aMinimum)
+				{
+					count++;
+				}
+			}
+		}
+		final long[] order = new long[count];
+		count = 0;
+		for (int zi = 0; zi < depth; zi++)
+		{
+			for (int i = 0; i < size; i++)
+			{
+				final float voxelValue = aSlices[zi][i];
+				if (voxelValue >= aMinimum)
+				{
+					final int bits = Float.floatToIntBits(voxelValue);
+					final int sortable = bits ^ ((bits >> 31) & 0x7fffffff);
+					order[count++] = ((long) ~sortable << 32) | ((zi * size) + i);
+				}
+			}
+		}
+		Arrays.parallelSort(order);
+
+		final boolean[] isCandidate = new boolean[size * depth];
+		for (final int candidate : aCandidates)
+		{
+			isCandidate[candidate] = true;
+		}
+		final int nrOfCandidates = aCandidates.length;
+		this.x = new int[nrOfCandidates];
+		this.y = new int[nrOfCandidates];
+		this.z = new int[nrOfCandidates];
+		this.value = new float[nrOfCandidates];
+		this.scale = new float[nrOfCandidates];
+		this.parent = new int[nrOfCandidates];
+		this.saddle = new float[nrOfCandidates];
+
+		// Union-find over the voxels; -1 is a voxel that has not been reached yet. For each root the candidate of the component (the first, so highest, one) or -1.
+		final int[] components = new int[size * depth];
+		Arrays.fill(components, -1);
+		final int[] componentCandidate = new int[size * depth];
+		int candidateNr = 0;
+		for (final long entry : order)
+		{
+			final int voxel = (int) entry;
+			final int vz = voxel / size;
+			final int vy = (voxel % size) / aWidth;
+			final int vx = voxel % aWidth;
+			final float level = aSlices[vz][voxel % size];
+
+			components[voxel] = voxel;
+			componentCandidate[voxel] = -1;
+			if (isCandidate[voxel])
+			{
+				this.x[candidateNr] = vx;
+				this.y[candidateNr] = vy;
+				this.z[candidateNr] = vz;
+				this.value[candidateNr] = level;
+				this.scale[candidateNr] = aScaleSlices != null ? aScaleSlices[vz][voxel % size] : 0;
+				this.parent[candidateNr] = -1;
+				this.saddle[candidateNr] = aMinimum;
+				componentCandidate[voxel] = candidateNr++;
+			}
+
+			for (int nz = Math.max(0, vz - 1); nz <= Math.min(depth - 1, vz + 1); nz++)
+			{
+				for (int ny = Math.max(0, vy - 1); ny <= Math.min(aHeight - 1, vy + 1); ny++)
+				{
+					for (int nx = Math.max(0, vx - 1); nx <= Math.min(aWidth - 1, vx + 1); nx++)
+					{
+						final int neighbour = (nz * size) + (ny * aWidth) + nx;
+						if (components[neighbour] < 0)
+						{
+							continue;
+						}
+
+						final int root = findRoot(components, voxel);
+						final int neighbourRoot = findRoot(components, neighbour);
+						if (root != neighbourRoot)
+						{
+							// Elder rule: the candidate with the higher peak (the lower number) survives the merge
+							final int candidate = componentCandidate[root];
+							final int neighbourCandidate = componentCandidate[neighbourRoot];
+							int survivor = Math.max(candidate, neighbourCandidate);
+							if (candidate >= 0 && neighbourCandidate >= 0)
+							{
+								survivor = Math.min(candidate, neighbourCandidate);
+								final int merged = Math.max(candidate, neighbourCandidate);
+								this.parent[merged] = survivor;
+								this.saddle[merged] = level;
+							}
+							components[neighbourRoot] = root;
+							componentCandidate[root] = survivor;
+						}
+					}
+				}
+			}
+		}
+	}
+
+
+	private PeakCatalogue(final int aSize, final float aMinimum)
+	{
+		this.x = new int[aSize];
+		this.y = new int[aSize];
+		this.z = new int[aSize];
+		this.value = new float[aSize];
+		this.scale = new float[aSize];
+		this.parent = new int[aSize];
+		this.saddle = new float[aSize];
+		this.minimum = aMinimum;
+	}
+
+
+	/**
+	 * Read a catalogue that has been saved with save().
+	 *
+	 * @param aFile
+	 *            The catalogue file
+	 *
+	 * @return The catalogue
+	 *
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	public static PeakCatalogue load(final File aFile) throws IOException
+	{
+		final ResultsTable table = ResultsTable.open(aFile.getPath());
+		final int size = table.size();
+
+		// The roots never merge, so their saddle is the minimum of the catalogue
+		float catalogueMinimum = Float.POSITIVE_INFINITY;
+		for (int i = 0; i < size; i++)
+		{
+			if ((int) table.getValue(PARENT, i) < 0)
+			{
+				catalogueMinimum = Math.min(catalogueMinimum, (float) table.getValue(SADDLE, i));
+			}
+		}
+
+		final PeakCatalogue catalogue = new PeakCatalogue(size, catalogueMinimum);
+		for (int i = 0; i < size; i++)
+		{
+			catalogue.x[i] = (int) table.getValue(X, i);
+			catalogue.y[i] = (int) table.getValue(Y, i);
+			catalogue.z[i] = (int) table.getValue(Z, i);
+			catalogue.value[i] = (float) table.getValue(VALUE, i);
+			catalogue.scale[i] = (float) table.getValue(SCALE, i);
+			catalogue.parent[i] = (int) table.getValue(PARENT, i);
+			catalogue.saddle[i] = (float) table.getValue(SADDLE, i);
+		}
+
+		return catalogue;
+	}
+
+
+	private static int findRoot(final int[] aComponents, final int aVoxel)
+	{
+		int voxel = aVoxel;
+		while (aComponents[voxel] != voxel)
+		{
+			aComponents[voxel] = aComponents[aComponents[voxel]]; // Path halving
+			voxel = aComponents[voxel];
+		}
+		return voxel;
+	}
+
+
+	/**
+	 * Get the lowest minimum value for which this catalogue can select peaks.
+	 *
+	 * @return The minimum with which the catalogue has been created
+	 */
+	public float getMinimum()
+	{
+		return this.minimum;
+	}
+
+
+	/**
+	 * Select the peaks for a minimum value and noise tolerance. The result is the same as that of the LocalMaximaFinder3D with these settings on the image of the catalogue.
+	 *
+	 * @param aMinimum
+	 *            The minimum value of a peak. Must be at least the minimum of the catalogue.
+	 * @param aNoise
+	 *            The noise tolerance
+	 *
+	 * @return The peaks, sorted from the highest to the lowest value
+	 */
+	public ArrayList<PointValue> getPeaks(final float aMinimum, final float aNoise)
+	{
+		final int size = this.value.length;
+
+		// Build the merge tree: the candidates are the leaves (0 .. size-1), each merge adds a node at the saddle level
+		final Integer[] merges = new Integer[size];
+		int nrOfMerges = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (this.parent[i] >= 0)
+			{
+				merges[nrOfMerges++] = i;
+			}
+		}
+		Arrays.sort(merges, 0, nrOfMerges, (aFirst, aSecond) -> {
+			final int compare = Float.compare(this.saddle[aSecond], this.saddle[aFirst]);
+			return compare != 0 ? compare : Integer.compare(aFirst, aSecond);
+		});
+
+		final int[] treeParent = new int[size + nrOfMerges];
+		final float[] level = new float[size + nrOfMerges];
+		final int[] components = new int[size];
+		final int[] componentNode = new int[size];
+		Arrays.fill(treeParent, -1);
+		for (int i = 0; i < size; i++)
+		{
+			components[i] = i;
+			componentNode[i] = i;
+			level[i] = this.value[i];
+		}
+		for (int m = 0; m < nrOfMerges; m++)
+		{
+			final int node = size + m;
+			final int root = findRoot(components, merges[m]);
+			final int parentRoot = findRoot(components, this.parent[merges[m]]);
+			level[node] = this.saddle[merges[m]];
+			treeParent[componentNode[root]] = node;
+			treeParent[componentNode[parentRoot]] = node;
+			components[root] = parentRoot;
+			componentNode[parentRoot] = node;
+		}
+
+		// Walk through the candidates from high to low. A candidate is flooded by a kept peak in the subtree of one of its ancestors if that peak minus the noise is not above the ancestor level.
+		final float[] lowestKept = new float[size + nrOfMerges];
+		Arrays.fill(lowestKept, Float.POSITIVE_INFINITY);
+		final ArrayList<PointValue> peaks = new ArrayList<>();
+		for (int i = 0; i < size && this.value[i] >= aMinimum; i++)
+		{
+			boolean flooded = false;
+			for (int node = treeParent[i]; node >= 0 && level[node] >= aMinimum; node = treeParent[node])
+			{
+				if (lowestKept[node] - aNoise <= level[node])
+				{
+					flooded = true;
+					break;
+				}
+			}
+
+			if (!flooded)
+			{
+				peaks.add(new PointValue(this.x[i], this.y[i], this.z[i], this.value[i]));
+				for (int node = treeParent[i]; node >= 0 && lowestKept[node] > this.value[i]; node = treeParent[node])
+				{
+					lowestKept[node] = this.value[i];
+				}
+			}
+		}
+
+		return peaks;
+	}
+
+
+	/**
+	 * Get the number of candidates in the catalogue.
+	 *
+	 * @return The number of candidate peaks
+	 */
+	public int size()
+	{
+		return this.value.length;
+	}
+
+
+	/**
+	 * Save the catalogue as a table with one row per candidate.
+	 *
+	 * @param aFile
+	 *            The file to save to
+	 */
+	public void save(final File aFile)
+	{
+		final ResultsTable table = new ResultsTable();
+		table.setPrecision(9);
+		for (int i = 0; i < this.value.length; i++)
+		{
+			table.incrementCounter();
+			table.addValue(X, this.x[i]);
+			table.addValue(Y, this.y[i]);
+			table.addValue(Z, this.z[i]);
+			table.addValue(VALUE, this.value[i]);
+			table.addValue(PROMINENCE, this.value[i] - this.saddle[i]);
+			table.addValue(SCALE, this.scale[i]);
+			table.addValue(PARENT, this.parent[i]);
+			table.addValue(SADDLE, this.saddle[i]);
+		}
+		table.save(aFile.getPath());
+	}
+}
@@ -0,0 +1,98 @@
+package migrationmodeanalysis;
+
+/**
+ * A disjoint-set (union-find) structure over the elements 0 to n - 1. Sets are merged by size and the paths to the roots are halved on each look-up, so any sequence of merges and look-ups takes
+ * nearly linear time and no recursion is needed, however large the sets become.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class DisjointSets
+{
+	private final int[] parents;
+	private final int[] sizes;
+
+
+	/**
+	 * Create the structure with each element in its own set.
+	 *
+	 * @param aNrOfElements
+	 *            The number of elements
+	 */
+	public DisjointSets(final int aNrOfElements)
+	{
+		this.parents = new int[aNrOfElements];
+		this.sizes = new int[aNrOfElements];
+		for (int i = 0; i < aNrOfElements; i++)
+		{
+			this.parents[i] = i;
+			this.sizes[i] = 1;
+		}
+	}
+
+
+	/**
+	 * Get the representative of the set of an element.
+	 *
+	 * @param aElement
+	 *            The element
+	 *
+	 * @return The root element of the set, which is the same for all elements of the set
+	 */
+	public int find(final int aElement)
+	{
+		int element = aElement;
+		while (this.parents[element] != element)
+		{
+			this.parents[element] = this.parents[this.parents[element]]; // Path halving
+			element = this.parents[element];
+		}
+		return element;
+	}
+
+
+	/**
+	 * Get the number of elements in the set of an element.
+	 *
+	 * @param aElement
+	 *            The element
+	 *
+	 * @return The size of the set
+	 */
+	public int getSize(final int aElement)
+	{
+		return this.sizes[find(aElement)];
+	}
+
+
+	/**
+	 * Merge the sets of two elements.
+	 *
+	 * @param aFirst
+	 *            An element of the first set
+	 * @param aSecond
+	 *            An element of the second set
+	 *
+	 * @return The root of the merged set, or -1 if both elements were already in the same set
+	 */
+	public int union(final int aFirst, final int aSecond)
+	{
+		int first = find(aFirst);
+		int second = find(aSecond);
+		if (first == second)
+		{
+			return -1;
+		}
+
+		// Hang the smaller set under the larger one to keep the trees shallow
+		if (this.sizes[first] < this.sizes[second])
+		{
+			final int swap = first;
+			first = second;
+			second = swap;
+		}
+		this.parents[second] = first;
+		this.sizes[first] += this.sizes[second];
+		return first;
+	}
+}
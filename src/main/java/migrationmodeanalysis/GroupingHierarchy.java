@@ -0,0 +1,216 @@
+package migrationmodeanalysis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import data.Cell3D;
+import data.Cell3D_Group;
+import data.Coordinates;
+import ij.measure.Calibration;
+
+/**
+ * A single-linkage hierarchy over touching cells, built once per image. Two touching cells are linked at the (calibrated) distance between their nucleus seeds, and the groups at a maximum link
+ * distance are the sets of cells that are connected through links of at most that distance. Without a maximum, the groups are those of all touching cells. For images without a cell (actin)
+ * segmentation, the hierarchy can instead link all nuclei that lie within a distance of each other.
+ *
+ * The hierarchy is built with Kruskal's algorithm: the links are merged from short to long with a union-find. While merging, the cells are kept in an order in which each group at any height is a
+ * consecutive run, with for each pair of neighbouring cells in that order the height at which they are merged. The groups for any maximum link distance are then found in one pass over the cells,
+ * without calculating the connections again.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class GroupingHierarchy
+{
+	private final List<Cell3D> cells;
+
+	// The cells (as indices) in dendrogram order and, for each cell in that order, the height at which it is merged with the next one (infinite if never)
+	private final int[] order;
+	private final double[] mergeHeights;
+
+	/**
+	 * A link between two cells (as indices) at a distance.
+	 */
+	private static class Link
+	{
+		private final int first;
+		private final int second;
+		private final double distance;
+
+
+		private Link(final int aFirst, final int aSecond, final double aDistance)
+		{
+			this.first = aFirst;
+			this.second = aSecond;
+			this.distance = aDistance;
+		}
+	}
+
+
+	/**
+	 * Build the hierarchy over a set of touching cells.
+	 *
+	 * @param aCells
+	 *            The cells to group. Touching neighbours that are not in the list are ignored.
+	 * @param aCalibration
+	 *            The calibration of the image, for the distances between the nucleus seeds
+	 */
+	public GroupingHierarchy(final List<Cell3D> aCells, final Calibration aCalibration)
+	{
+		this(aCells, getTouchingLinks(aCells, aCalibration));
+	}
+
+
+	/**
+	 * Build the hierarchy over the nuclei of a grid, linking each pair of nuclei that are within a distance of each other (whether the cells touch or not).
+	 *
+	 * @param aGrid
+	 *            The grid over the nuclei of the cells to group
+	 * @param aLinkRadius
+	 *            The maximum (calibrated) distance between two nuclei to link them
+	 */
+	public GroupingHierarchy(final NucleusGrid aGrid, final double aLinkRadius)
+	{
+		this(aGrid.getCells(), getProximityLinks(aGrid, aLinkRadius));
+	}
+
+
+	private GroupingHierarchy(final List<Cell3D> aCells, final List<Link> aLinks)
+	{
+		this.cells = new ArrayList<>(aCells);
+		final int nrOfCells = this.cells.size();
+		aLinks.sort((aFirst, aSecond) -> Double.compare(aFirst.distance, aSecond.distance));
+
+		// Kruskal: merge from the shortest link up. Each set keeps its cells as a linked list, and two lists are joined at the height of the link that merges them.
+		final DisjointSets cellSets = new DisjointSets(nrOfCells);
+		final int[] heads = new int[nrOfCells];
+		final int[] tails = new int[nrOfCells];
+		final int[] next = new int[nrOfCells];
+		final double[] heights = new double[nrOfCells];
+		for (int i = 0; i < nrOfCells; i++)
+		{
+			heads[i] = i;
+			tails[i] = i;
+			next[i] = -1;
+			heights[i] = Double.POSITIVE_INFINITY;
+		}
+		for (final Link link : aLinks)
+		{
+			final int first = cellSets.find(link.first);
+			final int second = cellSets.find(link.second);
+			final int root = cellSets.union(first, second);
+			if (root >= 0)
+			{
+				next[tails[first]] = heads[second];
+				heights[tails[first]] = link.distance;
+				heads[root] = heads[first];
+				tails[root] = tails[second];
+			}
+		}
+
+		// Chain the sets that are never merged, in the order of their first cell
+		this.order = new int[nrOfCells];
+		this.mergeHeights = new double[nrOfCells];
+		final boolean[] chained = new boolean[nrOfCells];
+		int position = 0;
+		for (int i = 0; i < nrOfCells; i++)
+		{
+			final int root = cellSets.find(i);
+			if (!chained[root])
+			{
+				chained[root] = true;
+				for (int cell = heads[root]; cell >= 0; cell = next[cell])
+				{
+					this.order[position] = cell;
+					this.mergeHeights[position] = heights[cell];
+					position++;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Get the links between all nuclei of the grid that are within the radius of each other, each pair once.
+	 */
+	private static List<Link> getProximityLinks(final NucleusGrid aGrid, final double aLinkRadius)
+	{
+		final List<Link> links = new ArrayList<>();
+		for (int i = 0; i < aGrid.getCellCount(); i++)
+		{
+			for (final int neighbour : aGrid.getWithinRadius(i, aLinkRadius))
+			{
+				if (neighbour > i)
+				{
+					links.add(new Link(i, neighbour, aGrid.getDistance(i, neighbour)));
+				}
+			}
+		}
+		return links;
+	}
+
+
+	private static double getSeedDistance(final Cell3D aFirst, final Cell3D aSecond, final Calibration aCalibration)
+	{
+		final Coordinates first = aFirst.getNucleus().getSeed();
+		final Coordinates second = aSecond.getNucleus().getSeed();
+		final double dx = (first.getXcoordinate() - second.getXcoordinate()) * aCalibration.pixelWidth;
+		final double dy = (first.getYcoordinate() - second.getYcoordinate()) * aCalibration.pixelHeight;
+		final double dz = (first.getZcoordinate() - second.getZcoordinate()) * aCalibration.pixelDepth;
+		return Math.sqrt((dx * dx) + (dy * dy) + (dz * dz));
+	}
+
+
+	/**
+	 * Get the links between the touching cells (a pair may be listed twice, but the second link never merges anything).
+	 */
+	private static List<Link> getTouchingLinks(final List<Cell3D> aCells, final Calibration aCalibration)
+	{
+		final Map<Integer, Integer> cellIndices = new HashMap<>();
+		for (int i = 0; i < aCells.size(); i++)
+		{
+			cellIndices.put(aCells.get(i).getNucleus().getLabel(), i);
+		}
+
+		final List<Link> links = new ArrayList<>();
+		for (int i = 0; i < aCells.size(); i++)
+		{
+			for (final Integer neighbourLabel : aCells.get(i).getConnectedNeighbours())
+			{
+				final Integer neighbour = cellIndices.get(neighbourLabel);
+				if (neighbour != null && neighbour != i)
+				{
+					links.add(new Link(i, neighbour, getSeedDistance(aCells.get(i), aCells.get(neighbour), aCalibration)));
+				}
+			}
+		}
+		return links;
+	}
+
+
+	/**
+	 * Get the groups of cells at a maximum link distance.
+	 *
+	 * @param aMaxLinkDistance
+	 *            The maximum (calibrated) distance between the nucleus seeds of two touching cells for them to be in the same group. Use Double.POSITIVE_INFINITY to group all touching cells.
+	 *
+	 * @return The groups, in the order of the hierarchy. Each cell is in exactly one group.
+	 */
+	public List<Cell3D_Group> getGroups(final double aMaxLinkDistance)
+	{
+		final List<Cell3D_Group> groups = new ArrayList<>();
+		List<Cell3D> group = new ArrayList<>();
+		for (int position = 0; position < this.order.length; position++)
+		{
+			group.add(this.cells.get(this.order[position]));
+			if (Double.isInfinite(this.mergeHeights[position]) || this.mergeHeights[position] > aMaxLinkDistance)
+			{
+				groups.add(new Cell3D_Group(group));
+				group = new ArrayList<>();
+			}
+		}
+		return groups;
+	}
+}
@@ -2,12 +2,15 @@ package migrationmodeanalysis;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 
 import configuration.Measurement_Selector;
 import data.Cell3D;
 import data.Cell3D_Group;
+import data.FeatureStore;
+import data.GroupStatistics;
 import data.SegmentMeasurements;
 import data.Sort_Groups;
 import featureextractor.Visualiser;
@@ -35,13 +38,14 @@ public class MigrationModeAnalyser
 	public static final int FALSEPOS = 15;
 
 
-	private static void addGroupMeasurements(final Cell3D_Group aCells, final String[] aGroupNames, final ResultsTable aResultsTable)
+	private void addGroupMeasurements(final Cell3D_Group aCells, final String[] aGroupNames, final ResultsTable aResultsTable)
 	{
+		final BitSet memberLabels = aCells.getMemberLabels();
 		for (final String measurementName : aGroupNames)
 		{
 			if (Measurement_Selector.getMeasurementPreference(measurementName))
 			{
-				final Double measurement = aCells.getMeanNucleusMeasure(measurementName);
+				final Double measurement = this.nucleusFeatures.getMean(measurementName, memberLabels);
 				if (measurement != null)
 				{
 					aResultsTable.addValue("nucleus " + measurementName, measurement);
@@ -57,9 +61,15 @@ public class MigrationModeAnalyser
 
 	private final ImagePlus[] resultImages = new ImagePlus[3];
 
+	private final NucleusGrid nucleusGrid;
+	private final FeatureStore nucleusFeatures;
+	private final GroupingHierarchy groupingHierarchy;
+	private final ImagePlus dapiImage;
+	private final String imageTitle;
+
 
 	/**
-	 * The constructor of the MigrationModeAnalyser which contains all the necessary data to run.
+	 * The constructor of the MigrationModeAnalyser which contains all the necessary data to run. All touching cells are grouped together.
 	 *
 	 * @param aCells
 	 *            The list of cells
@@ -70,17 +80,75 @@ public class MigrationModeAnalyser
 	 */
 	public MigrationModeAnalyser(final Cell3D[] aCells, final ImagePlus aDAPIImage, final String aImageTitle)
 	{
-		final List<Cell3D_Group> nucleusGroups = groupBasedOnTouchingNeighbours(aCells);
+		this(aCells, aDAPIImage, aImageTitle, Double.POSITIVE_INFINITY);
+	}
+
+
+	/**
+	 * The constructor of the MigrationModeAnalyser which contains all the necessary data to run, with a maximum distance between touching cells to be grouped together.
+	 *
+	 * @param aCells
+	 *            The list of cells
+	 * @param aDAPIImage
+	 *            The DAPI image for visualisation
+	 * @param aImageTitle
+	 *            The title for the visualisation
+	 * @param aMaxLinkDistance
+	 *            The maximum (calibrated) distance between the nucleus seeds of two touching cells to group them together
+	 */
+	public MigrationModeAnalyser(final Cell3D[] aCells, final ImagePlus aDAPIImage, final String aImageTitle, final double aMaxLinkDistance)
+	{
+		this(aCells, aDAPIImage, aImageTitle, aMaxLinkDistance, 0);
+	}
+
+
+	/**
+	 * The constructor of the MigrationModeAnalyser which contains all the necessary data to run. With a proximity radius, the cells are not grouped on touch but on the distance between their
+	 * nuclei, which is the collective criterion for images without a cell (actin) segmentation.
+	 *
+	 * @param aCells
+	 *            The list of cells
+	 * @param aDAPIImage
+	 *            The DAPI image for visualisation
+	 * @param aImageTitle
+	 *            The title for the visualisation
+	 * @param aMaxLinkDistance
+	 *            The maximum (calibrated) distance between the nucleus seeds of two linked cells to group them together
+	 * @param aProximityRadius
+	 *            If larger than 0, link all cells of which the nucleus seeds are within this (calibrated) distance of each other instead of the touching cells
+	 */
+	public MigrationModeAnalyser(final Cell3D[] aCells, final ImagePlus aDAPIImage, final String aImageTitle, final double aMaxLinkDistance, final double aProximityRadius)
+	{
+		this.dapiImage = aDAPIImage;
+		this.imageTitle = aImageTitle;
+		this.nucleusGrid = new NucleusGrid(filterCells(aCells), aDAPIImage.getCalibration(), NucleusGrid.SEED, aProximityRadius);
+		this.nucleusFeatures = FeatureStore.createNucleusStore(this.nucleusGrid.getCells());
+		this.groupingHierarchy = aProximityRadius > 0 ? new GroupingHierarchy(this.nucleusGrid, aProximityRadius)
+				: new GroupingHierarchy(this.nucleusGrid.getCells(), aDAPIImage.getCalibration());
+		analyse(aMaxLinkDistance);
+	}
+
+
+	/**
+	 * (Re)do the migration analysis for a maximum link distance. The groups are cut from the grouping hierarchy of the cells, so the connections between the cells are not calculated again. All
+	 * results are replaced.
+	 *
+	 * @param aMaxLinkDistance
+	 *            The maximum (calibrated) distance between the nucleus seeds of two touching cells to group them together. Double.POSITIVE_INFINITY groups all touching cells.
+	 */
+	public void analyse(final double aMaxLinkDistance)
+	{
+		final List<Cell3D_Group> nucleusGroups = this.groupingHierarchy.getGroups(aMaxLinkDistance);
 		sortGroupsOnSize(nucleusGroups);
 		extractInfo(nucleusGroups);
 
-		final ImagePlus migrationModeImage = aDAPIImage.duplicate();
+		final ImagePlus migrationModeImage = this.dapiImage.duplicate();
 		Visualiser.drawCellGroups(migrationModeImage, nucleusGroups);
 		this.resultImages[0] = migrationModeImage;
-		this.resultImages[0].setTitle(aImageTitle + "_MigrationGroups");
+		this.resultImages[0].setTitle(this.imageTitle + "_MigrationGroups");
 		this.resultImages[0].show();
-		this.resultImages[1] = Visualiser.drawMigrationMode(aDAPIImage, nucleusGroups);
-		this.resultImages[1].setTitle(aImageTitle + "_GroupMigrationMode");
+		this.resultImages[1] = Visualiser.drawMigrationMode(this.dapiImage, nucleusGroups);
+		this.resultImages[1].setTitle(this.imageTitle + "_GroupMigrationMode");
 		this.resultImages[1].show();
 
 		// TODO What to do about the 'correctness' measure
@@ -103,22 +171,8 @@ public class MigrationModeAnalyser
 		double amountNucleiCollective = 0, volumeNucleiCollective = 0, volumeCellsCollective = 0;
 		double amountNucleiDualCell = 0, volumeNucleiDualCell = 0, volumeCellDualCell = 0;
 		double amountNucleiSingleCell = 0, volumeNucleiSingle = 0, volumeCellSingle = 0;
-		double amountNucleiCorrectMigration = 0;
-		double amountNucleiWrongMigration = 0;
-		double amountNucleuWithoutMigration = 0;
-		double amountSingleCellCorrectMigration = 0;
-		double amountSingleCellWrongMigration = 0;
-		double amountSingleCellWithoutMigration = 0;
-		double amountCoreCellsWithoutMigration = 0;
-		double amountCoreCellsWithMigration = 0;
-		double amountCoreCellsDetectedAsCore = 0;
-		double amountDualCellsWithCorrectMigration = 0;
-		double amountDualCellsWrongMigration = 0;
-		double amountDualCellsWithoutMigration = 0;
-		double amountMultiCellsWithCorrectMigration = 0;
-		double amountMultiCellsWrongMigration = 0;
-		double amountMultiCellsWithoutMigration = 0;
-		double amountSingleCellFalsePositives = 0;
+		// The accuracy counts of all groups together
+		final GroupStatistics imageStatistics = new GroupStatistics();
 
 		// Go through each cell group to collect data
 		for (int h = 0; h < aNucleusGroups.size(); h++)
@@ -162,26 +216,7 @@ public class MigrationModeAnalyser
 				cell.setMigrationMode(nucGroup.getMigrationmode());
 			}
 
-			amountNucleiCorrectMigration += nucGroup.getNucleusWithCorrectMigrationMode();
-			amountNucleiWrongMigration += nucGroup.getNucleusWithWrongMigrationMode();
-			amountNucleuWithoutMigration += nucGroup.getNucleusWithoutMigrationMode();
-
-			amountSingleCellCorrectMigration += nucGroup.getSingleCellWithCorrectMigrationMode();
-			amountSingleCellWrongMigration += nucGroup.getSingleCellWithWrongMigrationMode();
-			amountSingleCellWithoutMigration += nucGroup.getSingleCellWithoutMigrationMode();
-			amountSingleCellFalsePositives += nucGroup.getSingleCellFalsePositive();
-
-			amountCoreCellsWithoutMigration += nucGroup.getCoreCellWithoutMigrationMode();
-			amountCoreCellsDetectedAsCore += nucGroup.getCoreCellDetectedAsCore();
-			amountCoreCellsWithMigration += nucGroup.getCoreCellWithMigrationMode();
-
-			amountDualCellsWithCorrectMigration += nucGroup.getDualCellWithCorrectMigrationMode();
-			amountDualCellsWrongMigration += nucGroup.getDualCellWithWrongMigrationMode();
-			amountDualCellsWithoutMigration += nucGroup.getDualCellWithoutMigrationMode();
-
-			amountMultiCellsWithCorrectMigration += nucGroup.getMultiCellWithCorrectMigrationMode();
-			amountMultiCellsWrongMigration += nucGroup.getMultiCellWithWrongMigrationMode();
-			amountMultiCellsWithoutMigration += nucGroup.getMultiCellWithoutMigrationMode();
+			imageStatistics.merge(nucGroup.getStatistics());
 
 			IJ.log("Group " + h + " migration mode: " + nucGroup.getMigrationmode() + " Members are:");
 			IJ.log(nucGroup.getMemberNames());
@@ -206,22 +241,22 @@ public class MigrationModeAnalyser
 		this.migrationSetData[COLLECTIVE_COUNT][VOLUME_NUCLEI] = volumeNucleiCollective;
 		this.migrationSetData[COLLECTIVE_COUNT][VOLUME_CELL] = volumeCellsCollective;
 
-		this.migrationAccuracyData[CORTOT] = amountNucleiCorrectMigration;
-		this.migrationAccuracyData[ERRTOT] = amountNucleiWrongMigration;
-		this.migrationAccuracyData[NOTOT] = amountNucleuWithoutMigration;
-		this.migrationAccuracyData[CORSIN] = amountSingleCellCorrectMigration;
-		this.migrationAccuracyData[ERRSIN] = amountSingleCellWrongMigration;
-		this.migrationAccuracyData[NOSIN] = amountSingleCellWithoutMigration;
-		this.migrationAccuracyData[CORCOR] = amountCoreCellsDetectedAsCore;
-		this.migrationAccuracyData[ERRCOR] = amountCoreCellsWithoutMigration;
-		this.migrationAccuracyData[NOCOR] = amountCoreCellsWithMigration;
-		this.migrationAccuracyData[CORDUO] = amountDualCellsWithCorrectMigration;
-		this.migrationAccuracyData[ERRDUO] = amountDualCellsWrongMigration;
-		this.migrationAccuracyData[NODUO] = amountDualCellsWithoutMigration;
-		this.migrationAccuracyData[CORCOL] = amountMultiCellsWithCorrectMigration;
-		this.migrationAccuracyData[ERRCOL] = amountMultiCellsWrongMigration;
-		this.migrationAccuracyData[NOCOL] = amountMultiCellsWithoutMigration;
-		this.migrationAccuracyData[FALSEPOS] = amountSingleCellFalsePositives;
+		this.migrationAccuracyData[CORTOT] = imageStatistics.getCorrectCount();
+		this.migrationAccuracyData[ERRTOT] = imageStatistics.getWrongCount();
+		this.migrationAccuracyData[NOTOT] = imageStatistics.getWithoutModeCount();
+		this.migrationAccuracyData[CORSIN] = imageStatistics.getCorrectCount(Cell3D_Group.SINGLE);
+		this.migrationAccuracyData[ERRSIN] = imageStatistics.getWrongCount(Cell3D_Group.SINGLE);
+		this.migrationAccuracyData[NOSIN] = imageStatistics.getWithoutModeCount(Cell3D_Group.SINGLE);
+		this.migrationAccuracyData[CORCOR] = imageStatistics.getCorrectCount(Cell3D_Group.CORE);
+		this.migrationAccuracyData[ERRCOR] = imageStatistics.getWithoutModeCount(Cell3D_Group.CORE);
+		this.migrationAccuracyData[NOCOR] = imageStatistics.getWrongCount(Cell3D_Group.CORE);
+		this.migrationAccuracyData[CORDUO] = imageStatistics.getCorrectCount(Cell3D_Group.DUAL);
+		this.migrationAccuracyData[ERRDUO] = imageStatistics.getWrongCount(Cell3D_Group.DUAL);
+		this.migrationAccuracyData[NODUO] = imageStatistics.getWithoutModeCount(Cell3D_Group.DUAL);
+		this.migrationAccuracyData[CORCOL] = imageStatistics.getCorrectCount(Cell3D_Group.MULTI);
+		this.migrationAccuracyData[ERRCOL] = imageStatistics.getWrongCount(Cell3D_Group.MULTI);
+		this.migrationAccuracyData[NOCOL] = imageStatistics.getWithoutModeCount(Cell3D_Group.MULTI);
+		this.migrationAccuracyData[FALSEPOS] = imageStatistics.getSingleCellFalsePositiveCount();
 
 		IJ.log("Total amount of cells: " + this.migrationSetData[TOTAL_COUNT][NUMBER_COUNT]);
 		IJ.log("Total amount of spheroid cells: " + this.migrationSetData[SPHEROID_COUNT][NUMBER_COUNT]);
@@ -298,79 +333,50 @@ public class MigrationModeAnalyser
 
 
 	/**
-	 * Get all cells that can be connected to a seed cell via direct adjacency ('touching') or via other adjacency to other connected cells. The method is recursive until all connection have been found. The to-do list of cells is the pool from which
-	 * the connected cells can be taken and this list will be updated by removing found connected cells.
+	 * Select the cells to group. Cut without a maximum link distance, each resulting cell group consists of all cells (and only those cells) that have a direct connection ('touch') to at least one
+	 * other cell in the group. Groups of one cell are allowed (and in fact the major point of this grouping).
 	 *
-	 * @param aSeed
-	 *            The seed cell to find connected cells. Note that this may be an already connected cell used as seed in a further recursive step.
-	 * @param aTodoCells
-	 *            The list of potential connected cells. These cells have not been connected to any other cell before. This list will be adapted by removing any connected cell found.
+	 * @param aTotalListOfCells
+	 *            All cells of the image
 	 *
-	 * @return The List of all directly or indirectly connected cells to the seed cell (exclusive, due to recursion)
+	 * @return The cells without the border nuclei and too small nuclei
 	 */
-	private List<Cell3D> getTouchingNeighbours(final Cell3D aSeed, final List<Cell3D> aTodoCells)
+	private static List<Cell3D> filterCells(final Cell3D[] aTotalListOfCells)
 	{
-		// Find all directly connected cells
-		final ArrayList<Cell3D> neighbours = new ArrayList<>();
-		for (final Cell3D cell : aTodoCells)
+		final List<Cell3D> filteredCells = new ArrayList<>();
+
+		// Filter unwanted potential cells from the list
+		for (final Cell3D cell : aTotalListOfCells)
 		{
-			if (aSeed.getConnectedNeighbours().contains(cell.getNucleus().getLabel()))
+			if (!cell.getNucleus().isBorderNucleus() && !cell.getNucleus().isTooSmall()) // Note, these have been calculated only if the user has asked for it
 			{
-				neighbours.add(cell);
+				filteredCells.add(cell);
 			}
 		}
 
-		final List<Cell3D> resultGroup = new ArrayList<>();
-		resultGroup.addAll(neighbours);
-		// Remove found cells from to-do list to prevent endless recursion
-		aTodoCells.removeAll(neighbours);
-		// Recurse over all found direct connections.
-		for (final Cell3D neighbour : neighbours)
-		{
-			final List<Cell3D> foundNeighbours = getTouchingNeighbours(neighbour, aTodoCells);
-			resultGroup.addAll(foundNeighbours);
-		}
-
-		return resultGroup;
+		return filteredCells;
 	}
 
 
 	/**
-	 * Group the cells together based on direct connection; i.e. each resulting cell group consists of all cells (and only those cells) that have a direct connection ('touch') to at least one other cell in the group. Groups of one cell are allowed
-	 * (and in fact the major point of this method).
+	 * Get the grid over the nucleus seeds of the grouped cells, for distance-based neighbour queries.
 	 *
-	 * @return A list of Cell3D_Groups where each group consists of all Cell3D that have a direct connection to at least one other cell in the group.
+	 * @return The nucleus grid
 	 */
-	private List<Cell3D_Group> groupBasedOnTouchingNeighbours(final Cell3D[] aTotalListOfCells)
+	public NucleusGrid getNucleusGrid()
 	{
-		final List<Cell3D> filteredCells = new ArrayList<>();
-		final List<Cell3D> todoCells = new ArrayList<>();
-
-		// Filter unwanted potential cells from the list
-		for (final Cell3D cell : aTotalListOfCells)
-		{
-			if (!cell.getNucleus().isBorderNucleus() && !cell.getNucleus().isTooSmall()) // Note, these have been calculated only if the user has asked for it
-			{
-				filteredCells.add(cell);
-				todoCells.add(cell);
-			}
-		}
+		return this.nucleusGrid;
+	}
 
-		// Go through the list of cells and if a non-connected cell is found use it as the base of a new cell group. Next collect all cells that are connected to this new seed cell into group.
-		final List<Cell3D_Group> nucleusGroups = new ArrayList<>();
-		for (final Cell3D seedCell : filteredCells)
-		{
-			if (todoCells.contains(seedCell))
-			{
-				final List<Cell3D> cellGroup = new ArrayList<>();
-				cellGroup.add(seedCell); // Start the group. Needed separately as getTouchingNeighbours is recursive and will not include the initial seed.
-				todoCells.remove(seedCell);
-				cellGroup.addAll(getTouchingNeighbours(seedCell, todoCells));
-				nucleusGroups.add(new Cell3D_Group(cellGroup));
-			}
-		}
 
-		return nucleusGroups;
+	/**
+	 * Get the single-linkage hierarchy of the linked cells, from which the groups for any maximum link distance can be cut.
+	 *
+	 * @return The grouping hierarchy
+	 */
+	public GroupingHierarchy getGroupingHierarchy()
+	{
+		return this.groupingHierarchy;
 	}
 
 
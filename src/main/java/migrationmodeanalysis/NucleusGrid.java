@@ -0,0 +1,373 @@
+package migrationmodeanalysis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import data.Cell3D;
+import data.Coordinates;
+import ij.measure.Calibration;
+
+/**
+ * A uniform grid over the positions of the nuclei (in calibrated coordinates) for fast neighbour queries. The space around the nuclei is divided into cubes and the nuclei are listed per cube, so a
+ * radius or nearest-neighbour query only has to look at the nuclei in the cubes around the query position instead of at all other nuclei.
+ *
+ * The position of a nucleus is either its seed or its centroid (the mean of the nucleus voxels).
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class NucleusGrid
+{
+	// The position of a nucleus in the grid
+	public static final int SEED = 0, CENTROID = 1;
+
+	// The maximum number of grid cubes per nucleus; the cube size is increased if the extent of the nuclei would need more
+	private static final int MAX_CUBES_PER_NUCLEUS = 8;
+
+	private final List<Cell3D> cells;
+	private final Map<Integer, Integer> cellIndices = new HashMap<>();
+	private final double[] positions;
+
+	private final double cubeSize;
+	private final double[] origin = new double[3];
+	private final int[] gridSize = new int[3];
+
+	// The nuclei per cube: the indices of the nuclei of cube c are cubeNuclei[cubeStarts[c]] up to cubeNuclei[cubeStarts[c + 1]]
+	private final int[] cubeStarts;
+	private final int[] cubeNuclei;
+
+
+	/**
+	 * Create the grid over the nuclei of a set of cells.
+	 *
+	 * @param aCells
+	 *            The cells
+	 * @param aCalibration
+	 *            The calibration of the image
+	 * @param aPosition
+	 *            The position of each nucleus: SEED or CENTROID
+	 * @param aCubeSize
+	 *            The (calibrated) edge length of the grid cubes, best about the most used query radius. A value of 0 or less gives a size with about one nucleus per cube.
+	 */
+	public NucleusGrid(final List<Cell3D> aCells, final Calibration aCalibration, final int aPosition, final double aCubeSize)
+	{
+		this.cells = new ArrayList<>(aCells);
+		final int nrOfCells = this.cells.size();
+		this.positions = new double[nrOfCells * 3];
+
+		final double[] minimum = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		final double[] maximum = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (int i = 0; i < nrOfCells; i++)
+		{
+			final Cell3D cell = this.cells.get(i);
+			this.cellIndices.put(cell.getNucleus().getLabel(), i);
+			setPosition(i, cell, aCalibration, aPosition);
+			for (int axis = 0; axis < 3; axis++)
+			{
+				minimum[axis] = Math.min(minimum[axis], this.positions[(i * 3) + axis]);
+				maximum[axis] = Math.max(maximum[axis], this.positions[(i * 3) + axis]);
+			}
+		}
+
+		double volume = 1;
+		for (int axis = 0; axis < 3; axis++)
+		{
+			this.origin[axis] = nrOfCells > 0 ? minimum[axis] : 0;
+			volume *= nrOfCells > 0 ? Math.max(1, maximum[axis] - minimum[axis]) : 1;
+		}
+		double cubeSize = aCubeSize > 0 ? aCubeSize : Math.cbrt(volume / Math.max(1, nrOfCells));
+		long nrOfCubes;
+		do
+		{
+			nrOfCubes = 1;
+			for (int axis = 0; axis < 3; axis++)
+			{
+				this.gridSize[axis] = nrOfCells > 0 ? (int) ((maximum[axis] - minimum[axis]) / cubeSize) + 1 : 1;
+				nrOfCubes *= this.gridSize[axis];
+			}
+			if (nrOfCubes > ((long) MAX_CUBES_PER_NUCLEUS * nrOfCells) + 1)
+			{
+				cubeSize *= 2;
+			}
+		}
+		while (nrOfCubes > ((long) MAX_CUBES_PER_NUCLEUS * nrOfCells) + 1);
+		this.cubeSize = cubeSize;
+
+		// List the nuclei per cube by counting first and then filling
+		final int[] cubes = new int[nrOfCells];
+		this.cubeStarts = new int[(int) nrOfCubes + 1];
+		for (int i = 0; i < nrOfCells; i++)
+		{
+			cubes[i] = getCube(getGridCoordinate(this.positions[i * 3], 0), getGridCoordinate(this.positions[(i * 3) + 1], 1), getGridCoordinate(this.positions[(i * 3) + 2], 2));
+			this.cubeStarts[cubes[i] + 1]++;
+		}
+		for (int cube = 0; cube < nrOfCubes; cube++)
+		{
+			this.cubeStarts[cube + 1] += this.cubeStarts[cube];
+		}
+		this.cubeNuclei = new int[nrOfCells];
+		final int[] fill = new int[(int) nrOfCubes];
+		for (int i = 0; i < nrOfCells; i++)
+		{
+			this.cubeNuclei[this.cubeStarts[cubes[i]] + fill[cubes[i]]] = i;
+			fill[cubes[i]]++;
+		}
+	}
+
+
+	/**
+	 * Get the cell of an index in the grid.
+	 *
+	 * @param aIndex
+	 *            The index of the cell in the grid (the position in the list of cells of the grid)
+	 *
+	 * @return The cell
+	 */
+	public Cell3D getCell(final int aIndex)
+	{
+		return this.cells.get(aIndex);
+	}
+
+
+	/**
+	 * @return The number of cells in the grid
+	 */
+	public int getCellCount()
+	{
+		return this.cells.size();
+	}
+
+
+	/**
+	 * @return The cells in the grid, in the order of their indices
+	 */
+	public List<Cell3D> getCells()
+	{
+		return this.cells;
+	}
+
+
+	/**
+	 * Get the (calibrated) distance between the positions of two nuclei.
+	 *
+	 * @param aIndex1
+	 *            The index of the first cell
+	 * @param aIndex2
+	 *            The index of the second cell
+	 *
+	 * @return The distance
+	 */
+	public double getDistance(final int aIndex1, final int aIndex2)
+	{
+		return Math.sqrt(getSquaredDistance(aIndex1, aIndex2));
+	}
+
+
+	/**
+	 * Get the index of a cell in the grid.
+	 *
+	 * @param aCell
+	 *            The cell
+	 *
+	 * @return The index of the cell, or -1 if the cell is not in the grid
+	 */
+	public int getIndex(final Cell3D aCell)
+	{
+		final Integer index = this.cellIndices.get(aCell.getNucleus().getLabel());
+		return index != null ? index : -1;
+	}
+
+
+	/**
+	 * Get the nearest neighbours of a nucleus. The grid is searched in growing shells of cubes around the nucleus, until no nucleus outside the searched cubes can be closer than the k-th nearest one.
+	 *
+	 * @param aIndex
+	 *            The index of the cell
+	 * @param aK
+	 *            The number of neighbours
+	 *
+	 * @return The indices of the (at most) k nearest other cells, from near to far
+	 */
+	public int[] getNearest(final int aIndex, final int aK)
+	{
+		final int k = Math.min(aK, this.cells.size() - 1);
+		if (k <= 0)
+		{
+			return new int[0];
+		}
+
+		// The k nearest nuclei found so far, with the farthest on top
+		final PriorityQueue<Integer> nearest = new PriorityQueue<>(k + 1, (aFirst, aSecond) -> Double.compare(getSquaredDistance(aIndex, aSecond), getSquaredDistance(aIndex, aFirst)));
+		final int homeX = getGridCoordinate(this.positions[aIndex * 3], 0);
+		final int homeY = getGridCoordinate(this.positions[(aIndex * 3) + 1], 1);
+		final int homeZ = getGridCoordinate(this.positions[(aIndex * 3) + 2], 2);
+		final int maxShell = Math.max(this.gridSize[0], Math.max(this.gridSize[1], this.gridSize[2]));
+		for (int shell = 0; shell <= maxShell; shell++)
+		{
+			for (int z = Math.max(0, homeZ - shell); z <= Math.min(this.gridSize[2] - 1, homeZ + shell); z++)
+			{
+				for (int y = Math.max(0, homeY - shell); y <= Math.min(this.gridSize[1] - 1, homeY + shell); y++)
+				{
+					for (int x = Math.max(0, homeX - shell); x <= Math.min(this.gridSize[0] - 1, homeX + shell); x++)
+					{
+						// Only the cubes on the surface of the shell; the inner ones have been done
+						if (Math.abs(x - homeX) != shell && Math.abs(y - homeY) != shell && Math.abs(z - homeZ) != shell)
+						{
+							continue;
+						}
+						final int cube = getCube(x, y, z);
+						for (int n = this.cubeStarts[cube]; n < this.cubeStarts[cube + 1]; n++)
+						{
+							final int nucleus = this.cubeNuclei[n];
+							if (nucleus != aIndex)
+							{
+								nearest.add(nucleus);
+								if (nearest.size() > k)
+								{
+									nearest.poll();
+								}
+							}
+						}
+					}
+				}
+			}
+
+			// Any nucleus beyond this shell is at least shell cubes away
+			if (nearest.size() == k && getSquaredDistance(aIndex, nearest.peek()) <= (shell * this.cubeSize) * (shell * this.cubeSize))
+			{
+				break;
+			}
+		}
+
+		final int[] result = new int[nearest.size()];
+		for (int i = result.length - 1; i >= 0; i--)
+		{
+			result[i] = nearest.poll();
+		}
+		return result;
+	}
+
+
+	/**
+	 * Get the (calibrated) position of a nucleus.
+	 *
+	 * @param aIndex
+	 *            The index of the cell
+	 *
+	 * @return The x, y and z coordinate of the nucleus
+	 */
+	public double[] getPosition(final int aIndex)
+	{
+		return new double[] { this.positions[aIndex * 3], this.positions[(aIndex * 3) + 1], this.positions[(aIndex * 3) + 2] };
+	}
+
+
+	/**
+	 * Get all nuclei within a distance of a nucleus.
+	 *
+	 * @param aIndex
+	 *            The index of the cell
+	 * @param aRadius
+	 *            The maximum (calibrated) distance
+	 *
+	 * @return The indices of the other cells with a nucleus within the distance, in no particular order
+	 */
+	public int[] getWithinRadius(final int aIndex, final double aRadius)
+	{
+		final double squaredRadius = aRadius * aRadius;
+		final int[] fromCube = new int[3];
+		final int[] toCube = new int[3];
+		for (int axis = 0; axis < 3; axis++)
+		{
+			fromCube[axis] = getGridCoordinate(this.positions[(aIndex * 3) + axis] - aRadius, axis);
+			toCube[axis] = getGridCoordinate(this.positions[(aIndex * 3) + axis] + aRadius, axis);
+		}
+
+		final List<Integer> neighbours = new ArrayList<>();
+		for (int z = fromCube[2]; z <= toCube[2]; z++)
+		{
+			for (int y = fromCube[1]; y <= toCube[1]; y++)
+			{
+				for (int x = fromCube[0]; x <= toCube[0]; x++)
+				{
+					final int cube = getCube(x, y, z);
+					for (int n = this.cubeStarts[cube]; n < this.cubeStarts[cube + 1]; n++)
+					{
+						final int nucleus = this.cubeNuclei[n];
+						if (nucleus != aIndex && getSquaredDistance(aIndex, nucleus) <= squaredRadius)
+						{
+							neighbours.add(nucleus);
+						}
+					}
+				}
+			}
+		}
+
+		final int[] result = new int[neighbours.size()];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = neighbours.get(i);
+		}
+		return result;
+	}
+
+
+	private int getCube(final int aX, final int aY, final int aZ)
+	{
+		return (((aZ * this.gridSize[1]) + aY) * this.gridSize[0]) + aX;
+	}
+
+
+	/**
+	 * Get the grid coordinate of a position along an axis, clamped to the grid.
+	 */
+	private int getGridCoordinate(final double aPosition, final int aAxis)
+	{
+		final int coordinate = (int) Math.floor((aPosition - this.origin[aAxis]) / this.cubeSize);
+		return Math.max(0, Math.min(this.gridSize[aAxis] - 1, coordinate));
+	}
+
+
+	private double getSquaredDistance(final int aIndex1, final int aIndex2)
+	{
+		final double dx = this.positions[aIndex1 * 3] - this.positions[aIndex2 * 3];
+		final double dy = this.positions[(aIndex1 * 3) + 1] - this.positions[(aIndex2 * 3) + 1];
+		final double dz = this.positions[(aIndex1 * 3) + 2] - this.positions[(aIndex2 * 3) + 2];
+		return (dx * dx) + (dy * dy) + (dz * dz);
+	}
+
+
+	/**
+	 * Set the calibrated position of a nucleus: its seed or the mean of its voxels.
+	 */
+	private void setPosition(final int aIndex, final Cell3D aCell, final Calibration aCalibration, final int aPosition)
+	{
+		double x = 0, y = 0, z = 0;
+		final List<Coordinates> voxels = aCell.getNucleus().getNucleusCoordinates();
+		if (aPosition == CENTROID && voxels != null && !voxels.isEmpty())
+		{
+			for (final Coordinates voxel : voxels)
+			{
+				x += voxel.getXcoordinate();
+				y += voxel.getYcoordinate();
+				z += voxel.getZcoordinate();
+			}
+			x /= voxels.size();
+			y /= voxels.size();
+			z /= voxels.size();
+		}
+		else
+		{
+			final Coordinates seed = aCell.getNucleus().getSeed();
+			x = seed.getXcoordinate();
+			y = seed.getYcoordinate();
+			z = seed.getZcoordinate();
+		}
+		this.positions[aIndex * 3] = x * aCalibration.pixelWidth;
+		this.positions[(aIndex * 3) + 1] = y * aCalibration.pixelHeight;
+		this.positions[(aIndex * 3) + 2] = z * aCalibration.pixelDepth;
+	}
+}
@@ -0,0 +1,167 @@
+package watershedsegmentation;
+
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import imageprocessing.DistanceTransform3D;
+
+/**
+ * Runs the distance map and marker-controlled watershed on overlapping chunks of slices instead of on the whole stack at once, for stacks of which the segmentation does not fit into memory in one
+ * go. The distance map and the flooding need about 15 bytes per voxel next to the input images; in chunks, this is only needed for the slices of one chunk at a time. The mask, the markers and the
+ * resulting labels are still whole stacks, as are the channel, filtered image and threshold of the plugin, so this lowers the peak memory use of the segmentation but does not allow stacks that are
+ * larger than the memory itself.
+ *
+ * Each chunk is extended by a halo of slices on both sides, so the markers of the segments that cross the chunk border are present and the distance map near the border is close to that of the
+ * whole stack. Only the slices of the chunk itself are kept. The markers carry the labels of the segments, so the labels of all chunks agree and no relabelling across chunks is needed.
+ *
+ * The result is an approximation of the watershed of the whole stack: the distance map and the flooding cannot see beyond the halo, so segments near a chunk border can differ. The differences are
+ * small once the halo is at least as deep as the largest nucleus, and grow quickly for smaller halos. The halo is therefore derived from the expected nucleus diameter, and after the segmentation
+ * the depth of the largest segment is checked against it; a warning is logged if the halo is too small.
+ *
+ * The slices of the mask and marker images are only fetched per chunk, so the markers can be a virtual stack that is read from disk when needed.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class ChunkedWatershed3D
+{
+	/**
+	 * Compute the marker-controlled watershed on the inverted distance map of a mask, chunk by chunk.
+	 *
+	 * @param aMask
+	 *            The image with the area to segment: all voxels with a value larger than 0
+	 * @param aMarkers
+	 *            The image with the markers: each voxel with a value larger than 0 is a seed for the segment with that label. Labels must fit into 16 bits.
+	 * @param aDams
+	 *            Separate the segments by a line of 0 voxels
+	 * @param aChunkDepth
+	 *            The number of slices per chunk (without the halo)
+	 * @param aHalo
+	 *            The number of extra slices on either side of a chunk, which should be at least the depth of the largest nucleus (see getHaloSlices)
+	 *
+	 * @return A 16-bit image with for each voxel the label of the segment it belongs to, or 0 for the background (and dams). The calibration is the one of the mask.
+	 */
+	public static ImagePlus computeWatershed(final ImagePlus aMask, final ImagePlus aMarkers, final boolean aDams, final int aChunkDepth, final int aHalo)
+	{
+		final int width = aMask.getWidth();
+		final int height = aMask.getHeight();
+		final int depth = aMask.getNSlices();
+		final int chunkDepth = Math.max(1, aChunkDepth);
+		final int halo = Math.max(0, aHalo);
+		final ImageStack maskStack = aMask.getImageStack();
+		final ImageStack markerStack = aMarkers.getImageStack();
+
+		final ImageStack labelStack = ImageStack.create(width, height, depth, 16);
+		for (int chunkStart = 0; chunkStart < depth; chunkStart += chunkDepth)
+		{
+			final int chunkEnd = Math.min(depth, chunkStart + chunkDepth);
+			final int haloStart = Math.max(0, chunkStart - halo);
+			final int haloEnd = Math.min(depth, chunkEnd + halo);
+			IJ.log("      Chunk of slices " + (chunkStart + 1) + " - " + chunkEnd + " (with halo " + (haloStart + 1) + " - " + haloEnd + ")");
+
+			final ImageStack chunkMaskStack = new ImageStack(width, height);
+			final ImageStack chunkMarkerStack = new ImageStack(width, height);
+			for (int z = haloStart; z < haloEnd; z++)
+			{
+				chunkMaskStack.addSlice(maskStack.getSliceLabel(z + 1), maskStack.getProcessor(z + 1));
+				chunkMarkerStack.addSlice(markerStack.getSliceLabel(z + 1), markerStack.getProcessor(z + 1));
+			}
+			final ImagePlus chunkMask = new ImagePlus(aMask.getTitle(), chunkMaskStack);
+			chunkMask.setCalibration(aMask.getCalibration().copy());
+			final ImagePlus chunkMarkers = new ImagePlus(aMarkers.getTitle(), chunkMarkerStack);
+
+			// Inverted, so the centres of the nuclei are the basins of the watershed
+			final ImagePlus chunkDistance = DistanceTransform3D.distanceMap(chunkMask, true);
+			final ImagePlus chunkLabels = MarkerWatershed3D.computeWatershed(chunkDistance, chunkMarkers, chunkMask, aDams);
+			chunkDistance.close();
+
+			// Keep only the slices of the chunk itself
+			final ImageStack chunkLabelStack = chunkLabels.getImageStack();
+			for (int z = chunkStart; z < chunkEnd; z++)
+			{
+				System.arraycopy(chunkLabelStack.getPixels((z - haloStart) + 1), 0, labelStack.getPixels(z + 1), 0, width * height);
+			}
+		}
+
+		// The chunk borders are only reliable if no segment is deeper than the halo
+		final int largestDepth = getLargestSegmentDepth(labelStack);
+		if (largestDepth > halo)
+		{
+			IJ.log("   WARNING: the largest segment spans " + largestDepth + " slices, but the halo is only " + halo
+					+ " slices. Segments near the chunk borders may differ from those of the whole stack; increase the expected nucleus diameter to at least the size of the largest nucleus.");
+		}
+
+		final ImagePlus labelImage = new ImagePlus("Watershed_" + aMask.getTitle(), labelStack);
+		labelImage.setCalibration(aMask.getCalibration().copy());
+		return labelImage;
+	}
+
+
+	/**
+	 * Get the halo (in slices) that covers an expected nucleus diameter. The diameter should be that of the largest nuclei rather than the average, as a halo that is smaller than a nucleus changes
+	 * the segments near the chunk borders.
+	 *
+	 * @param aImage
+	 *            The image to segment, for the voxel depth
+	 * @param aDiameter
+	 *            The expected nucleus diameter (in the calibrated unit of the image)
+	 *
+	 * @return The number of slices that span the diameter, rounded up
+	 */
+	public static int getHaloSlices(final ImagePlus aImage, final double aDiameter)
+	{
+		return (int) Math.ceil(aDiameter / aImage.getCalibration().pixelDepth);
+	}
+
+
+	/**
+	 * Get the largest number of slices that is spanned by a single segment.
+	 *
+	 * @param aLabelStack
+	 *            The 16-bit label stack, with 0 for the background
+	 *
+	 * @return The number of slices between the first and the last slice of the deepest segment (inclusive), or 0 if there are no segments
+	 */
+	private static int getLargestSegmentDepth(final ImageStack aLabelStack)
+	{
+		final int[] firstSlice = new int[1 << 16];
+		final int[] lastSlice = new int[1 << 16];
+		Arrays.fill(firstSlice, -1);
+		for (int z = 0; z < aLabelStack.getSize(); z++)
+		{
+			final short[] labels = (short[]) aLabelStack.getPixels(z + 1);
+			for (final short label : labels)
+			{
+				final int index = label & 0xffff;
+				if (index > 0)
+				{
+					if (firstSlice[index] < 0)
+					{
+						firstSlice[index] = z;
+					}
+					lastSlice[index] = z;
+				}
+			}
+		}
+
+		int largestDepth = 0;
+		for (int label = 1; label < firstSlice.length; label++)
+		{
+			if (firstSlice[label] >= 0)
+			{
+				largestDepth = Math.max(largestDepth, (lastSlice[label] - firstSlice[label]) + 1);
+			}
+		}
+		return largestDepth;
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private ChunkedWatershed3D()
+	{
+	}
+}
@@ -0,0 +1,302 @@
+package watershedsegmentation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import imageprocessing.ParallelProcessor;
+
+/**
+ * Writes a label image as a compact TIFF. The labels are written with the smallest unsigned integer type that can hold the largest label (8, 16 or 32 bits), whatever the type of the image in
+ * memory. Each slice is a separate page that is split into strips of about 64 kB, which are compressed with deflate. A label image is mostly background, so it compresses very well.
+ *
+ * The file contains the ImageJ description and resolution, so ImageJ (and any other TIFF reader that knows deflate) opens it as a stack with the calibration of the image. As each slice and strip is
+ * compressed on its own, a reader can decode a single slice without reading the others.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class LabelImageWriter
+{
+	// The uncompressed size to aim for per strip
+	private static final int STRIP_SIZE = 65536;
+
+	// The TIFF tags and types that are used
+	private static final int NEW_SUBFILE_TYPE = 254;
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int PHOTO_INTERP = 262;
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int ROWS_PER_STRIP = 278;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int X_RESOLUTION = 282;
+	private static final int Y_RESOLUTION = 283;
+	private static final int RESOLUTION_UNIT = 296;
+	private static final int SAMPLE_FORMAT = 339;
+
+	private static final short ASCII = 2;
+	private static final short SHORT = 3;
+	private static final short LONG = 4;
+	private static final short RATIONAL = 5;
+
+	private static final int DEFLATE = 8;
+	private static final int RESOLUTION_DENOMINATOR = 1000000;
+
+
+	/**
+	 * Write a label image.
+	 *
+	 * @param aLabelImage
+	 *            The (single channel, single frame) label image. Each voxel value is a label, 0 for the background. Negative values are written as 0.
+	 * @param aPath
+	 *            The path of the TIFF file
+	 *
+	 * @return The number of bits per voxel with which the labels have been written
+	 *
+	 * @throws IOException
+	 *             If the file cannot be written
+	 */
+	public static int write(final ImagePlus aLabelImage, final String aPath) throws IOException
+	{
+		final int width = aLabelImage.getWidth();
+		final int height = aLabelImage.getHeight();
+		final int depth = aLabelImage.getNSlices();
+		final ImageStack stack = aLabelImage.getImageStack();
+
+		// The smallest type that holds all labels
+		long maxLabel = 0;
+		for (int z = 0; z < depth; z++)
+		{
+			final ImageProcessor proc = stack.getProcessor(z + 1);
+			for (int i = 0; i < width * height; i++)
+			{
+				maxLabel = Math.max(maxLabel, (long) proc.getf(i));
+			}
+		}
+		final int bytesPerVoxel = maxLabel <= 0xff ? 1 : maxLabel <= 0xffff ? 2 : 4;
+		final int rowsPerStrip = Math.max(1, Math.min(height, STRIP_SIZE / (width * bytesPerVoxel)));
+		final int nrOfStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+
+		// Compressing takes most of the time, so the slices are compressed in parallel
+		final byte[][][] strips = new byte[depth][nrOfStrips][];
+		ParallelProcessor.forRange(0, depth, (aStart, aEnd) -> {
+			final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			final ByteBuffer stripBuffer = ByteBuffer.allocate(rowsPerStrip * width * bytesPerVoxel).order(ByteOrder.LITTLE_ENDIAN);
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final ImageProcessor proc = stack.getProcessor(z + 1);
+				for (int strip = 0; strip < nrOfStrips; strip++)
+				{
+					stripBuffer.clear();
+					final int end = Math.min(height, (strip + 1) * rowsPerStrip) * width;
+					for (int i = strip * rowsPerStrip * width; i < end; i++)
+					{
+						final long label = Math.max(0, (long) proc.getf(i));
+						if (bytesPerVoxel == 1)
+						{
+							stripBuffer.put((byte) label);
+						}
+						else if (bytesPerVoxel == 2)
+						{
+							stripBuffer.putShort((short) label);
+						}
+						else
+						{
+							stripBuffer.putInt((int) label);
+						}
+					}
+					strips[z][strip] = deflate(deflater, stripBuffer.array(), stripBuffer.position());
+				}
+			}
+			deflater.end();
+		});
+
+		final byte[] description = createDescription(aLabelImage, maxLabel);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(aPath)))
+		{
+			// Header: little-endian, followed by the offset of the first page
+			final ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+			out.write(header.array());
+
+			// Each page is written as its directory (with the data that does not fit in it) followed by its strips
+			long offset = 8;
+			for (int z = 0; z < depth; z++)
+			{
+				final byte[] directory = createDirectory(offset, z == 0 ? description : null, aLabelImage.getCalibration(), width, height, bytesPerVoxel * 8, rowsPerStrip, strips[z],
+						z == depth - 1);
+				out.write(directory);
+				offset += directory.length;
+				for (final byte[] strip : strips[z])
+				{
+					out.write(strip);
+					offset += strip.length;
+				}
+				if (offset % 2 != 0)
+				{
+					out.write(0); // Directories start on a word boundary
+					offset++;
+				}
+			}
+		}
+
+		return bytesPerVoxel * 8;
+	}
+
+
+	/**
+	 * Create the directory of one page, with the strip offsets and counts, resolution and description behind it. The strips of the page follow the directory directly.
+	 */
+	private static byte[] createDirectory(final long aOffset, final byte[] aDescription, final Calibration aCalibration, final int aWidth, final int aHeight, final int aBits,
+			final int aRowsPerStrip, final byte[][] aStrips, final boolean aLastPage)
+	{
+		final boolean scaled = aCalibration.scaled();
+		final int nrOfStrips = aStrips.length;
+		final int nrOfEntries = 11 + (aDescription != null ? 1 : 0) + (scaled ? 3 : 0);
+		final int entriesSize = 2 + (nrOfEntries * 12) + 4;
+		final int arraysSize = nrOfStrips > 1 ? nrOfStrips * 8 : 0;
+		final int resolutionSize = scaled ? 16 : 0;
+		final int descriptionSize = aDescription != null ? aDescription.length + (aDescription.length % 2) : 0;
+		final int directorySize = entriesSize + arraysSize + resolutionSize + descriptionSize;
+
+		long dataOffset = aOffset + directorySize;
+		final long[] stripOffsets = new long[nrOfStrips];
+		for (int strip = 0; strip < nrOfStrips; strip++)
+		{
+			stripOffsets[strip] = dataOffset;
+			dataOffset += aStrips[strip].length;
+		}
+		final long nextDirectory = aLastPage ? 0 : dataOffset + (dataOffset % 2);
+
+		final ByteBuffer buffer = ByteBuffer.allocate(directorySize).order(ByteOrder.LITTLE_ENDIAN);
+		final long arraysOffset = aOffset + entriesSize;
+		final long resolutionOffset = arraysOffset + arraysSize;
+		final long descriptionOffset = resolutionOffset + resolutionSize;
+
+		// The entries, sorted by tag
+		buffer.putShort((short) nrOfEntries);
+		putEntry(buffer, NEW_SUBFILE_TYPE, LONG, 1, 0);
+		putEntry(buffer, IMAGE_WIDTH, LONG, 1, aWidth);
+		putEntry(buffer, IMAGE_LENGTH, LONG, 1, aHeight);
+		putEntry(buffer, BITS_PER_SAMPLE, SHORT, 1, aBits);
+		putEntry(buffer, COMPRESSION, SHORT, 1, DEFLATE);
+		putEntry(buffer, PHOTO_INTERP, SHORT, 1, 1); // Black is zero
+		if (aDescription != null)
+		{
+			putEntry(buffer, IMAGE_DESCRIPTION, ASCII, aDescription.length, descriptionOffset);
+		}
+		putEntry(buffer, STRIP_OFFSETS, LONG, nrOfStrips, nrOfStrips > 1 ? arraysOffset : stripOffsets[0]);
+		putEntry(buffer, SAMPLES_PER_PIXEL, SHORT, 1, 1);
+		putEntry(buffer, ROWS_PER_STRIP, LONG, 1, aRowsPerStrip);
+		putEntry(buffer, STRIP_BYTE_COUNTS, LONG, nrOfStrips, nrOfStrips > 1 ? arraysOffset + (nrOfStrips * 4) : aStrips[0].length);
+		if (scaled)
+		{
+			putEntry(buffer, X_RESOLUTION, RATIONAL, 1, resolutionOffset);
+			putEntry(buffer, Y_RESOLUTION, RATIONAL, 1, resolutionOffset + 8);
+			putEntry(buffer, RESOLUTION_UNIT, SHORT, 1, 1); // The unit is in the description
+		}
+		putEntry(buffer, SAMPLE_FORMAT, SHORT, 1, 1); // Unsigned integer
+		buffer.putInt((int) nextDirectory);
+
+		// The data behind the entries
+		if (nrOfStrips > 1)
+		{
+			for (int strip = 0; strip < nrOfStrips; strip++)
+			{
+				buffer.putInt((int) stripOffsets[strip]);
+			}
+			for (int strip = 0; strip < nrOfStrips; strip++)
+			{
+				buffer.putInt(aStrips[strip].length);
+			}
+		}
+		if (scaled)
+		{
+			buffer.putInt((int) Math.round(RESOLUTION_DENOMINATOR / aCalibration.pixelWidth)).putInt(RESOLUTION_DENOMINATOR);
+			buffer.putInt((int) Math.round(RESOLUTION_DENOMINATOR / aCalibration.pixelHeight)).putInt(RESOLUTION_DENOMINATOR);
+		}
+		if (aDescription != null)
+		{
+			buffer.put(aDescription);
+		}
+		return buffer.array();
+	}
+
+
+	/**
+	 * Write a directory entry. Values of the types SHORT and LONG that fit into the entry are written in the entry, otherwise the value is the offset of the data.
+	 */
+	private static void putEntry(final ByteBuffer aBuffer, final int aTag, final short aType, final int aCount, final long aValue)
+	{
+		aBuffer.putShort((short) aTag);
+		aBuffer.putShort(aType);
+		aBuffer.putInt(aCount);
+		if (aType == SHORT && aCount == 1)
+		{
+			aBuffer.putShort((short) aValue).putShort((short) 0);
+		}
+		else
+		{
+			aBuffer.putInt((int) aValue);
+		}
+	}
+
+
+	/**
+	 * Create the ImageJ description, which makes ImageJ open the pages as a stack with the voxel size and unit of the image. The number of images is left out on purpose: with it, ImageJ expects the
+	 * slices to be stored uncompressed one after the other instead of as separate pages.
+	 */
+	private static byte[] createDescription(final ImagePlus aLabelImage, final long aMaxLabel)
+	{
+		final Calibration calibration = aLabelImage.getCalibration();
+		final StringBuilder description = new StringBuilder("ImageJ=1.52i\n");
+		description.append("slices=").append(aLabelImage.getNSlices()).append('\n');
+		if (calibration.scaled())
+		{
+			description.append("unit=").append(calibration.getUnit()).append('\n');
+		}
+		description.append("spacing=").append(calibration.pixelDepth).append('\n');
+		description.append("loop=false\n");
+		description.append("min=0.0\n");
+		description.append("max=").append((double) aMaxLabel).append('\n');
+		description.append('\0');
+		return description.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+
+	private static byte[] deflate(final Deflater aDeflater, final byte[] aData, final int aLength)
+	{
+		aDeflater.reset();
+		aDeflater.setInput(aData, 0, aLength);
+		aDeflater.finish();
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream((aLength / 8) + 64);
+		final byte[] chunk = new byte[8192];
+		while (!aDeflater.finished())
+		{
+			compressed.write(chunk, 0, aDeflater.deflate(chunk));
+		}
+		return compressed.toByteArray();
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private LabelImageWriter()
+	{
+	}
+}
@@ -0,0 +1,286 @@
+package watershedsegmentation;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A marker-controlled watershed in 3D, as a replacement of the MorphoLibJ Marker-controlled Watershed with 26-connectivity. The relief is flooded from the markers within a mask, lowest values
+ * first, until all reachable mask voxels have been claimed by one of the markers.
+ *
+ * Instead of a priority queue (heap), the relief is quantised into levels and a hierarchical (bucket) queue with one FIFO list per level is used. Each voxel is queued at most once, so the
+ * flooding takes linear time. Voxels with a lower level than the current one (e.g. a plateau at the other side of a ridge) are queued at the current level. Within a level the voxels are handled in
+ * the order in which they were reached, which splits plateaus along the geodesic middle between the markers.
+ *
+ * With dams, a voxel that touches two different segments when it is handled is not claimed and stays 0, so all segments are separated by a one voxel wide line of background. Marker voxels are
+ * never turned into dams.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class MarkerWatershed3D
+{
+	// The number of levels in which a floating point relief is quantised
+	private static final int NR_OF_FLOAT_LEVELS = 4096;
+	// The largest number of voxels that can be indexed by the queue (the largest array length that the JVM reliably allows)
+	private static final long MAX_NR_OF_VOXELS = Integer.MAX_VALUE - 8;
+
+	// The voxel states during the flooding
+	private static final byte UNVISITED = 0;
+	private static final byte QUEUED = 1;
+	private static final byte LABELLED = 2;
+	private static final byte DAM = 3;
+
+
+	/**
+	 * Compute the marker-controlled watershed.
+	 *
+	 * @param aRelief
+	 *            The image to flood (e.g. an inverted distance map), lowest values first. 8- and 16-bit values are used as levels directly, other values are quantised.
+	 * @param aMarkers
+	 *            The image with the markers: each voxel with a value larger than 0 (within the mask) is a seed for the segment with that label and keeps that label. The markers may be points or
+	 *            whole regions, such as the segments of an earlier watershed. Labels must fit into 16 bits.
+	 * @param aMask
+	 *            The image with the area to segment: all voxels with a value larger than 0
+	 * @param aDams
+	 *            Separate the segments by a line of 0 voxels
+	 *
+	 * @return A 16-bit image with for each voxel the label of the segment it belongs to, or 0 for the background (and dams). The calibration is the one of the mask.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the stack has too many voxels to be flooded at once; use the ChunkedWatershed3D (the 'Watershed chunk depth' setting) for such stacks
+	 */
+	public static ImagePlus computeWatershed(final ImagePlus aRelief, final ImagePlus aMarkers, final ImagePlus aMask, final boolean aDams)
+	{
+		final int width = aRelief.getWidth();
+		final int height = aRelief.getHeight();
+		final int depth = aRelief.getNSlices();
+		final int size = width * height;
+		final long nrOfVoxels = (long) size * depth;
+		if (nrOfVoxels > MAX_NR_OF_VOXELS)
+		{
+			throw new IllegalArgumentException("The stack of " + width + "x" + height + "x" + depth + " voxels is too large for one watershed (at most " + MAX_NR_OF_VOXELS
+					+ " voxels). Set a 'Watershed chunk depth' to segment it in chunks of slices.");
+		}
+		final ImageStack reliefStack = aRelief.getImageStack();
+		final ImageStack markerStack = aMarkers.getImageStack();
+		final ImageStack maskStack = aMask.getImageStack();
+
+		// The labels are written directly into the output stack
+		final ImageStack labelStack = ImageStack.create(width, height, depth, 16);
+		final short[][] labels = new short[depth][];
+		final byte[][] states = new byte[depth][size];
+		for (int z = 0; z < depth; z++)
+		{
+			labels[z] = (short[]) labelStack.getPixels(z + 1);
+		}
+
+		// Determine the range of the relief within the mask
+		final boolean integerRelief = aRelief.getBitDepth() == 8 || aRelief.getBitDepth() == 16;
+		float minimum = Float.POSITIVE_INFINITY;
+		float maximum = Float.NEGATIVE_INFINITY;
+		for (int z = 0; z < depth; z++)
+		{
+			final ImageProcessor reliefProc = reliefStack.getProcessor(z + 1);
+			final ImageProcessor maskProc = maskStack.getProcessor(z + 1);
+			for (int i = 0; i < size; i++)
+			{
+				if (maskProc.getf(i) > 0)
+				{
+					final float value = reliefProc.getf(i);
+					minimum = Math.min(minimum, value);
+					maximum = Math.max(maximum, value);
+				}
+				else
+				{
+					states[z][i] = DAM; // Outside of the mask, so never claimed
+				}
+			}
+		}
+		if (minimum > maximum)
+		{
+			return createLabelImage(labelStack, aMask); // Empty mask
+		}
+
+		// Quantise the relief into levels
+		final int nrOfLevels = integerRelief ? (int) (maximum - minimum) + 1 : NR_OF_FLOAT_LEVELS;
+		final float levelScale = integerRelief || maximum == minimum ? 1 : (NR_OF_FLOAT_LEVELS - 1) / (maximum - minimum);
+		final char[][] levels = new char[depth][size];
+		for (int z = 0; z < depth; z++)
+		{
+			final ImageProcessor reliefProc = reliefStack.getProcessor(z + 1);
+			for (int i = 0; i < size; i++)
+			{
+				if (states[z][i] != DAM)
+				{
+					levels[z][i] = (char) Math.min(nrOfLevels - 1, (int) ((reliefProc.getf(i) - minimum) * levelScale));
+				}
+			}
+		}
+
+		final BucketQueue queue = new BucketQueue(nrOfLevels, (int) nrOfVoxels);
+
+		// Label the markers and queue them at their own level. The markers are final: they are labelled straight away and never become a dam, so each segment contains its whole marker.
+		for (int z = 0; z < depth; z++)
+		{
+			final ImageProcessor markerProc = markerStack.getProcessor(z + 1);
+			for (int i = 0; i < size; i++)
+			{
+				final int label = (int) markerProc.getf(i);
+				if (label > 0 && states[z][i] != DAM)
+				{
+					labels[z][i] = (short) label;
+					states[z][i] = LABELLED;
+					queue.add((z * size) + i, levels[z][i]);
+				}
+			}
+		}
+
+		// Flood: each handled voxel claims its unvisited neighbours, which are queued at their own level but never below the current one
+		int voxel;
+		while ((voxel = queue.poll()) >= 0)
+		{
+			final int x = voxel % width;
+			final int y = (voxel % size) / width;
+			final int z = voxel / size;
+			final int i = voxel - (z * size);
+			final int label = labels[z][i] & 0xffff;
+
+			if (states[z][i] == QUEUED)
+			{
+				if (aDams && touchesOtherSegment(labels, states, x, y, z, width, height, depth, label))
+				{
+					labels[z][i] = 0;
+					states[z][i] = DAM;
+					continue;
+				}
+				states[z][i] = LABELLED;
+			}
+
+			for (int nz = Math.max(0, z - 1); nz <= Math.min(depth - 1, z + 1); nz++)
+			{
+				final byte[] stateSlice = states[nz];
+				for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++)
+				{
+					for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++)
+					{
+						final int neighbour = (ny * width) + nx;
+						if (stateSlice[neighbour] == UNVISITED)
+						{
+							stateSlice[neighbour] = QUEUED;
+							labels[nz][neighbour] = (short) label;
+							queue.add((nz * size) + neighbour, Math.max(queue.getCurrentLevel(), levels[nz][neighbour]));
+						}
+					}
+				}
+			}
+		}
+
+		// Voxels that could not be reached from a marker keep the label 0
+		return createLabelImage(labelStack, aMask);
+	}
+
+
+	private static ImagePlus createLabelImage(final ImageStack aLabelStack, final ImagePlus aMask)
+	{
+		final ImagePlus labelImage = new ImagePlus("Watershed_" + aMask.getTitle(), aLabelStack);
+		labelImage.setCalibration(aMask.getCalibration().copy());
+		return labelImage;
+	}
+
+
+	/**
+	 * Check if an already labelled neighbour of a voxel belongs to another segment.
+	 */
+	private static boolean touchesOtherSegment(final short[][] aLabels, final byte[][] aStates, final int aX, final int aY, final int aZ, final int aWidth, final int aHeight, final int aDepth,
+			final int aLabel)
+	{
+		for (int nz = Math.max(0, aZ - 1); nz <= Math.min(aDepth - 1, aZ + 1); nz++)
+		{
+			for (int ny = Math.max(0, aY - 1); ny <= Math.min(aHeight - 1, aY + 1); ny++)
+			{
+				for (int nx = Math.max(0, aX - 1); nx <= Math.min(aWidth - 1, aX + 1); nx++)
+				{
+					final int neighbour = (ny * aWidth) + nx;
+					if (aStates[nz][neighbour] == LABELLED && (aLabels[nz][neighbour] & 0xffff) != aLabel)
+					{
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * A hierarchical queue: one FIFO list per level, linked through an array over all voxels (a voxel is never in the queue twice). The current level only increases.
+	 */
+	private static class BucketQueue
+	{
+		private final int[] heads;
+		private final int[] tails;
+		private final int[] next;
+		private int currentLevel = 0;
+
+
+		private BucketQueue(final int aNrOfLevels, final int aNrOfVoxels)
+		{
+			this.heads = new int[aNrOfLevels];
+			this.tails = new int[aNrOfLevels];
+			this.next = new int[aNrOfVoxels];
+			Arrays.fill(this.heads, -1);
+		}
+
+
+		private void add(final int aVoxel, final int aLevel)
+		{
+			this.next[aVoxel] = -1;
+			if (this.heads[aLevel] < 0)
+			{
+				this.heads[aLevel] = aVoxel;
+			}
+			else
+			{
+				this.next[this.tails[aLevel]] = aVoxel;
+			}
+			this.tails[aLevel] = aVoxel;
+		}
+
+
+		private int getCurrentLevel()
+		{
+			return this.currentLevel;
+		}
+
+
+		/**
+		 * @return The first voxel of the lowest non-empty level, or -1 if the queue is empty
+		 */
+		private int poll()
+		{
+			while (this.currentLevel < this.heads.length && this.heads[this.currentLevel] < 0)
+			{
+				this.currentLevel++;
+			}
+			if (this.currentLevel == this.heads.length)
+			{
+				return -1;
+			}
+
+			final int voxel = this.heads[this.currentLevel];
+			this.heads[this.currentLevel] = this.next[voxel];
+			return voxel;
+		}
+	}
+
+
+	/**
+	 * Made private to prevent instantiation.
+	 */
+	private MarkerWatershed3D()
+	{
+	}
+}
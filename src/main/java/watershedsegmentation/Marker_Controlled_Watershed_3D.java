@@ -1,13 +1,26 @@
 package watershedsegmentation;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import data.NucleiSegmentationParameters;
+import imageprocessing.AttenuationCorrection;
+import imageprocessing.DistanceTransform3D;
+import imageprocessing.MeanFilter3D;
+import imageprocessing.MedianFilter3D;
+import imageprocessing.ParallelProcessor;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -15,14 +28,13 @@ import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.measure.CurveFitter;
+import ij.measure.ResultsTable;
 import ij.plugin.Duplicator;
 import ij.plugin.ImageCalculator;
 import ij.plugin.PlugIn;
 import ij.process.AutoThresholder;
 import ij.process.ImageProcessor;
-import ij.process.StackStatistics;
 import utils.AttenuationAdjuster;
-import utils.GenUtils;
 
 //TODO Deze plugin kan zowel 2D als 3D images aan
 // Hierbij wordt er alleen onderscheid gemaakt in de threshold
@@ -35,8 +47,12 @@ import utils.GenUtils;
  * claimed by one of the segments. This specific plugin assumes the input image to contain at least a channel showing a nucleus-identifying signal (e.g. DAPI) and is also capable of using the markers
  * on a complete cell-based signal (with the exception of the nucleus if need be). The latter is an option for the user to decide.
  *
- * This plugins use the following plugins: - Median filter: Fiji -> Process -> Median(3D) - Threshold: Fiji -> Image -> Adjust -> Threshold - Exact Euclidean Distance Transform: Fiji -> Process ->
- * Exact Euclidean Distance Transform(3D) - Marker Controlled Watershed: Fiji --> Plugins -> MorpholibJ
+ * When run with the argument "sweep", the nucleus channel is segmented with every combination of a set of filters, thresholds and dams settings instead, to help choose the settings. The
+ * intermediate images are shared between the combinations and a summary of the number of segments per combination is saved.
+ *
+ * This plugins use the following plugins: - Median and mean filters: the built-in MedianFilter3D and MeanFilter3D - Threshold: the built-in Thresholder3D (ImageJ auto-threshold methods, a
+ * manual or a sliding-window threshold) - Euclidean Distance Transform: the built-in DistanceTransform3D - Marker Controlled Watershed: the built-in MarkerWatershed3D (or ChunkedWatershed3D in
+ * chunks of slices). These are called directly, so the plugin does not depend on the active image window.
  *
  * @author Esther
  */
@@ -50,6 +66,12 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 	public static final String WATERSHED_INFIX = "_MCWatershed_";
 	public static final String DAPI = "_DAPI_";
 	public static final String ACTIN = "_Actin_";
+	public static final String SWEEP = "sweep";
+	private static final String DAPI_DAMS = "_DAPI-Dams_";
+	// The part of the free memory that the thresholds of the parameter sweep may use at the same time
+	private static final double SWEEP_MEMORY_FRACTION = 0.75;
+	// The bytes per voxel of the distance map (float) and the flooding state of the watershed (level, state and queue link)
+	private static final int WATERSHED_BYTES_PER_VOXEL = Float.BYTES + Character.BYTES + 1 + Integer.BYTES;
 	private String threshold;
 	private String thresholdActin;
 	private String filter;
@@ -69,6 +91,17 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 	private int attenuationFitMethod;
 	private boolean experimentalThreshold;
 	private int thresholdWindow;
+	private double medianRadiusXY;
+	private double medianRadiusZ;
+	private double meanRadiusXY;
+	private double meanRadiusZ;
+	private File workingDirectory;
+	private int chunkDepth;
+	private double nucleusDiameter;
+	private boolean sweep = false;
+	private final List<String> sweepFilters = new ArrayList<>();
+	private final List<String> sweepThresholds = new ArrayList<>();
+	private final List<Boolean> sweepDams = new ArrayList<>();
 
 
 	/**
@@ -76,66 +109,73 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 	 *
 	 * @param aFilteredImage The channel image after filtering has been done already
 	 * @param aThreshold     The thresholding method to apply
+	 *
+	 * @return The mask (8-bit, 255 for the foreground) of the thresholded image
+	 */
+	private ImagePlus applyThreshold(final ImagePlus aFilteredImage, final String aThreshold)
+	{
+		final Thresholder3D thresholder = new Thresholder3D(aFilteredImage);
+		if (!aThreshold.equals(MANUAL) && !this.experimentalThreshold)
+		{
+			reportStackThresholds(thresholder);
+		}
+		return applyThreshold(thresholder, aThreshold);
+	}
+
+
+	/**
+	 * Apply a threshold with a thresholder of which the histograms have already been calculated, so several thresholds can be applied to the same filtered image.
+	 *
+	 * @param aThresholder The thresholder of the filtered image
+	 * @param aThreshold   The thresholding method to apply
+	 *
+	 * @return The mask (8-bit, 255 for the foreground) of the thresholded image
 	 */
-	private void applyThreshold(final ImagePlus aFilteredImage, final String aThreshold)
+	private ImagePlus applyThreshold(final Thresholder3D aThresholder, final String aThreshold)
 	{
 		IJ.log("   Start threshold");
-		final String stackIt = this.originalImage.getNSlices() > 1 ? " stack" : "";
+		final ImagePlus mask;
 		if (aThreshold.equals(MANUAL))
 		{
-			final String thresholdSettings = "Default dark" + stackIt;
-			IJ.setAutoThreshold(aFilteredImage, thresholdSettings);
-			IJ.setThreshold(aFilteredImage, this.manualThreshold[0], this.manualThreshold[1], null);
 			IJ.log("      Threshold: " + this.manualThreshold[0] + " - " + this.manualThreshold[1]);
-			IJ.run(aFilteredImage, "Convert to Mask", "method=Default background=Dark black");
+			mask = aThresholder.createManualMask(this.manualThreshold[0], this.manualThreshold[1]);
 		}
 		else if (this.experimentalThreshold)
 		{
-			final int stackSize = aFilteredImage.getNSlices();
-			final int[] originalThresholds = new int[stackSize + (2 * this.thresholdWindow)];
-			final ImageStack stack = aFilteredImage.getImageStack();
-			for (int slicenr = 1; slicenr <= stackSize; slicenr++)
-			{
-				final ImageProcessor proc = stack.getProcessor(slicenr);
-				final int[] histogram = proc.getHistogram();
-
-				final AutoThresholder autoT = new AutoThresholder();
-				originalThresholds[slicenr - 1 + this.thresholdWindow] = autoT.getThreshold(aThreshold, histogram);
-			}
-
-			final int lowValue = originalThresholds[this.thresholdWindow];
-			final int highValue = originalThresholds[stackSize - 1 + this.thresholdWindow];
-			for (int i = 1; i <= this.thresholdWindow; i++)
-			{
-				originalThresholds[this.thresholdWindow - i] = lowValue;
-				originalThresholds[stackSize - 1 + this.thresholdWindow + i] = highValue;
-			}
-
-			for (int slicenr = 0; slicenr < stackSize; slicenr++)
-			{
-				int currentThreshold = 0;
-				for (int i = -this.thresholdWindow; i <= this.thresholdWindow; i++)
-				{
-					currentThreshold += originalThresholds[slicenr + this.thresholdWindow + i];
-				}
-				currentThreshold /= (this.thresholdWindow * 2) + 1;
-				aFilteredImage.setSlice(slicenr + 1);
-				IJ.setThreshold(aFilteredImage, currentThreshold, aFilteredImage.getBitDepth() == 8 ? 255 : 65335, null);
-				IJ.log(slicenr + "\t" + currentThreshold);
-				IJ.run(aFilteredImage, "Convert to Mask", "method=Default background=Dark only black");
-			}
+			mask = aThresholder.createSlidingWindowMask(aThreshold, this.thresholdWindow);
 		}
 		else
 		{
-			reportStackThresholds(aFilteredImage);
-
-			final String thresholdInput1 = aThreshold + " dark" + stackIt;
-			final String threhsoldInput2 = "method=" + aThreshold + " background=Dark black";
-			IJ.setAutoThreshold(aFilteredImage, thresholdInput1);
-			IJ.run(aFilteredImage, "Convert to Mask", threhsoldInput2);
+			mask = aThresholder.createStackMask(aThreshold);
 			IJ.log("      Treshold: " + aThreshold);
 		}
 		IJ.log("   End threshold");
+		return mask;
+	}
+
+
+	/**
+	 * Grow the segments from the markers in the thresholded image with a watershed in chunks of slices, with a halo of the largest nucleus diameter, and save the segmented image (without showing
+	 * it). The distance map is calculated per chunk.
+	 *
+	 * @param aImage           The filtered and thresholded image
+	 * @param aMarkerImage     The image with a coloured (labelled) seed for each segment
+	 * @param aOutputDirectory The directory in which the segmented image is saved
+	 * @param aChannelName     The name of the channel, used in the name of the segmented image
+	 * @param aThreshold       The name of the threshold method, used in the name of the segmented image
+	 * @param aFilter          The name of the filter, used in the name of the segmented image
+	 * @param aCalculateDams   Separate the segments by dams of background voxels
+	 *
+	 * @return The segmented (label) image
+	 */
+	private ImagePlus chunkedWatershed(final ImagePlus aImage, final ImagePlus aMarkerImage, final File aOutputDirectory, final String aChannelName, final String aThreshold,
+			final String aFilter, final boolean aCalculateDams)
+	{
+		final int halo = ChunkedWatershed3D.getHaloSlices(aImage, this.nucleusDiameter);
+		IJ.log("   Marker-Controlled Watershed " + aMarkerImage.getShortTitle() + " in chunks of " + this.chunkDepth + " slices with a halo of " + halo + " slices");
+		final ImagePlus imageseg = ChunkedWatershed3D.computeWatershed(aImage, aMarkerImage, aCalculateDams, this.chunkDepth, halo);
+		saveSegmentImage(imageseg, aMarkerImage, aOutputDirectory, aChannelName, aThreshold, aFilter);
+		return imageseg;
 	}
 
 
@@ -144,10 +184,10 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 		final GenericDialog gd = new GenericDialog("Settings for the threshold");
 
 		final boolean attenuationPref = Prefs.get(NucleiSegmentationParameters.WS_ADJUST_ATTENUATION, true);
-		final double percentilePref = Prefs.get(NucleiSegmentationParameters.WS_ATN_PERCENTILE, 90.0);
-		final int standardPref = (int) Prefs.get(NucleiSegmentationParameters.WS_ATN_STANDARD_SLICE, 10);
-		final int startPref = (int) Prefs.get(NucleiSegmentationParameters.WS_ATN_START_INTENS, 3);
-		final int endPref = (int) Prefs.get(NucleiSegmentationParameters.WS_ATN_END_INTENS, 255);
+		final double percentilePref = Prefs.get(NucleiSegmentationParameters.WS_ATN_PERCENTILE, AttenuationCorrection.DEFAULT_PERCENTILE);
+		final int standardPref = (int) Prefs.get(NucleiSegmentationParameters.WS_ATN_STANDARD_SLICE, AttenuationCorrection.DEFAULT_STANDARD_SLICE);
+		final int startPref = (int) Prefs.get(NucleiSegmentationParameters.WS_ATN_START_INTENS, AttenuationCorrection.DEFAULT_START_INTENSITY);
+		final int endPref = (int) Prefs.get(NucleiSegmentationParameters.WS_ATN_END_INTENS, AttenuationCorrection.DEFAULT_END_INTENSITY);
 		final int fitMethodPref = (int) Prefs.get(NucleiSegmentationParameters.WS_ATN_FIT_METHOD, CurveFitter.EXP_WITH_OFFSET);
 
 		gd.addCheckbox("Adjust for attenuation?", attenuationPref);
@@ -257,12 +297,15 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 		final boolean experimentalThresholdPref = Prefs.get(NucleiSegmentationParameters.WS_DO_EXP_THRESHOLD, false);
 
 		final double expThreshold = Prefs.get(NucleiSegmentationParameters.WS_EXPERIMENTAL_THRESHOLD, 3);
+		final double medianXYPref = Prefs.get(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_XY, MedianFilter3D.DEFAULT_RADIUS);
+		final double medianZPref = Prefs.get(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_Z, MedianFilter3D.DEFAULT_RADIUS);
+		final double meanXYPref = Prefs.get(NucleiSegmentationParameters.WS_MEAN_RADIUS_XY, MeanFilter3D.DEFAULT_RADIUS);
+		final double meanZPref = Prefs.get(NucleiSegmentationParameters.WS_MEAN_RADIUS_Z, MeanFilter3D.DEFAULT_RADIUS);
+		final int chunkDepthPref = (int) Prefs.get(NucleiSegmentationParameters.WS_CHUNK_DEPTH, 0);
+		final double nucleusDiameterPref = Prefs.get(NucleiSegmentationParameters.WS_NUCLEUS_DIAMETER, 15);
 
 		gd.addChoice("Select the filter for the nucleus channel", FILTERS, dapiFilterPref);
-		final List<String> thresholds = new ArrayList<>();
-		thresholds.add(MANUAL);
-		thresholds.addAll(Arrays.asList(AutoThresholder.getMethods()));
-		final String[] threshList = thresholds.toArray(new String[0]);
+		final String[] threshList = getThresholdMethods();
 		gd.addChoice("Select the threshold for the nucleus segments", threshList, dapiThreshPref);
 		gd.addCheckbox("Calculate dams on nucleus segments?", dapiDamsPref);
 		if (this.segmentActinChannel) // Selected in an earlier dialog
@@ -271,8 +314,14 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 			gd.addChoice("Select the threshold for the actin segments", threshList, actinThreshPref);
 			gd.addCheckbox("Calculate dams actin segments?", actinDamsPref);
 		}
+		gd.addNumericField("Median radius XY", medianXYPref, 1, 5, "pixel");
+		gd.addNumericField("Median radius Z", medianZPref, 1, 5, "slice");
+		gd.addNumericField("Mean radius XY", meanXYPref, 0, 5, "pixel");
+		gd.addNumericField("Mean radius Z", meanZPref, 0, 5, "slice");
 		gd.addCheckbox("Use experimental threshold?", experimentalThresholdPref);
 		gd.addNumericField("Threshold window", expThreshold, 0);
+		gd.addNumericField("Watershed chunk depth (0 = whole stack)", chunkDepthPref, 0, 5, "slices");
+		gd.addNumericField("Largest expected nucleus diameter", nucleusDiameterPref, 1, 5, this.originalImage.getCalibration().getUnit());
 		gd.showDialog();
 
 		if (gd.wasOKed())
@@ -286,8 +335,14 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 				this.thresholdActin = gd.getNextChoice();
 				this.calculateDams[1] = gd.getNextBoolean();
 			}
+			this.medianRadiusXY = gd.getNextNumber();
+			this.medianRadiusZ = gd.getNextNumber();
+			this.meanRadiusXY = gd.getNextNumber();
+			this.meanRadiusZ = gd.getNextNumber();
 			this.experimentalThreshold = gd.getNextBoolean();
 			this.thresholdWindow = (int) gd.getNextNumber();
+			this.chunkDepth = (int) gd.getNextNumber();
+			this.nucleusDiameter = gd.getNextNumber();
 
 			Prefs.set(NucleiSegmentationParameters.WS_DAPI_FILTER, this.filter);
 			Prefs.set(NucleiSegmentationParameters.WS_DAPI_THRESHOLD, this.threshold);
@@ -297,6 +352,12 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 			Prefs.set(NucleiSegmentationParameters.WS_ACTIN_DAMS, this.calculateDams[1]);
 			Prefs.set(NucleiSegmentationParameters.WS_DO_EXP_THRESHOLD, this.experimentalThreshold);
 			Prefs.set(NucleiSegmentationParameters.WS_EXPERIMENTAL_THRESHOLD, this.thresholdWindow);
+			Prefs.set(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_XY, this.medianRadiusXY);
+			Prefs.set(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_Z, this.medianRadiusZ);
+			Prefs.set(NucleiSegmentationParameters.WS_MEAN_RADIUS_XY, this.meanRadiusXY);
+			Prefs.set(NucleiSegmentationParameters.WS_MEAN_RADIUS_Z, this.meanRadiusZ);
+			Prefs.set(NucleiSegmentationParameters.WS_CHUNK_DEPTH, this.chunkDepth);
+			Prefs.set(NucleiSegmentationParameters.WS_NUCLEUS_DIAMETER, this.nucleusDiameter);
 			Prefs.savePreferences();
 			return true;
 		}
@@ -331,25 +392,136 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 
 
 	/**
-	 * Do the preparation before the segmentation. Filter and threshold the input images to reduce noise and to get a starting point for the watershed.
+	 * Ask the user which filters, threshold methods and dams settings to sweep over. Every combination is segmented, for the nucleus channel only.
+	 *
+	 * @return True if the dialog has been OK-ed and at least one option of each has been chosen, false otherwise.
+	 */
+	private boolean dialogSweepSetting()
+	{
+		final GenericDialog gd = new GenericDialog("Settings for the parameter sweep");
+
+		final List<String> filtersPref = Arrays.asList(Prefs.get(NucleiSegmentationParameters.WS_SWEEP_FILTERS, FILTERS[0]).split(","));
+		final List<String> thresholdsPref = Arrays.asList(Prefs.get(NucleiSegmentationParameters.WS_SWEEP_THRESHOLDS, "Default").split(","));
+		final boolean noDamsPref = Prefs.get(NucleiSegmentationParameters.WS_SWEEP_NO_DAMS, false);
+		final boolean damsPref = Prefs.get(NucleiSegmentationParameters.WS_SWEEP_DAMS, true);
+		final boolean experimentalThresholdPref = Prefs.get(NucleiSegmentationParameters.WS_DO_EXP_THRESHOLD, false);
+
+		final double expThreshold = Prefs.get(NucleiSegmentationParameters.WS_EXPERIMENTAL_THRESHOLD, 3);
+		final double medianXYPref = Prefs.get(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_XY, MedianFilter3D.DEFAULT_RADIUS);
+		final double medianZPref = Prefs.get(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_Z, MedianFilter3D.DEFAULT_RADIUS);
+		final double meanXYPref = Prefs.get(NucleiSegmentationParameters.WS_MEAN_RADIUS_XY, MeanFilter3D.DEFAULT_RADIUS);
+		final double meanZPref = Prefs.get(NucleiSegmentationParameters.WS_MEAN_RADIUS_Z, MeanFilter3D.DEFAULT_RADIUS);
+		final int chunkDepthPref = (int) Prefs.get(NucleiSegmentationParameters.WS_CHUNK_DEPTH, 0);
+		final double nucleusDiameterPref = Prefs.get(NucleiSegmentationParameters.WS_NUCLEUS_DIAMETER, 15);
+
+		final String[] threshList = getThresholdMethods();
+		final boolean[] filterDefaults = new boolean[FILTERS.length];
+		for (int i = 0; i < FILTERS.length; i++)
+		{
+			filterDefaults[i] = filtersPref.contains(FILTERS[i]);
+		}
+		final boolean[] thresholdDefaults = new boolean[threshList.length];
+		for (int i = 0; i < threshList.length; i++)
+		{
+			thresholdDefaults[i] = thresholdsPref.contains(threshList[i]);
+		}
+
+		gd.addMessage("Filters for the nucleus channel");
+		gd.addCheckboxGroup(1, FILTERS.length, FILTERS, filterDefaults);
+		gd.addMessage("Thresholds for the nucleus segments");
+		gd.addCheckboxGroup((threshList.length + 3) / 4, 4, threshList, thresholdDefaults);
+		gd.addCheckbox("Segment without dams", noDamsPref);
+		gd.addCheckbox("Segment with dams", damsPref);
+		gd.addNumericField("Median radius XY", medianXYPref, 1, 5, "pixel");
+		gd.addNumericField("Median radius Z", medianZPref, 1, 5, "slice");
+		gd.addNumericField("Mean radius XY", meanXYPref, 0, 5, "pixel");
+		gd.addNumericField("Mean radius Z", meanZPref, 0, 5, "slice");
+		gd.addCheckbox("Use experimental threshold?", experimentalThresholdPref);
+		gd.addNumericField("Threshold window", expThreshold, 0);
+		gd.addNumericField("Watershed chunk depth (0 = whole stack)", chunkDepthPref, 0, 5, "slices");
+		gd.addNumericField("Largest expected nucleus diameter", nucleusDiameterPref, 1, 5, this.originalImage.getCalibration().getUnit());
+		gd.showDialog();
+
+		if (gd.wasOKed())
+		{
+			this.sweepFilters.clear();
+			for (final String filterName : FILTERS)
+			{
+				if (gd.getNextBoolean())
+				{
+					this.sweepFilters.add(filterName);
+				}
+			}
+			this.sweepThresholds.clear();
+			for (final String thresholdName : threshList)
+			{
+				if (gd.getNextBoolean())
+				{
+					this.sweepThresholds.add(thresholdName);
+				}
+			}
+			this.sweepDams.clear();
+			if (gd.getNextBoolean())
+			{
+				this.sweepDams.add(false);
+			}
+			if (gd.getNextBoolean())
+			{
+				this.sweepDams.add(true);
+			}
+			this.medianRadiusXY = gd.getNextNumber();
+			this.medianRadiusZ = gd.getNextNumber();
+			this.meanRadiusXY = gd.getNextNumber();
+			this.meanRadiusZ = gd.getNextNumber();
+			this.experimentalThreshold = gd.getNextBoolean();
+			this.thresholdWindow = (int) gd.getNextNumber();
+			this.chunkDepth = (int) gd.getNextNumber();
+			this.nucleusDiameter = gd.getNextNumber();
+
+			Prefs.set(NucleiSegmentationParameters.WS_SWEEP_FILTERS, String.join(",", this.sweepFilters));
+			Prefs.set(NucleiSegmentationParameters.WS_SWEEP_THRESHOLDS, String.join(",", this.sweepThresholds));
+			Prefs.set(NucleiSegmentationParameters.WS_SWEEP_NO_DAMS, this.sweepDams.contains(false));
+			Prefs.set(NucleiSegmentationParameters.WS_SWEEP_DAMS, this.sweepDams.contains(true));
+			Prefs.set(NucleiSegmentationParameters.WS_DO_EXP_THRESHOLD, this.experimentalThreshold);
+			Prefs.set(NucleiSegmentationParameters.WS_EXPERIMENTAL_THRESHOLD, this.thresholdWindow);
+			Prefs.set(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_XY, this.medianRadiusXY);
+			Prefs.set(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_Z, this.medianRadiusZ);
+			Prefs.set(NucleiSegmentationParameters.WS_MEAN_RADIUS_XY, this.meanRadiusXY);
+			Prefs.set(NucleiSegmentationParameters.WS_MEAN_RADIUS_Z, this.meanRadiusZ);
+			Prefs.set(NucleiSegmentationParameters.WS_CHUNK_DEPTH, this.chunkDepth);
+			Prefs.set(NucleiSegmentationParameters.WS_NUCLEUS_DIAMETER, this.nucleusDiameter);
+			Prefs.savePreferences();
+
+			if (this.sweepFilters.isEmpty() || this.sweepThresholds.isEmpty() || this.sweepDams.isEmpty())
+			{
+				IJ.error("Parameter sweep input error", "Select at least one filter, one threshold and one dams setting");
+				return false;
+			}
+			return true;
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * Get a duplicate of a channel of the original image, adjusted for the attenuation if chosen to do so. The attenuation adjustments of the first channel are taken from the cache in the working
+	 * directory if they have been fitted before, and are reused for the next channels.
 	 *
-	 * @param aChannel   The number of the channel that needs to be prepared
-	 * @param aFilter    The name of the filter to apply
-	 * @param aThreshold The name of the threshold method to use
+	 * @param aChannel The number of the channel to duplicate
 	 *
-	 * @return A (duplicated) filtered and thresholded image of just the selected channel.
+	 * @return A duplicate of just the selected channel
 	 */
-	private ImagePlus filterAndThresholdChannel(final int aChannel, final String aFilter, final String aThreshold)
+	private ImagePlus duplicateChannel(final int aChannel)
 	{
-		// Get a duplicate of the chosen channel. This will be the new 'original'.
 		final ImagePlus segmentImage = new Duplicator().run(this.originalImage, aChannel, aChannel, 1, this.originalImage.getNSlices(), 1, 1);
 		segmentImage.setTitle(this.originalImage.getTitle());
 		if (this.adjustAttenuation)
 		{
 			if (this.attenuationAdjustments == null)
 			{
-				this.attenuationAdjustments = AttenuationAdjuster.adjustAttenuation(segmentImage, 1, this.attenuationPerc, this.attenuationStandardSlice, this.attenuationStartIntensity, 1,
-						this.attenuationEndIntensity, this.attenuationFitMethod, null);
+				this.attenuationAdjustments = AttenuationCorrection.correct(segmentImage, this.workingDirectory, this.originalImage.getShortTitle(), aChannel, this.attenuationPerc,
+						this.attenuationStandardSlice, this.attenuationStartIntensity, this.attenuationEndIntensity, this.attenuationFitMethod);
 			}
 			else
 			{
@@ -358,86 +530,174 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 			}
 		}
 
-		// Median Filter
+		return segmentImage;
+	}
+
+
+	/**
+	 * Do the preparation before the segmentation. Filter and threshold the input images to reduce noise and to get a starting point for the watershed.
+	 *
+	 * @param aSegmentImage The duplicate of the channel that needs to be prepared
+	 * @param aFilter       The name of the filter to apply
+	 * @param aThreshold    The name of the threshold method to use
+	 *
+	 * @return A filtered and thresholded image of just the selected channel.
+	 */
+	private ImagePlus filterAndThresholdChannel(final ImagePlus aSegmentImage, final String aFilter, final String aThreshold)
+	{
+		final ImagePlus filteredImage = filterChannel(aSegmentImage, aFilter);
+
+		// Start of the threshold
+		final ImagePlus maskImage = applyThreshold(filteredImage, aThreshold);
+
+		// Get rid of the original duplicate.
+		aSegmentImage.close();
+
+		return maskImage;
+	}
+
+
+	/**
+	 * Filter a channel image with the chosen filter and its radii.
+	 *
+	 * @param aSegmentImage The duplicate of the channel that needs to be filtered. The image is not changed.
+	 * @param aFilter       The name of the filter to apply
+	 *
+	 * @return A new, filtered image
+	 */
+	private ImagePlus filterChannel(final ImagePlus aSegmentImage, final String aFilter)
+	{
 		ImagePlus filteredImage = null;
 		if (aFilter.equals(MEDIAN))
 		{
 			IJ.log("   Start Median filter 3D");
-			IJ.run(segmentImage, "Median (3D)", ""); // TODO: make this into parameters?
-			// Do until de median filter has been done. This is detected by seeing that the current (i.e. newest) image has a different title compared to the original
-			do
-			{
-				filteredImage = IJ.getImage();
-			} while (filteredImage.getTitle().equals(segmentImage.getTitle()));
+			filteredImage = MedianFilter3D.filter(aSegmentImage, this.medianRadiusXY, this.medianRadiusZ);
 			IJ.log("   End Median filter 3D");
 		}
 		else if (aFilter.equals(MEAN))
 		{
 			IJ.log("   Start Mean filter 3D");
-			filteredImage = segmentImage.duplicate();
-			IJ.run(filteredImage, "Mean 3D...", "x=3 y=3 z=3"); // TODO: make this into parameters?
-			IJ.wait(10000); // Delay to wait for mean filter to end processing
-			filteredImage.show();
+			filteredImage = MeanFilter3D.filter(aSegmentImage, this.meanRadiusXY, this.meanRadiusZ);
 			IJ.log("   End Mean filter 3D");
 		}
+		return filteredImage;
+	}
 
-		// Start of the threshold
-		applyThreshold(filteredImage, aThreshold);
-
-		// Get rid of the original duplicate.
-		segmentImage.close();
 
-		return filteredImage;
+	/**
+	 * Should the watershed of an image be done in chunks of slices?
+	 *
+	 * @param aImage The image to segment
+	 *
+	 * @return True if a chunk depth has been set that is smaller than the depth of the image
+	 */
+	private boolean isChunked(final ImagePlus aImage)
+	{
+		return this.chunkDepth > 0 && this.chunkDepth < aImage.getNSlices();
 	}
 
 
 	/**
+	 * Grow the segments from the markers in the thresholded image with a watershed on its distance map and save the segmented image.
 	 *
 	 * @param aImage
+	 *            The filtered and thresholded image
 	 * @param aMarkerImage
+	 *            The image with a coloured (labelled) seed for each segment
 	 * @param aOutputDirectory
+	 *            The directory in which the segmented image is saved
 	 * @param aChannelName
+	 *            The name of the channel, used in the name of the segmented image
 	 * @param aThreshold
+	 *            The name of the threshold method, used in the name of the segmented image
+	 * @param aFilter
+	 *            The name of the filter, used in the name of the segmented image
 	 * @param aCalculateDams
-	 * @return
+	 *            Separate the segments by dams of background voxels
+	 *
+	 * @return The segmented (label) image
 	 */
 	private ImagePlus markerControlledWatershed(final ImagePlus aImage, final ImagePlus aMarkerImage, final File aOutputDirectory, final String aChannelName, final String aThreshold,
 			final String aFilter, final boolean aCalculateDams)
+	{
+		final ImagePlus imageseg;
+		if (isChunked(aImage))
+		{
+			imageseg = chunkedWatershed(aImage, aMarkerImage, aOutputDirectory, aChannelName, aThreshold, aFilter, aCalculateDams);
+		}
+		else
+		{
+			final ImagePlus originalImageDistance = createDistanceMap(aImage);
+			imageseg = markerControlledWatershed(aImage, originalImageDistance, aMarkerImage, aOutputDirectory, aChannelName, aThreshold, aFilter, aCalculateDams);
+			originalImageDistance.close();
+		}
+		imageseg.show();
+		return imageseg;
+	}
+
+
+	/**
+	 * Create the distance map of a thresholded image for the watershed.
+	 *
+	 * @param aImage The filtered and thresholded image
+	 *
+	 * @return The inverted distance map, so the centres of the nuclei are the basins of the watershed
+	 */
+	private ImagePlus createDistanceMap(final ImagePlus aImage)
 	{
 		IJ.log("   Start Distance Map");
-		ImagePlus originalImageDistance;
-		String subTitleMedian = GenUtils.getTitleNoExtension(aImage);
-		subTitleMedian = subTitleMedian.replace(" ", "");
-		final String inputDistance = "map=EDT image=[" + subTitleMedian + "] mask=Same threshold=1 inverse";
-		IJ.run("3D Distance Map", inputDistance);
-		do
-		{
-			originalImageDistance = IJ.getImage();
-		} while (originalImageDistance.getTitle().equals(aImage.getTitle()));
+		final ImagePlus distanceMap = DistanceTransform3D.distanceMap(aImage, true);
 		IJ.log("   End Distance Map");
+		return distanceMap;
+	}
 
-		// Input strings for the marker-controlled watershed
-		final String maskName = "mask=[" + aImage.getTitle() + "]";
-		final String inputName = "input=[" + originalImageDistance.getTitle() + "]";
 
-		// For each marker image a marker-controlled watershed is performed
+	/**
+	 * Grow the segments from the markers in the thresholded image with a watershed on an already calculated distance map and save the segmented image (without showing it).
+	 *
+	 * @param aImage           The filtered and thresholded image
+	 * @param aDistanceMap     The inverted distance map of the thresholded image
+	 * @param aMarkerImage     The image with a coloured (labelled) seed for each segment
+	 * @param aOutputDirectory The directory in which the segmented image is saved
+	 * @param aChannelName     The name of the channel, used in the name of the segmented image
+	 * @param aThreshold       The name of the threshold method, used in the name of the segmented image
+	 * @param aFilter          The name of the filter, used in the name of the segmented image
+	 * @param aCalculateDams   Separate the segments by dams of background voxels
+	 *
+	 * @return The segmented (label) image
+	 */
+	private ImagePlus markerControlledWatershed(final ImagePlus aImage, final ImagePlus aDistanceMap, final ImagePlus aMarkerImage, final File aOutputDirectory, final String aChannelName,
+			final String aThreshold, final String aFilter, final boolean aCalculateDams)
+	{
+		// Marker-Controlled watershed of the distance map, within the thresholded image
 		IJ.log("   Marker-Controlled Watershed " + aMarkerImage.getShortTitle());
-		final String markerName = "marker=[" + aMarkerImage.getTitle() + "]";
-		String options = "use";
-		if (aCalculateDams)
-		{
-			options = "calculate use";
-		}
-		final String input = inputName + " " + markerName + " " + maskName + " " + options;
-		IJ.log("     " + input);
-		// Marker-Controlled watershed
-		IJ.run("Marker-controlled Watershed", input);
+		final ImagePlus imageseg = MarkerWatershed3D.computeWatershed(aDistanceMap, aMarkerImage, aImage, aCalculateDams);
+		saveSegmentImage(imageseg, aMarkerImage, aOutputDirectory, aChannelName, aThreshold, aFilter);
+		return imageseg;
+	}
 
-		final ImagePlus imageseg = IJ.getImage();
 
+	/**
+	 * Save a segmented image in the output directory, with a name that contains the channel, filter and threshold, and give the image the name of the file.
+	 *
+	 * @param aSegmentImage    The segmented (label) image
+	 * @param aMarkerImage     The image with the markers of the segments
+	 * @param aOutputDirectory The directory in which the segmented image is saved
+	 * @param aChannelName     The name of the channel, used in the name of the segmented image
+	 * @param aThreshold       The name of the threshold method, used in the name of the segmented image
+	 * @param aFilter          The name of the filter, used in the name of the segmented image
+	 */
+	private void saveSegmentImage(final ImagePlus aSegmentImage, final ImagePlus aMarkerImage, final File aOutputDirectory, final String aChannelName, final String aThreshold,
+			final String aFilter)
+	{
 		// Create the name of the segmented Image
 		final String title = aMarkerImage.getTitle();
-		final String title2 = title.substring(title.indexOf("Markers_") + 8);
+		// The marker images are opened from their TIFF files, so leave out the extension that is added again below
+		String title2 = title.substring(title.indexOf("Markers_") + 8);
+		if (title2.toLowerCase().endsWith(".tif"))
+		{
+			title2 = title2.substring(0, title2.length() - 4);
+		}
 		String nameSegImage = "";
 		if (aThreshold.equals(MANUAL))
 		{
@@ -449,34 +709,92 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 			nameSegImage = File.separator + this.originalImage.getShortTitle() + aChannelName + "_" + aFilter + "_" + aThreshold + WATERSHED_INFIX + title2;
 		}
 
-		// Save the segmented image
-		final String name = aOutputDirectory.getPath() + nameSegImage;
-		IJ.saveAs(imageseg, "Tiff", name);
+		// Save the segmented image as a compressed TIFF with the smallest type that holds the labels
+		final String name = aOutputDirectory.getPath() + nameSegImage + ".tif";
+		try
+		{
+			final int bits = LabelImageWriter.write(aSegmentImage, name);
+			IJ.log("   Segmented image is saved as " + bits + "-bit labels");
+		}
+		catch (final IOException ioe)
+		{
+			IJ.handleException(ioe);
+		}
+		aSegmentImage.setTitle(new File(name).getName());
 		IJ.log("Segmented image is save as: " + nameSegImage);
 		IJ.log("   Segmented image is saved in " + name);
-		originalImageDistance.close();
-		return imageseg;
 	}
 
 
 	/**
-	 * A small bit of code to show the threshold values of the different auto-threshold methods on an image stack.
+	 * Count the number of different labels in a label image.
 	 *
-	 * @param aImage The ImagePlus to be thresholded
+	 * @param aLabelImage The label image, with 0 for the background
+	 *
+	 * @return The number of different labels larger than 0
 	 */
-	private void reportStackThresholds(final ImagePlus aImage)
+	private static int countLabels(final ImagePlus aLabelImage)
 	{
-		final StackStatistics ss = new StackStatistics(aImage);
-		final long[] longHist = ss.getHistogram();
-		final int[] histo = new int[longHist.length];
-		for (int i = 0; i < longHist.length; i++)
+		final BitSet labels = new BitSet();
+		final ImageStack stack = aLabelImage.getImageStack();
+		for (int z = 1; z <= stack.getSize(); z++)
 		{
-			histo[i] = Math.toIntExact(longHist[i]);
+			final ImageProcessor proc = stack.getProcessor(z);
+			for (int i = 0; i < proc.getPixelCount(); i++)
+			{
+				final int label = (int) proc.getf(i);
+				if (label > 0)
+				{
+					labels.set(label);
+				}
+			}
 		}
+		return labels.cardinality();
+	}
+
+
+	/**
+	 * Determine how many thresholds of the parameter sweep can be segmented at the same time. This is limited by the number of threads ImageJ may use and by the free heap space.
+	 *
+	 * @param aNrOfThresholds The number of thresholds per filter
+	 * @param aThresholdBytes The memory needed per threshold in progress in bytes
+	 *
+	 * @return The number of thresholds to segment concurrently (at least 1)
+	 */
+	private static int getConcurrentThresholdCount(final int aNrOfThresholds, final long aThresholdBytes)
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		final long memoryLimit = (long) ((freeMemory * SWEEP_MEMORY_FRACTION) / Math.max(1, aThresholdBytes));
+
+		return (int) Math.max(1, Math.min(memoryLimit, Math.min(Prefs.getThreads(), aNrOfThresholds)));
+	}
+
+
+	/**
+	 * Get the names of all threshold methods the user can choose from: manual and all auto-threshold methods.
+	 *
+	 * @return The names of the threshold methods
+	 */
+	private static String[] getThresholdMethods()
+	{
+		final List<String> thresholds = new ArrayList<>();
+		thresholds.add(MANUAL);
+		thresholds.addAll(Arrays.asList(AutoThresholder.getMethods()));
+		return thresholds.toArray(new String[0]);
+	}
+
+
+	/**
+	 * A small bit of code to show the threshold values of the different auto-threshold methods on an image stack.
+	 *
+	 * @param aThresholder The thresholder of the image, which contains the stack histogram
+	 */
+	private void reportStackThresholds(final Thresholder3D aThresholder)
+	{
 		for (final AutoThresholder.Method method : AutoThresholder.Method.values())
 		{
-			final AutoThresholder autoT = new AutoThresholder();
-			IJ.log("Threshold " + method.name() + " is " + autoT.getThreshold(method, histo));
+			IJ.log("Threshold " + method.name() + " is " + aThresholder.getStackThreshold(method));
 		}
 	}
 
@@ -484,6 +802,8 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 	@Override
 	public void run(final String aArg)
 	{
+		this.sweep = SWEEP.equals(aArg);
+
 		// For all images, the names are listed in the array ImagesNames to select the original image and the marker images
 		final int amountWindows = WindowManager.getImageCount();
 		final String[] imagesNames = new String[amountWindows + 1];
@@ -517,14 +837,29 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 		}
 
 		// Get the threshold and filter choices
-		if (!dialogThresholdSetting())
+		if (this.sweep)
 		{
-			return;
+			if (this.segmentActinChannel)
+			{
+				IJ.log("The parameter sweep only segments the nucleus channel");
+				this.segmentActinChannel = false;
+			}
+			if (!dialogSweepSetting() || (this.sweepThresholds.contains(MANUAL) && !dialogThresholdSettingManual()))
+			{
+				return;
+			}
 		}
-		// If threshold is Manual the dialogue 'DialogueThresholdSettingManual' is used to set the manual threshold
-		if ((this.threshold == MANUAL || this.thresholdActin == MANUAL) && !dialogThresholdSettingManual()) // i.e. the settings for dapi == settings for actin
+		else
 		{
-			return;
+			if (!dialogThresholdSetting())
+			{
+				return;
+			}
+			// If threshold is Manual the dialogue 'DialogueThresholdSettingManual' is used to set the manual threshold
+			if ((this.threshold == MANUAL || this.thresholdActin == MANUAL) && !dialogThresholdSettingManual()) // i.e. the settings for dapi == settings for actin
+			{
+				return;
+			}
 		}
 
 		// See if the user wants an attenuation adjustment
@@ -546,27 +881,61 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 			directoryOutputFile.mkdir();
 		}
 
+		this.workingDirectory = workingDir;
+		this.attenuationAdjustments = null;
+		if (this.sweep)
+		{
+			if (runSweep(markerImage, directoryOutputFile))
+			{
+				storeUsedParameters(workingDir);
+			}
+			return;
+		}
+
 		// Start of the marker-controlled watershed
 		IJ.log("Start Marker-controlled watershed");
-		this.attenuationAdjustments = null;
-		final ImagePlus originalImageFilter = filterAndThresholdChannel(this.dapiChannel, this.filter, this.threshold);
-		final ImagePlus nucSegmentImage = markerControlledWatershed(originalImageFilter, markerImage, directoryOutputFile, DAPI, this.threshold, this.filter, this.calculateDams[0]);
+
+		// The nucleus and cell channels are prepared concurrently on the shared processing pool, so together they do not use more threads than set in ImageJ. The cell channel is duplicated
+		// after the nucleus channel to reuse its attenuation adjustments, and the cell watershed needs the nucleus segments as its markers.
+		final ForkJoinPool pool = ParallelProcessor.getPool();
+		final CompletableFuture<ImagePlus> nucChannel = CompletableFuture.supplyAsync(() -> duplicateChannel(this.dapiChannel), pool);
+		final CompletableFuture<ImagePlus> nucMask = nucChannel.thenApplyAsync(aImage -> filterAndThresholdChannel(aImage, this.filter, this.threshold), pool);
+		final CompletableFuture<ImagePlus> nucSegments = nucMask
+				.thenApplyAsync(aMask -> markerControlledWatershed(aMask, markerImage, directoryOutputFile, DAPI, this.threshold, this.filter, this.calculateDams[0]), pool);
 
 		// Segment the cell channel if chosen to do so
+		CompletableFuture<ImagePlus> actinSegments = CompletableFuture.completedFuture(null);
 		if (this.segmentActinChannel && this.actinChannel != 0)
 		{
-			final ImagePlus actinImageFilter = filterAndThresholdChannel(this.actinChannel, this.filterActin, this.thresholdActin);
-
-			// Add the original filtered image to the actin filtered image to fill in the nucleus gaps (little actin there).
-			final ImageCalculator ic = new ImageCalculator();
-			final ImagePlus actinImageCombine = ic.run("Add create stack", originalImageFilter, actinImageFilter);
-			actinImageFilter.close();
-			actinImageCombine.show();
+			final CompletableFuture<ImagePlus> actinMask = nucChannel
+					.thenApplyAsync(aNucImage -> filterAndThresholdChannel(duplicateChannel(this.actinChannel), this.filterActin, this.thresholdActin), pool);
+			actinSegments = nucSegments.thenCombineAsync(actinMask, (aNucSegments, aActinMask) -> {
+				// Add the original filtered image to the actin filtered image to fill in the nucleus gaps (little actin there).
+				final ImageCalculator ic = new ImageCalculator();
+				final ImagePlus actinImageCombine = ic.run("Add create stack", nucMask.join(), aActinMask);
+				aActinMask.close();
+
+				// The cells are flooded from the whole nucleus segments instead of the marker points: every nucleus voxel is a seed, so each cell contains its complete nucleus and has its label
+				final ImagePlus actinSegmentImage = markerControlledWatershed(actinImageCombine, aNucSegments, directoryOutputFile, ACTIN, this.thresholdActin, this.filterActin,
+						this.calculateDams[1]);
+				actinImageCombine.close();
+				return actinSegmentImage;
+			}, pool);
+		}
 
-			markerControlledWatershed(actinImageCombine, nucSegmentImage, directoryOutputFile, ACTIN, this.thresholdActin, this.filterActin, this.calculateDams[1]);
-			actinImageCombine.close();
+		try
+		{
+			CompletableFuture.allOf(nucSegments, actinSegments).get();
+		}
+		catch (final InterruptedException | ExecutionException e)
+		{
+			IJ.handleException(e);
+			return;
+		}
+		finally
+		{
+			nucMask.thenAccept(ImagePlus::close);
 		}
-		originalImageFilter.close();
 
 		// Save parameters
 		storeUsedParameters(workingDir);
@@ -575,6 +944,121 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 	}
 
 
+	/**
+	 * Segment the nucleus channel with every combination of the chosen filters, thresholds and dams settings. The filters are done one after the other: each filtered image (with its histograms) is
+	 * shared by all thresholds and dropped before the next filter is applied. Per threshold, the mask and distance map are shared by the dams settings and closed as soon as their segmented images
+	 * have been written. The thresholds of a filter are segmented concurrently, limited by the number of threads and by the available memory, as each threshold in progress holds a mask, a distance
+	 * map and the flooding state. If a chunk depth has been set, the watershed is done in chunks as in a single run and calculates the distance map per chunk. All segmented images are saved and a
+	 * summary with the number of segments per combination is saved in the output directory and shown.
+	 *
+	 * @param aMarkerImage     The image with a coloured (labelled) seed for each segment
+	 * @param aOutputDirectory The directory in which the segmented images and the summary are saved
+	 *
+	 * @return True if all combinations have been segmented, false otherwise
+	 */
+	private boolean runSweep(final ImagePlus aMarkerImage, final File aOutputDirectory)
+	{
+		IJ.log("Start Marker-controlled watershed parameter sweep");
+		final ImagePlus channel = duplicateChannel(this.dapiChannel);
+		final boolean chunked = isChunked(channel);
+
+		// The memory needed per threshold in progress: the mask and the labels, and the distance map and flooding state of the whole stack or of one chunk with its halo
+		final long sliceVoxels = (long) channel.getWidth() * channel.getHeight();
+		final int depth = channel.getNSlices();
+		final int workDepth = chunked ? Math.min(depth, this.chunkDepth + (2 * ChunkedWatershed3D.getHaloSlices(channel, this.nucleusDiameter))) : depth;
+		final long thresholdBytes = (sliceVoxels * depth * (1 + Short.BYTES)) + (sliceVoxels * workDepth * WATERSHED_BYTES_PER_VOXEL);
+		final int concurrentThresholds = getConcurrentThresholdCount(this.sweepThresholds.size(), thresholdBytes);
+
+		// The number of segments of each combination, in the order of the filters, thresholds and dams
+		final int nrOfDams = this.sweepDams.size();
+		final int[] segmentCounts = new int[this.sweepFilters.size() * this.sweepThresholds.size() * nrOfDams];
+		try
+		{
+			for (int f = 0; f < this.sweepFilters.size(); f++)
+			{
+				final String filterName = this.sweepFilters.get(f);
+				final ImagePlus filteredImage = filterChannel(channel, filterName);
+				final Thresholder3D thresholder = new Thresholder3D(filteredImage);
+				IJ.log("   Segmenting " + this.sweepThresholds.size() + " thresholds of the " + filterName + " filter, " + concurrentThresholds + " at a time");
+
+				final ExecutorService executor = Executors.newFixedThreadPool(concurrentThresholds);
+				try
+				{
+					final List<Future<?>> futures = new ArrayList<>();
+					for (int t = 0; t < this.sweepThresholds.size(); t++)
+					{
+						final String thresholdName = this.sweepThresholds.get(t);
+						final int firstCombination = ((f * this.sweepThresholds.size()) + t) * nrOfDams;
+						futures.add(executor.submit(() -> {
+							final ImagePlus mask = applyThreshold(thresholder, thresholdName);
+							// In chunks, the distance map is calculated per chunk by the watershed itself
+							final ImagePlus distanceMap = chunked ? null : createDistanceMap(mask);
+							for (int d = 0; d < nrOfDams; d++)
+							{
+								final boolean dams = this.sweepDams.get(d);
+								final String channelName = dams ? DAPI_DAMS : DAPI;
+								final ImagePlus segments = chunked ? chunkedWatershed(mask, aMarkerImage, aOutputDirectory, channelName, thresholdName, filterName, dams)
+										: markerControlledWatershed(mask, distanceMap, aMarkerImage, aOutputDirectory, channelName, thresholdName, filterName, dams);
+								segmentCounts[firstCombination + d] = countLabels(segments);
+								segments.close();
+							}
+							mask.close();
+							if (distanceMap != null)
+							{
+								distanceMap.close();
+							}
+						}));
+					}
+
+					for (final Future<?> future : futures)
+					{
+						future.get();
+					}
+				}
+				finally
+				{
+					executor.shutdownNow();
+					filteredImage.close();
+				}
+			}
+		}
+		catch (final InterruptedException | ExecutionException e)
+		{
+			IJ.handleException(e);
+			return false;
+		}
+		finally
+		{
+			channel.close();
+		}
+
+		// The summary of all combinations
+		final int nrOfMarkers = countLabels(aMarkerImage);
+		final ResultsTable summary = new ResultsTable();
+		for (int f = 0; f < this.sweepFilters.size(); f++)
+		{
+			for (int t = 0; t < this.sweepThresholds.size(); t++)
+			{
+				for (int d = 0; d < nrOfDams; d++)
+				{
+					summary.incrementCounter();
+					summary.addValue("Filter", this.sweepFilters.get(f));
+					summary.addValue("Threshold", this.sweepThresholds.get(t));
+					summary.addValue("Dams", this.sweepDams.get(d) + "");
+					summary.addValue("Markers", nrOfMarkers);
+					summary.addValue("Segments", segmentCounts[(((f * this.sweepThresholds.size()) + t) * nrOfDams) + d]);
+				}
+			}
+		}
+		final String summaryName = aOutputDirectory.getPath() + File.separator + this.originalImage.getShortTitle() + "_WatershedSweep.csv";
+		summary.save(summaryName);
+		summary.show("Watershed parameter sweep");
+		IJ.log("   Sweep summary is saved in " + summaryName);
+		IJ.log("End Marker-controlled watershed parameter sweep");
+		return true;
+	}
+
+
 	/**
 	 * Select the channel of the input image in which the nucleus signal can be found. This is also the dialog in which the user can opt to segment a cell-wide signal. If the user chooses so, a
 	 * channel for the cell signal must also be given.
@@ -627,9 +1111,28 @@ public class Marker_Controlled_Watershed_3D implements PlugIn
 	{
 		final Map<String, String> params = new HashMap<>();
 		params.put(NucleiSegmentationParameters.NS_NUCLEUS_CHANNEL, this.dapiChannel + "");
-		params.put(NucleiSegmentationParameters.WS_DAPI_FILTER, this.filter + "");
-		params.put(NucleiSegmentationParameters.WS_DAPI_THRESHOLD, this.threshold + "");
-		params.put(NucleiSegmentationParameters.WS_DAPI_DAMS, this.calculateDams[0] + "");
+		if (this.sweep)
+		{
+			params.put(NucleiSegmentationParameters.WS_SWEEP_FILTERS, String.join(",", this.sweepFilters));
+			params.put(NucleiSegmentationParameters.WS_SWEEP_THRESHOLDS, String.join(",", this.sweepThresholds));
+			params.put(NucleiSegmentationParameters.WS_SWEEP_NO_DAMS, this.sweepDams.contains(false) + "");
+			params.put(NucleiSegmentationParameters.WS_SWEEP_DAMS, this.sweepDams.contains(true) + "");
+		}
+		else
+		{
+			params.put(NucleiSegmentationParameters.WS_DAPI_FILTER, this.filter + "");
+			params.put(NucleiSegmentationParameters.WS_DAPI_THRESHOLD, this.threshold + "");
+			params.put(NucleiSegmentationParameters.WS_DAPI_DAMS, this.calculateDams[0] + "");
+		}
+		params.put(NucleiSegmentationParameters.WS_CHUNK_DEPTH, this.chunkDepth + "");
+		if (this.chunkDepth > 0)
+		{
+			params.put(NucleiSegmentationParameters.WS_NUCLEUS_DIAMETER, this.nucleusDiameter + "");
+		}
+		params.put(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_XY, this.medianRadiusXY + "");
+		params.put(NucleiSegmentationParameters.WS_MEDIAN_RADIUS_Z, this.medianRadiusZ + "");
+		params.put(NucleiSegmentationParameters.WS_MEAN_RADIUS_XY, this.meanRadiusXY + "");
+		params.put(NucleiSegmentationParameters.WS_MEAN_RADIUS_Z, this.meanRadiusZ + "");
 		params.put(NucleiSegmentationParameters.WS_SEGMENT_ACTIN, this.segmentActinChannel + "");
 		if (this.segmentActinChannel)
 		{
@@ -0,0 +1,289 @@
+package watershedsegmentation;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
+import imageprocessing.ParallelProcessor;
+
+/**
+ * Thresholds a 3D image into a binary mask without macro commands. The histograms are calculated once, in parallel over the slices, and any AutoThresholder method can be evaluated on them. The mask
+ * is written directly as an 8-bit image with 255 for the foreground and 0 for the background (as the ImageJ Convert to Mask with a dark background).
+ *
+ * The stack threshold follows the ImageJ auto-threshold of a stack with a dark background: the threshold is found in a 256-bin histogram of the whole stack (for 16- and 32-bit images spread over the
+ * range of the stack) and all values above it are foreground. The sliding-window threshold finds a threshold per slice and uses the mean threshold of the surrounding slices, for images in which the
+ * intensity changes with the depth. Its slice histograms have the same bins as the stack histogram, as the AutoThresholder only works on 256 bins.
+ *
+ * The voxel values are read from the processors of the slices each time they are needed, so the thresholder does not hold a copy of the image.
+ *
+ * @author Merijn van Erp
+ *
+ */
+public class Thresholder3D
+{
+	private static final int STACK_BINS = 256;
+
+	private final ImagePlus image;
+	private final ImageStack stack;
+	private final int depth;
+	private final int size;
+	private final boolean byteImage;
+	private final float minimum;
+	private final float maximum;
+
+	// The histogram bins: the values of 8-bit images, otherwise the range of the stack in 256 bins
+	private final float binOffset;
+	private final double binSize;
+	private final int[] stackHistogram = new int[STACK_BINS];
+
+	// The per-slice histograms (with the same bins as the stack histogram), only created when needed
+	private int[][] sliceHistograms = null;
+
+
+	/**
+	 * Create a thresholder for an image and calculate the histogram of the stack.
+	 *
+	 * @param aImage
+	 *            The (single channel, single frame) image to threshold. It is read again when a mask is created, so it must not be changed or closed while the thresholder is in use.
+	 */
+	public Thresholder3D(final ImagePlus aImage)
+	{
+		this.image = aImage;
+		this.size = aImage.getWidth() * aImage.getHeight();
+		this.byteImage = aImage.getBitDepth() == 8;
+
+		this.stack = aImage.getImageStack();
+		this.depth = aImage.getNSlices();
+		final float[] sliceMinima = new float[this.depth];
+		final float[] sliceMaxima = new float[this.depth];
+		ParallelProcessor.forRange(0, this.depth, (aStart, aEnd) -> {
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final ImageProcessor proc = this.stack.getProcessor(z + 1);
+				float sliceMin = Float.POSITIVE_INFINITY;
+				float sliceMax = Float.NEGATIVE_INFINITY;
+				for (int i = 0; i < this.size; i++)
+				{
+					final float value = proc.getf(i);
+					sliceMin = Math.min(sliceMin, value);
+					sliceMax = Math.max(sliceMax, value);
+				}
+				sliceMinima[z] = sliceMin;
+				sliceMaxima[z] = sliceMax;
+			}
+		});
+
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int z = 0; z < this.depth; z++)
+		{
+			min = Math.min(min, sliceMinima[z]);
+			max = Math.max(max, sliceMaxima[z]);
+		}
+		this.minimum = min;
+		this.maximum = max;
+
+		this.binOffset = this.byteImage ? 0 : this.minimum;
+		this.binSize = this.byteImage ? 1 : (this.maximum - this.minimum) / STACK_BINS;
+
+		// The histogram of the stack
+		ParallelProcessor.forRange(0, this.depth, (aStart, aEnd) -> {
+			final int[] slabHistogram = new int[STACK_BINS];
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final ImageProcessor proc = this.stack.getProcessor(z + 1);
+				for (int i = 0; i < this.size; i++)
+				{
+					slabHistogram[getBin(proc.getf(i))]++;
+				}
+			}
+			synchronized (this.stackHistogram)
+			{
+				for (int bin = 0; bin < STACK_BINS; bin++)
+				{
+					this.stackHistogram[bin] += slabHistogram[bin];
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Create a mask with a manual threshold.
+	 *
+	 * @param aLower
+	 *            The lowest foreground value
+	 * @param aUpper
+	 *            The highest foreground value
+	 *
+	 * @return The mask with all values between the lower and upper value (inclusive) as foreground
+	 */
+	public ImagePlus createManualMask(final double aLower, final double aUpper)
+	{
+		final double[] lower = new double[this.depth];
+		final double[] upper = new double[this.depth];
+		for (int z = 0; z < this.depth; z++)
+		{
+			lower[z] = aLower;
+			upper[z] = aUpper;
+		}
+		return createMask(lower, upper);
+	}
+
+
+	/**
+	 * Create a mask with a threshold per slice. The threshold of each slice is calculated with the method on the histogram of the slice, after which the mean is taken of the thresholds of the slices
+	 * within the window (the first and last threshold are repeated beyond the stack).
+	 *
+	 * @param aMethod
+	 *            The name of the AutoThresholder method
+	 * @param aWindow
+	 *            The number of slices on either side of a slice to average the threshold over
+	 *
+	 * @return The mask with all values of at least the slice threshold as foreground
+	 */
+	public ImagePlus createSlidingWindowMask(final String aMethod, final int aWindow)
+	{
+		final int[] sliceThresholds = new int[this.depth];
+		final int[][] histograms = getSliceHistograms();
+		ParallelProcessor.forRange(0, this.depth, (aStart, aEnd) -> {
+			final AutoThresholder autoThresholder = new AutoThresholder();
+			for (int z = aStart; z < aEnd; z++)
+			{
+				sliceThresholds[z] = autoThresholder.getThreshold(aMethod, histograms[z]);
+			}
+		});
+
+		final double[] lower = new double[this.depth];
+		final double[] upper = new double[this.depth];
+		for (int z = 0; z < this.depth; z++)
+		{
+			int windowThreshold = 0;
+			for (int i = -aWindow; i <= aWindow; i++)
+			{
+				windowThreshold += sliceThresholds[Math.max(0, Math.min(this.depth - 1, z + i))];
+			}
+			windowThreshold /= (aWindow * 2) + 1;
+			lower[z] = this.binOffset + (windowThreshold * this.binSize);
+			upper[z] = this.maximum;
+			IJ.log(z + "\t" + lower[z]);
+		}
+		return createMask(lower, upper);
+	}
+
+
+	/**
+	 * Create a mask with the threshold of the whole stack.
+	 *
+	 * @param aMethod
+	 *            The name of the AutoThresholder method
+	 *
+	 * @return The mask with all values above the stack threshold as foreground
+	 */
+	public ImagePlus createStackMask(final String aMethod)
+	{
+		final double[] lower = new double[this.depth];
+		final double[] upper = new double[this.depth];
+		final double threshold = getStackThresholdValue(aMethod);
+		for (int z = 0; z < this.depth; z++)
+		{
+			lower[z] = threshold;
+			upper[z] = this.maximum;
+		}
+		return createMask(lower, upper);
+	}
+
+
+	/**
+	 * Get the threshold of a method on the stack histogram.
+	 *
+	 * @param aMethod
+	 *            The AutoThresholder method
+	 *
+	 * @return The threshold as a bin of the 256-bin stack histogram
+	 */
+	public int getStackThreshold(final AutoThresholder.Method aMethod)
+	{
+		return new AutoThresholder().getThreshold(aMethod, this.stackHistogram);
+	}
+
+
+	/**
+	 * Get the lowest foreground value of a method on the stack histogram. For 8-bit images this is the threshold bin + 1, otherwise the bin is scaled to the range of the stack as ImageJ does.
+	 */
+	private double getStackThresholdValue(final String aMethod)
+	{
+		final int threshold = new AutoThresholder().getThreshold(aMethod, this.stackHistogram);
+		if (this.byteImage)
+		{
+			return Math.min(STACK_BINS - 1, threshold + 1);
+		}
+		final double lower = Math.min(STACK_BINS - 1, threshold + 1);
+		return this.minimum + ((lower / (STACK_BINS - 1)) * (this.maximum - this.minimum));
+	}
+
+
+	private int getBin(final float aValue)
+	{
+		return this.binSize > 0 ? Math.min(STACK_BINS - 1, (int) ((aValue - this.binOffset) / this.binSize)) : 0;
+	}
+
+
+	/**
+	 * Get the 256-bin histogram of each slice, with the same bins as the stack histogram.
+	 */
+	private synchronized int[][] getSliceHistograms()
+	{
+		if (this.sliceHistograms == null)
+		{
+			final int[][] histograms = new int[this.depth][STACK_BINS];
+			ParallelProcessor.forRange(0, this.depth, (aStart, aEnd) -> {
+				for (int z = aStart; z < aEnd; z++)
+				{
+					final ImageProcessor proc = this.stack.getProcessor(z + 1);
+					final int[] histogram = histograms[z];
+					for (int i = 0; i < this.size; i++)
+					{
+						histogram[getBin(proc.getf(i))]++;
+					}
+				}
+			});
+			this.sliceHistograms = histograms;
+		}
+		return this.sliceHistograms;
+	}
+
+
+	/**
+	 * Write the mask of all values between the lower and upper threshold (inclusive) of each slice.
+	 */
+	private ImagePlus createMask(final double[] aLower, final double[] aUpper)
+	{
+		final byte[][] maskSlices = new byte[this.depth][this.size];
+		ParallelProcessor.forRange(0, this.depth, (aStart, aEnd) -> {
+			for (int z = aStart; z < aEnd; z++)
+			{
+				final ImageProcessor proc = this.stack.getProcessor(z + 1);
+				final byte[] mask = maskSlices[z];
+				for (int i = 0; i < this.size; i++)
+				{
+					final float value = proc.getf(i);
+					if (value >= aLower[z] && value <= aUpper[z])
+					{
+						mask[i] = (byte) 255;
+					}
+				}
+			}
+		});
+
+		final ImageStack maskStack = new ImageStack(this.image.getWidth(), this.image.getHeight());
+		for (int z = 0; z < this.depth; z++)
+		{
+			maskStack.addSlice(this.stack.getSliceLabel(z + 1), maskSlices[z]);
+		}
+		final ImagePlus mask = new ImagePlus(this.image.getTitle(), maskStack);
+		mask.setCalibration(this.image.getCalibration().copy());
+		return mask;
+	}
+}